@@ -106,12 +106,12 @@ public class AvroController {
 	}
 
 	/**
-	 * Take care of saving the current state in the model.
-	 * @throws NotBoundException if the model is not bound
+	 * Take care of saving the current state in the model. The state is
+	 * written to the database in the background.
 	 */
-	public final void handleSave() throws NotBoundException {
+	public final void handleSave() {
 		if (mState != STATE_CANCELED && !mReadOnly) {
-			mDataModel.storeCurrentValue();
+			mDataModel.storeCurrentValueLater();
 		}
 	}
 
@@ -217,6 +217,11 @@ public class AvroController {
 			if (mUri != null) {
 				// Build the model
 				mDataModel = new AvroRecordModel(mActivity, mUri, mSchema);
+				mDataModel.setLazyLoading(
+						intent.getBooleanExtra(AvroBaseEditor.LAZY, false));
+				mDataModel.setEditDelay(
+						intent.getLongExtra(AvroBaseEditor.EDIT_DELAY,
+								AvroRecordModel.DEFAULT_EDIT_DELAY));
 
 				// Load any savedInstanceState into the model
 				mDataModel.loadOriginals(savedState);
@@ -37,7 +37,6 @@ import org.slf4j.LoggerFactory;
 import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.MediaStore;
 import android.view.View;
@@ -51,6 +50,7 @@ import interdroid.vdb.avro.control.handler.value.ValueHandler;
 import interdroid.vdb.avro.model.AvroRecordModel;
 import interdroid.vdb.avro.model.NotBoundException;
 import interdroid.vdb.avro.view.AvroIntentUtil;
+import interdroid.vdb.avro.view.DataFormatUtil;
 import interdroid.vdb.avro.view.UseCamera;
 
 /**
@@ -124,10 +124,10 @@ public class CameraHandler implements OnClickListener {
 		if (mValueHandler.getValue() != null) {
 			LOG.debug("Setting bitmap.");
 			try {
-				final byte[] data = (byte[]) mValueHandler.getValue();
-				if (data != null && data.length > 0) {
-					final Bitmap bitmap =
-							BitmapFactory.decodeByteArray(data, 0, data.length);
+				final Bitmap bitmap = DataFormatUtil.getBitmap(
+						mActivity.getContentResolver(),
+						mValueHandler.getValue());
+				if (bitmap != null) {
 					mActivity.runOnUiThread(new Runnable() {
 
 						@Override
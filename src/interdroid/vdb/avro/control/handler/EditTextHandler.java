@@ -38,6 +38,8 @@ import interdroid.vdb.avro.control.handler.value.ValueHandler;
 import interdroid.vdb.avro.model.AvroRecordModel;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.view.View;
+import android.view.View.OnFocusChangeListener;
 import android.widget.EditText;
 
 /**
@@ -56,6 +58,18 @@ public class EditTextHandler implements TextWatcher {
 	private final Type mType;
 	/** The value handler we use to get and set data. */
 	private final ValueHandler mValueHandler;
+	/** The edit text we watch. */
+	private final EditText mText;
+	/** The text typed since it was last pushed to the model. */
+	private String mPendingText;
+
+	/** Pushes the pending text to the model. */
+	private final Runnable mFlush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
 
 	/**
 	 * Construct this type of handler.
@@ -70,36 +84,66 @@ public class EditTextHandler implements TextWatcher {
 		mDataModel = dataModel;
 		mType = type;
 		mValueHandler = valueHandler;
+		mText = text;
 		setWatched(text);
 	}
 
 	@Override
 	public final void afterTextChanged(final Editable text) {
+		mPendingText = text.toString();
+		final long delay = mDataModel.getEditDelay();
+		if (delay > 0) {
+			// Wait for typing to stop before touching the model.
+			mText.removeCallbacks(mFlush);
+			mText.postDelayed(mFlush, delay);
+			mDataModel.addPendingEdit(mFlush);
+		} else {
+			flush();
+		}
+	}
+
+	/**
+	 * Pushes the text typed since the last push to the model.
+	 */
+	private void flush() {
+		mText.removeCallbacks(mFlush);
+		mDataModel.removePendingEdit(mFlush);
+		if (mPendingText != null) {
+			setValue(mPendingText);
+			mPendingText = null;
+			mDataModel.onChanged();
+		}
+	}
+
+	/**
+	 * Parses the text and sets it as value.
+	 * @param text the text to set
+	 */
+	private void setValue(final String text) {
 		if (text.length() == 0) {
 			mValueHandler.setValue(null);
 		} else {
 			switch (mType) {
 			case FLOAT:
-				mValueHandler.setValue(Float.valueOf(text.toString()));
+				mValueHandler.setValue(Float.valueOf(text));
 				break;
 			case INT:
-				mValueHandler.setValue(Integer.valueOf(text.toString()));
+				mValueHandler.setValue(Integer.valueOf(text));
 				break;
 			case LONG:
-				mValueHandler.setValue(Long.valueOf(text.toString()));
+				mValueHandler.setValue(Long.valueOf(text));
 				break;
 			case NULL:
 				mValueHandler.setValue(null);
 				break;
 			case STRING:
-				mValueHandler.setValue(text.toString());
+				mValueHandler.setValue(text);
 				break;
 			default:
 				throw new IllegalArgumentException(
 						"Unsupported type: " + mType);
 			}
 		}
-		mDataModel.onChanged();
 	}
 
 	@Override
@@ -149,5 +193,21 @@ public class EditTextHandler implements TextWatcher {
 		// Must come after the setText.
 		text.addTextChangedListener(this);
 
+		// Push what was typed once the text loses focus.
+		final OnFocusChangeListener previous =
+				text.getOnFocusChangeListener();
+		text.setOnFocusChangeListener(new OnFocusChangeListener() {
+			@Override
+			public void onFocusChange(final View view,
+					final boolean hasFocus) {
+				if (previous != null) {
+					previous.onFocusChange(view, hasFocus);
+				}
+				if (!hasFocus) {
+					flush();
+				}
+			}
+		});
+
 	}
 }
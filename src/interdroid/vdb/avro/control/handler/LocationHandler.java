@@ -36,6 +36,7 @@ import interdroid.vdb.avro.control.handler.value.ValueHandler;
 import interdroid.vdb.avro.model.NotBoundException;
 import interdroid.vdb.avro.model.UriRecord;
 import interdroid.vdb.avro.view.AvroIntentUtil;
+import interdroid.vdb.avro.view.DataFormatUtil;
 import interdroid.vdb.avro.view.LocationPicker;
 
 import org.apache.avro.Schema;
@@ -45,7 +46,6 @@ import org.slf4j.LoggerFactory;
 import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -139,11 +139,10 @@ public class LocationHandler implements OnClickListener {
 			LOG.debug("Setting bitmap.");
 			try {
 				final UriRecord record = (UriRecord) mValueHandler.getValue();
-				final byte[] data =
-						(byte[]) record.get(LocationPicker.MAP_IMAGE);
-				if (data != null && data.length > 0) {
-					final Bitmap bitmap =
-							BitmapFactory.decodeByteArray(data, 0, data.length);
+				final Bitmap bitmap = DataFormatUtil.getBitmap(
+						mActivity.getContentResolver(),
+						record.get(LocationPicker.MAP_IMAGE));
+				if (bitmap != null) {
 					mActivity.runOnUiThread(new Runnable() {
 
 						@Override
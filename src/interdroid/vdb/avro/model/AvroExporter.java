@@ -0,0 +1,488 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import interdroid.vdb.content.EntityUriMatcher;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.apache.avro.Schema.Type;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * Exports every record of a schema in a checkout to an avro object
+ * container file. Records are read a page of rows at a time and written
+ * one at a time with their nested data inlined, so the memory used does
+ * not depend on the number of records.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class AvroExporter {
+	/** Access to logger. */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(AvroExporter.class);
+
+	/** The default number of bytes between sync markers. */
+	public static final int DEFAULT_SYNC_INTERVAL = 64 * 1024;
+
+	/** The number of rows read per query. */
+	private static final int PAGE_SIZE = 500;
+
+	/** The number of milliseconds in a second. */
+	private static final double MILLIS = 1000.0;
+	/** The number of bytes in a megabyte. */
+	private static final double MEGABYTE = 1024.0 * 1024.0;
+
+	/** The resolver to read with. */
+	private final ContentResolver mResolver;
+	/** The uri of the table holding the records. */
+	private final Uri mTableUri;
+	/** The schema of the records. */
+	private final Schema mSchema;
+	/** The codec used to compress blocks. */
+	private CodecFactory mCodec = CodecFactory.nullCodec();
+	/** The number of bytes between sync markers. */
+	private int mSyncInterval = DEFAULT_SYNC_INTERVAL;
+
+	/**
+	 * The result of an export.
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	public static final class Result {
+		/** The number of records written. */
+		private final long mRecords;
+		/** The number of bytes written. */
+		private final long mBytes;
+		/** The time the export took in milliseconds. */
+		private final long mElapsed;
+
+		/**
+		 * Construct a result.
+		 * @param records the number of records written
+		 * @param bytes the number of bytes written
+		 * @param elapsed the time the export took in milliseconds
+		 */
+		private Result(final long records, final long bytes,
+				final long elapsed) {
+			mRecords = records;
+			mBytes = bytes;
+			mElapsed = elapsed;
+		}
+
+		/**
+		 * @return the number of records written
+		 */
+		public long getRecordCount() {
+			return mRecords;
+		}
+
+		/**
+		 * @return the number of bytes written
+		 */
+		public long getByteCount() {
+			return mBytes;
+		}
+
+		/**
+		 * @return the time the export took in milliseconds
+		 */
+		public long getElapsed() {
+			return mElapsed;
+		}
+
+		/**
+		 * @return the number of records written per second
+		 */
+		public double getRecordsPerSecond() {
+			return mRecords * MILLIS / Math.max(1, mElapsed);
+		}
+
+		/**
+		 * @return the number of megabytes written per second
+		 */
+		public double getMegabytesPerSecond() {
+			return mBytes / MEGABYTE * MILLIS / Math.max(1, mElapsed);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d records, %d bytes in %d ms"
+					+ " (%.1f records/s, %.2f MB/s)", mRecords, mBytes,
+					mElapsed, getRecordsPerSecond(),
+					getMegabytesPerSecond());
+		}
+	}
+
+	/**
+	 * Construct an exporter for the records of the given schema.
+	 * @param resolver the resolver to read with
+	 * @param uri a uri in the checkout to export from
+	 * @param schema the schema of the records
+	 */
+	public AvroExporter(final ContentResolver resolver, final Uri uri,
+			final Schema schema) {
+		mResolver = resolver;
+		mTableUri = Uri.withAppendedPath(
+				EntityUriMatcher.getMatch(uri).getCheckoutUri(),
+				schema.getName());
+		mSchema = schema;
+	}
+
+	/**
+	 * Sets the codec used to compress blocks, such as
+	 * CodecFactory.deflateCodec(level) or CodecFactory.snappyCodec().
+	 * @param codec the codec
+	 * @return this exporter
+	 */
+	public AvroExporter setCodec(final CodecFactory codec) {
+		mCodec = codec;
+		return this;
+	}
+
+	/**
+	 * Sets the approximate number of bytes in a block.
+	 * @param syncInterval the number of bytes between sync markers
+	 * @return this exporter
+	 */
+	public AvroExporter setSyncInterval(final int syncInterval) {
+		mSyncInterval = syncInterval;
+		return this;
+	}
+
+	/**
+	 * Writes all records to the given stream. The stream is closed when
+	 * the export is done.
+	 * @param out the stream to write to
+	 * @return the result of the export
+	 * @throws IOException if writing fails
+	 * @throws NotBoundException if the data is not bound properly
+	 */
+	public Result export(final OutputStream out)
+			throws IOException, NotBoundException {
+		final long start = System.currentTimeMillis();
+		final CountingOutputStream counter = new CountingOutputStream(out);
+		final DataFileWriter<UriRecord> writer =
+				new DataFileWriter<UriRecord>(new RecordWriter(mResolver));
+		writer.setCodec(mCodec);
+		writer.setSyncInterval(mSyncInterval);
+		long records = 0;
+		try {
+			writer.create(mSchema, counter);
+			final String[] projection = LoadPlan.getRecordProjection(
+					mResolver, mTableUri, mSchema);
+			long last = 0;
+			int read;
+			do {
+				read = 0;
+				final Cursor cursor = mResolver.query(mTableUri, projection,
+						BaseColumns._ID + " > ?",
+						new String[] {String.valueOf(last)},
+						BaseColumns._ID + " LIMIT " + PAGE_SIZE);
+				try {
+					if (cursor == null) {
+						throw new IllegalArgumentException("Unable to load: "
+								+ mTableUri);
+					}
+					final LoadPlan plan = LoadPlan.forRecord(mSchema, cursor);
+					while (cursor.moveToNext()) {
+						last = cursor.getLong(plan.getIdIndex());
+						writer.append(new UriRecord(
+								ContentUris.withAppendedId(mTableUri, last),
+								mSchema).load(mResolver, cursor, plan));
+						read++;
+					}
+				} finally {
+					UriDataManager.safeClose(cursor);
+				}
+				records += read;
+			} while (read == PAGE_SIZE);
+		} finally {
+			writer.close();
+		}
+		final Result ret = new Result(records, counter.mCount,
+				System.currentTimeMillis() - start);
+		LOG.info("Exported {}: {}", mTableUri, ret);
+		return ret;
+	}
+
+	/**
+	 * Writes records in the avro binary encoding, reading enums, blobs and
+	 * unions the way they are held by the model. Strings, blobs, arrays and
+	 * maps which are missing from their row are written empty.
+	 */
+	private static final class RecordWriter implements DatumWriter<UriRecord> {
+		/** The resolver to read blobs with. */
+		private final ContentResolver mResolver;
+		/** The schema of the records. */
+		private Schema mSchema;
+
+		/**
+		 * @param resolver the resolver to read blobs with
+		 */
+		RecordWriter(final ContentResolver resolver) {
+			mResolver = resolver;
+		}
+
+		@Override
+		public void setSchema(final Schema schema) {
+			mSchema = schema;
+		}
+
+		@Override
+		public void write(final UriRecord record, final Encoder out)
+				throws IOException {
+			write(mSchema, record, out);
+		}
+
+		/**
+		 * Writes a value.
+		 * @param schema the schema for the value
+		 * @param value the value
+		 * @param out the encoder to write to
+		 * @throws IOException if writing fails
+		 */
+		@SuppressWarnings("rawtypes")
+		private void write(final Schema schema, final Object value,
+				final Encoder out) throws IOException {
+			switch (schema.getType()) {
+			case ARRAY:
+				writeArray(schema, (List) value, out);
+				break;
+			case BOOLEAN:
+				out.writeBoolean((Boolean) value);
+				break;
+			case BYTES:
+				out.writeBytes(getBytes(value));
+				break;
+			case DOUBLE:
+				out.writeDouble((Double) value);
+				break;
+			case ENUM:
+				out.writeEnum((Integer) value);
+				break;
+			case FIXED:
+				out.writeFixed(getBytes(value));
+				break;
+			case FLOAT:
+				out.writeFloat((Float) value);
+				break;
+			case INT:
+				out.writeInt((Integer) value);
+				break;
+			case LONG:
+				out.writeLong((Long) value);
+				break;
+			case MAP:
+				writeMap(schema, (Map) value, out);
+				break;
+			case NULL:
+				out.writeNull();
+				break;
+			case RECORD:
+				writeRecord(schema, (UriRecord) value, out);
+				break;
+			case STRING:
+				if (value == null) {
+					out.writeString("");
+				} else {
+					out.writeString((String) value);
+				}
+				break;
+			case UNION:
+				writeUnion(schema, (UriUnion) value, out);
+				break;
+			default:
+				throw new IllegalArgumentException(
+						"Unsupported type: " + schema);
+			}
+		}
+
+		/**
+		 * @param schema the schema for the record
+		 * @param record the record
+		 * @param out the encoder to write to
+		 * @throws IOException if writing fails
+		 */
+		private void writeRecord(final Schema schema, final UriRecord record,
+				final Encoder out) throws IOException {
+			for (Field field : schema.getFields()) {
+				write(field.schema(), record.get(field.pos()), out);
+			}
+		}
+
+		/**
+		 * @param schema the schema for the array
+		 * @param array the array, which is read in order once, or null
+		 * @param out the encoder to write to
+		 * @throws IOException if writing fails
+		 */
+		private void writeArray(final Schema schema, final List<?> array,
+				final Encoder out) throws IOException {
+			out.writeArrayStart();
+			if (array == null) {
+				out.setItemCount(0);
+			} else {
+				out.setItemCount(array.size());
+				for (Object element : array) {
+					out.startItem();
+					write(schema.getElementType(), element, out);
+				}
+			}
+			out.writeArrayEnd();
+		}
+
+		/**
+		 * @param schema the schema for the map
+		 * @param map the map or null
+		 * @param out the encoder to write to
+		 * @throws IOException if writing fails
+		 */
+		private void writeMap(final Schema schema, final Map<?, ?> map,
+				final Encoder out) throws IOException {
+			out.writeMapStart();
+			if (map == null) {
+				out.setItemCount(0);
+			} else {
+				out.setItemCount(map.size());
+				for (Map.Entry<?, ?> entry : map.entrySet()) {
+					out.startItem();
+					out.writeString((String) entry.getKey());
+					write(schema.getValueType(), entry.getValue(), out);
+				}
+			}
+			out.writeMapEnd();
+		}
+
+		/**
+		 * Writes a union. A union holding nothing is written as its null
+		 * branch.
+		 * @param schema the schema for the union
+		 * @param union the union
+		 * @param out the encoder to write to
+		 * @throws IOException if writing fails
+		 */
+		private void writeUnion(final Schema schema, final UriUnion union,
+				final Encoder out) throws IOException {
+			int branch = union.getBranch();
+			if (branch == UnionBranches.NONE) {
+				branch = getNullBranch(schema);
+			}
+			out.writeIndex(branch);
+			write(schema.getTypes().get(branch), union.getValue(), out);
+		}
+
+		/**
+		 * @param schema the schema for the union
+		 * @return the position of the null branch
+		 */
+		private static int getNullBranch(final Schema schema) {
+			final List<Schema> types = schema.getTypes();
+			int ret = UnionBranches.NONE;
+			for (int i = 0; ret == UnionBranches.NONE && i < types.size();
+					i++) {
+				if (types.get(i).getType() == Type.NULL) {
+					ret = i;
+				}
+			}
+			if (ret == UnionBranches.NONE) {
+				throw new IllegalStateException(
+						"Union holds nothing and has no null branch: "
+								+ schema);
+			}
+			return ret;
+		}
+
+		/**
+		 * @param value the data or a handle for it
+		 * @return the data
+		 * @throws IOException if the data can not be read
+		 */
+		private byte[] getBytes(final Object value) throws IOException {
+			byte[] ret;
+			if (value instanceof UriBlob) {
+				ret = ((UriBlob) value).getBytes(mResolver);
+			} else {
+				ret = (byte[]) value;
+			}
+			if (ret == null) {
+				ret = new byte[0];
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Counts the bytes written through it.
+	 */
+	private static final class CountingOutputStream
+			extends FilterOutputStream {
+		/** The number of bytes written. */
+		private long mCount;
+
+		/**
+		 * @param out the stream to write to
+		 */
+		CountingOutputStream(final OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			out.write(b);
+			mCount++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+				throws IOException {
+			out.write(b, off, len);
+			mCount += len;
+		}
+	}
+}
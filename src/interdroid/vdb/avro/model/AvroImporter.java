@@ -0,0 +1,554 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import interdroid.vdb.content.EntityUriMatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.GenericRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+/**
+ * Imports the records in an avro object container file into a checkout.
+ * Records are read in chunks. The rows for all records in a chunk are
+ * inserted in one provider transaction and the data of the chunk is then
+ * written in another, instead of saving each record on its own. If the
+ * data can not be written the rows inserted for the chunk are deleted
+ * again, so no blank records are left behind. The rows are handed to the
+ * progress listener in a checkpoint before the data is written, so an
+ * import which is killed in between deletes them when it resumes.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class AvroImporter {
+	/** Access to logger. */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(AvroImporter.class);
+
+	/** The default number of records written per chunk. */
+	public static final int DEFAULT_BATCH_SIZE = 200;
+
+	/**
+	 * Told about the progress of an import before and after the data of
+	 * each chunk is written.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called once the rows for a chunk of records have been inserted
+		 * and again once the chunk has been written. The checkpoint should
+		 * be kept before returning.
+		 * @param checkpoint the point to resume from if the import stops
+		 */
+		void onProgress(Checkpoint checkpoint);
+	}
+
+	/**
+	 * A point in a file up to which records have been imported. It can be
+	 * kept and handed back to resume an import which did not finish. It
+	 * also holds the rows inserted for the next chunk while its data is
+	 * written, which are deleted before the import resumes.
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	public static final class Checkpoint {
+		/** The sync position of the block holding the next record. */
+		private final long mSync;
+		/** The number of records of that block already imported. */
+		private final long mSkip;
+		/** The number of records imported so far. */
+		private final long mImported;
+		/** The rows inserted for a chunk which may not have been written. */
+		private final List<Uri> mPendingRows;
+
+		/**
+		 * Construct a checkpoint.
+		 * @param sync the sync position of the block to resume in
+		 * @param skip the number of records in the block to skip
+		 * @param imported the number of records imported so far
+		 */
+		public Checkpoint(final long sync, final long skip,
+				final long imported) {
+			this(sync, skip, imported, Collections.<Uri>emptyList());
+		}
+
+		/**
+		 * Construct a checkpoint with rows to delete before resuming.
+		 * @param sync the sync position of the block to resume in
+		 * @param skip the number of records in the block to skip
+		 * @param imported the number of records imported so far
+		 * @param pendingRows the rows inserted for a chunk which may not
+		 * have been written
+		 */
+		public Checkpoint(final long sync, final long skip,
+				final long imported, final List<Uri> pendingRows) {
+			mSync = sync;
+			mSkip = skip;
+			mImported = imported;
+			mPendingRows = Collections.unmodifiableList(
+					new ArrayList<Uri>(pendingRows));
+		}
+
+		/**
+		 * @return the sync position of the block to resume in
+		 */
+		public long getSync() {
+			return mSync;
+		}
+
+		/**
+		 * @return the number of records in the block to skip
+		 */
+		public long getSkip() {
+			return mSkip;
+		}
+
+		/**
+		 * @return the number of records imported so far
+		 */
+		public long getImported() {
+			return mImported;
+		}
+
+		/**
+		 * @return the rows inserted for a chunk which may not have been
+		 * written
+		 */
+		public List<Uri> getPendingRows() {
+			return mPendingRows;
+		}
+	}
+
+	/** The resolver to write with. */
+	private final ContentResolver mResolver;
+	/** The uri of the checkout being imported to. */
+	private final Uri mCheckoutUri;
+	/** The uri of the table holding the records. */
+	private final Uri mTableUri;
+	/** The schema of the records. */
+	private final Schema mSchema;
+	/** The number of records written per chunk. */
+	private int mBatchSize = DEFAULT_BATCH_SIZE;
+	/** The listener told about progress or null. */
+	private ProgressListener mListener;
+
+	/**
+	 * Construct an importer for records of the given schema.
+	 * @param resolver the resolver to write with
+	 * @param uri a uri in the checkout to import to
+	 * @param schema the schema of the records
+	 */
+	public AvroImporter(final ContentResolver resolver, final Uri uri,
+			final Schema schema) {
+		mResolver = resolver;
+		mCheckoutUri = EntityUriMatcher.getMatch(uri).getCheckoutUri();
+		mTableUri = Uri.withAppendedPath(mCheckoutUri, schema.getName());
+		mSchema = schema;
+	}
+
+	/**
+	 * @param batchSize the number of records written per chunk
+	 * @return this importer
+	 */
+	public AvroImporter setBatchSize(final int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException(
+					"Batch size must be positive: " + batchSize);
+		}
+		mBatchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * @param listener the listener told about progress
+	 * @return this importer
+	 */
+	public AvroImporter setProgressListener(final ProgressListener listener) {
+		mListener = listener;
+		return this;
+	}
+
+	/**
+	 * Imports the records in the given file.
+	 * @param file the file to import
+	 * @param resume the checkpoint to resume from or null to start at the
+	 * beginning
+	 * @return the checkpoint after the last record or the given
+	 * checkpoint if there was nothing left to import
+	 * @throws IOException if the file can not be read
+	 * @throws NotBoundException if the data is not bound properly
+	 */
+	public Checkpoint importFile(final File file, final Checkpoint resume)
+			throws IOException, NotBoundException {
+		final long start = System.currentTimeMillis();
+		final DataFileReader<GenericRecord> reader =
+				new DataFileReader<GenericRecord>(file,
+						new GenericDatumReader<GenericRecord>(mSchema));
+		Checkpoint ret = resume;
+		try {
+			long block = -1;
+			long inBlock = 0;
+			long imported = 0;
+			if (resume != null) {
+				deletePending(resume.getPendingRows());
+				reader.seek(resume.getSync());
+				block = resume.getSync();
+				imported = resume.getImported();
+				for (; inBlock < resume.getSkip() && reader.hasNext();
+						inBlock++) {
+					reader.next();
+				}
+			}
+			final List<GenericRecord> chunk =
+					new ArrayList<GenericRecord>(mBatchSize);
+			long chunkBlock = block;
+			long chunkSkip = inBlock;
+			while (reader.hasNext()) {
+				if (reader.previousSync() != block) {
+					block = reader.previousSync();
+					inBlock = 0;
+				}
+				if (chunk.isEmpty()) {
+					chunkBlock = block;
+					chunkSkip = inBlock;
+				}
+				chunk.add(reader.next());
+				inBlock++;
+				if (chunk.size() == mBatchSize || !reader.hasNext()) {
+					write(chunk, new Checkpoint(chunkBlock, chunkSkip,
+							imported));
+					imported += chunk.size();
+					chunk.clear();
+					ret = new Checkpoint(block, inBlock, imported);
+					if (mListener != null) {
+						mListener.onProgress(ret);
+					}
+				}
+			}
+			LOG.info("Imported {} records into {} in {} ms", new Object[] {
+					imported, mTableUri, System.currentTimeMillis() - start});
+		} finally {
+			reader.close();
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes a chunk of records. The rows for the chunk are inserted first
+	 * so the records can be bound to them, and nested arrays and maps
+	 * stored under them, then the data is saved. The rows are deleted
+	 * again if the data can not be saved. The listener is handed the rows
+	 * before the data is saved in case the import is killed in between.
+	 * @param chunk the records to write
+	 * @param start the checkpoint at the start of the chunk
+	 * @throws NotBoundException if the data is not bound properly
+	 */
+	private void write(final List<GenericRecord> chunk,
+			final Checkpoint start) throws NotBoundException {
+		final List<Uri> tables = new ArrayList<Uri>();
+		final List<Schema> schemas = new ArrayList<Schema>();
+		for (GenericRecord record : chunk) {
+			tables.add(mTableUri);
+			schemas.add(mSchema);
+			addFieldTables(mSchema, record, tables, schemas);
+		}
+		final List<Uri> rows = insertRows(tables);
+		if (mListener != null) {
+			mListener.onProgress(new Checkpoint(start.getSync(),
+					start.getSkip(), start.getImported(), rows));
+		}
+
+		boolean written = false;
+		try {
+			final UriBatch batch = new UriBatch(mTableUri);
+			final Iterator<Uri> next = rows.iterator();
+			for (GenericRecord record : chunk) {
+				convertRecord(mSchema, record, next).save(batch, mResolver,
+						null);
+			}
+			batch.apply(mResolver);
+			written = true;
+		} finally {
+			if (!written) {
+				deleteRows(rows, schemas);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the rows inserted for a chunk which could not be written,
+	 * together with any data already written for them.
+	 * @param rows the rows inserted for the chunk
+	 * @param schemas the schema for the record in each row
+	 */
+	private void deleteRows(final List<Uri> rows, final List<Schema> schemas) {
+		LOG.warn("Deleting {} rows of a chunk which was not written",
+				rows.size());
+		try {
+			final CascadeDelete delete = new CascadeDelete(mResolver,
+					mTableUri);
+			for (int i = 0; i < rows.size(); i++) {
+				delete.visitRecord(rows.get(i), schemas.get(i));
+			}
+			delete.flush();
+		} catch (IllegalStateException e) {
+			// The failure writing the chunk is the one to report.
+			LOG.error("Unable to delete rows of chunk.", e);
+		}
+	}
+
+	/**
+	 * Deletes the rows inserted for a chunk before the import stopped.
+	 * The data of the chunk may have been written, so the records in the
+	 * table being imported to are deleted with everything reachable from
+	 * them. Nested records left are blank and are deleted on their own.
+	 * @param rows the rows inserted for the chunk
+	 */
+	private void deletePending(final List<Uri> rows) {
+		if (!rows.isEmpty()) {
+			LOG.info("Deleting {} rows of a chunk which may not have been"
+					+ " written", rows.size());
+			final CascadeDelete delete = new CascadeDelete(mResolver,
+					mTableUri);
+			final UriBatch batch = new UriBatch(mTableUri);
+			for (Uri row : rows) {
+				if (isRecordRow(row)) {
+					delete.visitRecord(row, mSchema);
+				} else {
+					batch.delete(row);
+				}
+			}
+			delete.flush();
+			batch.apply(mResolver);
+		}
+	}
+
+	/**
+	 * @param row the uri of a row
+	 * @return true if the row is in the table being imported to
+	 */
+	private boolean isRecordRow(final Uri row) {
+		final List<String> segments = row.getPathSegments();
+		return mTableUri.getPathSegments().equals(
+				segments.subList(0, segments.size() - 1));
+	}
+
+	/**
+	 * Inserts an empty row into each of the given tables.
+	 * @param tables the tables to insert into
+	 * @return the uris of the rows in the same order
+	 */
+	private List<Uri> insertRows(final List<Uri> tables) {
+		final UriBatch batch = new UriBatch(mTableUri);
+		final List<Uri> ret = new ArrayList<Uri>(tables.size());
+		for (int i = 0; i < tables.size(); i++) {
+			ret.add(null);
+			final int index = i;
+			batch.insert(tables.get(i), new ContentValues(),
+					new UriBatch.InsertListener() {
+				@Override
+				public void inserted(final Uri uri) {
+					if (uri == null) {
+						throw new IllegalStateException(
+								"Unable to insert into: " + tables.get(index));
+					}
+					ret.set(index, uri);
+				}
+			});
+		}
+		batch.apply(mResolver);
+		return ret;
+	}
+
+	/**
+	 * Adds the table of every record nested in a value, in the order the
+	 * records are met when the value is converted.
+	 * @param schema the schema for the value
+	 * @param value the value
+	 * @param tables the list to add to
+	 * @param schemas the list to add the schema of each record to
+	 */
+	private void addTables(final Schema schema, final Object value,
+			final List<Uri> tables, final List<Schema> schemas) {
+		switch (schema.getType()) {
+		case ARRAY:
+			for (Object element : (List<?>) value) {
+				addTables(schema.getElementType(), element, tables,
+						schemas);
+			}
+			break;
+		case MAP:
+			for (Object element : ((Map<?, ?>) value).values()) {
+				addTables(schema.getValueType(), element, tables,
+						schemas);
+			}
+			break;
+		case RECORD:
+			tables.add(UriDataManager.getRecordUri(mCheckoutUri, schema));
+			schemas.add(schema);
+			addFieldTables(schema, (GenericRecord) value, tables, schemas);
+			break;
+		case UNION:
+			addTables(getBranch(schema, value), value, tables, schemas);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Adds the table of every record nested in the fields of a record.
+	 * @param schema the schema for the record
+	 * @param record the record
+	 * @param tables the list to add to
+	 * @param schemas the list to add the schema of each record to
+	 */
+	private void addFieldTables(final Schema schema,
+			final GenericRecord record, final List<Uri> tables,
+			final List<Schema> schemas) {
+		for (Field field : schema.getFields()) {
+			addTables(field.schema(), record.get(field.pos()), tables,
+					schemas);
+		}
+	}
+
+	/**
+	 * Converts a record, binding it and the records nested in it to the
+	 * next rows.
+	 * @param schema the schema for the record
+	 * @param record the record
+	 * @param rows the rows to bind to, in the order of addTables
+	 * @return the converted record
+	 */
+	private UriRecord convertRecord(final Schema schema,
+			final GenericRecord record, final Iterator<Uri> rows) {
+		final Uri uri = rows.next();
+		final UriRecord ret = new UriRecord(uri, schema);
+		for (Field field : schema.getFields()) {
+			ret.put(field.pos(), convert(field.schema(), uri, field.name(),
+					record.get(field.pos()), rows));
+		}
+		return ret;
+	}
+
+	/**
+	 * Converts a value to the form held by the model.
+	 * @param schema the schema for the value
+	 * @param rootUri the uri the value is stored under
+	 * @param fieldName the name of the field holding the value
+	 * @param value the value
+	 * @param rows the rows to bind records to
+	 * @return the converted value
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Object convert(final Schema schema, final Uri rootUri,
+			final String fieldName, final Object value,
+			final Iterator<Uri> rows) {
+		Object ret;
+		switch (schema.getType()) {
+		case ARRAY:
+			final UriArray array = new UriArray(
+					Uri.withAppendedPath(rootUri, fieldName), schema);
+			for (Object element : (List<?>) value) {
+				array.add(convert(schema.getElementType(), rootUri,
+						fieldName, element, rows));
+			}
+			ret = array;
+			break;
+		case BYTES:
+			final ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+			final byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			ret = bytes;
+			break;
+		case ENUM:
+			ret = schema.getEnumOrdinal(value.toString());
+			break;
+		case FIXED:
+			ret = ((GenericFixed) value).bytes().clone();
+			break;
+		case MAP:
+			final UriMap map = new UriMap(
+					Uri.withAppendedPath(rootUri, fieldName), schema);
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				map.put(entry.getKey().toString(), convert(
+						schema.getValueType(), rootUri, fieldName,
+						entry.getValue(), rows));
+			}
+			ret = map;
+			break;
+		case RECORD:
+			ret = convertRecord(schema, (GenericRecord) value, rows);
+			break;
+		case STRING:
+			ret = value.toString();
+			break;
+		case UNION:
+			final Schema branch = getBranch(schema, value);
+			final UriUnion union = new UriUnion(schema);
+			union.setValue(convert(branch, rootUri, fieldName, value, rows),
+					branch);
+			ret = union;
+			break;
+		default:
+			ret = value;
+		}
+		return ret;
+	}
+
+	/**
+	 * @param schema the schema for a union
+	 * @param value the value in the union
+	 * @return the schema of the branch holding the value
+	 */
+	private static Schema getBranch(final Schema schema, final Object value) {
+		return schema.getTypes().get(
+				GenericData.get().resolveUnion(schema, value));
+	}
+}
@@ -30,7 +30,13 @@
  */
 package interdroid.vdb.avro.model;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.avro.Schema;
 import org.apache.avro.Schema.Field;
@@ -43,6 +49,7 @@ import android.content.ContentResolver;
 import android.database.DataSetObserver;
 import android.net.Uri;
 import android.os.Bundle;
+import android.widget.Toast;
 
 // TODO: Call verify to verify the data is of the right type?
 
@@ -70,12 +77,96 @@ public class AvroRecordModel extends DataSetObserver {
 	private UriRecord mCurrentModel;
 	/** The original state of the model. */
 	private UriRecord mOriginalModel;
-	/** Is the model dirty. */
+	/**
+	 * The model holding the original state in a snapshot until the
+	 * original state is needed.
+	 */
+	private UriRecord mSnapshotModel;
+	/**
+	 * The model last loaded or stored, which knows the content hash of
+	 * what the database holds.
+	 */
+	private UriRecord mStoredModel;
+	/**
+	 * Is the model dirty. The records in the model track which of their
+	 * fields changed so a save only writes those.
+	 */
 	private boolean mDirty;
+	/** Changes restored from a bundle waiting for the next load. */
+	private byte[] mPendingChanges;
+	/**
+	 * The changes handed to a background store until the store succeeds,
+	 * so they can still be saved to a bundle or loaded again.
+	 */
+	private final AtomicReference<QueuedStore> mQueuedStore =
+			new AtomicReference<QueuedStore>();
+	/** Should nested data be loaded on first access. */
+	private boolean mLazyLoading;
+	/** How long edits wait for more edits before reaching the model. */
+	private long mEditDelay = DEFAULT_EDIT_DELAY;
+	/** Edits which have not reached the model yet. */
+	private final Set<Runnable> mPendingEdits =
+			new LinkedHashSet<Runnable>();
+
+	/** The bundle key the state of the model is saved under. */
+	private static final String STATE_KEY =
+			AvroRecordModel.class.getName() + ".state";
+	/** The cache directory blobs too large for a bundle are spilled to. */
+	private static final String SPILL_DIR = "avro-state";
+
+	/** The default time edits wait for more edits in milliseconds. */
+	public static final long DEFAULT_EDIT_DELAY = 500;
+
 
-	// TODO: It would be really nice to have fine
-	// grained dirty flags at all levels.
+	/**
+	 * The changes of a model handed to a background store. They are
+	 * encoded on the thread saves run on just before the store, or by
+	 * saveState if the state is saved before the store gets to them.
+	 * They are dropped once the store succeeds.
+	 */
+	private static final class QueuedStore {
+		/** The record being stored. */
+		private final UriRecord mRecord;
+		/** The directory blobs are spilled to. */
+		private final File mSpillDir;
+		/** The encoded changes or null if not encoded yet. */
+		private byte[] mChanges;
+		/** Has the store succeeded. */
+		private boolean mStored;
+
+		/**
+		 * @param record the record being stored
+		 * @param spillDir the directory blobs are spilled to
+		 */
+		QueuedStore(final UriRecord record, final File spillDir) {
+			mRecord = record;
+			mSpillDir = spillDir;
+		}
 
+		/**
+		 * Encodes the changes if that has not been done yet.
+		 * @return the encoded changes or null if they are stored
+		 */
+		synchronized byte[] getChanges() {
+			if (!mStored && mChanges == null) {
+				try {
+					mChanges = StateSnapshot.encodeChanges(mRecord,
+							mSpillDir);
+				} catch (NotBoundException e) {
+					throw new IllegalStateException("Model is not bound.", e);
+				}
+			}
+			return mChanges;
+		}
+
+		/**
+		 * Drops the changes once they are stored.
+		 */
+		synchronized void markStored() {
+			mStored = true;
+			mChanges = null;
+		}
+	}
 
 	public void onChanged() {
 		super.onChanged();
@@ -104,65 +195,169 @@ public class AvroRecordModel extends DataSetObserver {
 	}
 
 	/**
-	 * Loads the original state of the model from the bundle.
+	 * Loads the changes saved to the bundle. They are applied to the data
+	 * loaded from the database by the next call to loadData.
 	 *
 	 * @param saved
-	 *            the bundle to store to
+	 *            the bundle to load from
 	 * @throws NotBoundException if the record model is not bound
 	 */
 	public final void loadOriginals(final Bundle saved)
 			throws NotBoundException {
+		final byte[] state;
 		if (saved != null) {
-			LOG.debug("Loading from bundle.");
-			mCurrentModel =
-					new UriRecord(mUri, mSchema).load(saved);
-			if (mOriginalModel == null) {
-				mOriginalModel =
-						new UriRecord(mUri, mSchema).load(saved);
-			}
+			state = saved.getByteArray(STATE_KEY);
+		} else {
+			state = null;
+		}
+		if (state != null) {
+			LOG.debug("Keeping changes from bundle for the next load.");
+			mPendingChanges = state;
 		}
 	}
 
 	/**
 	 * Restores the original values stored by the model to the database.
+	 * This happens in the background once the stores queued before it
+	 * are done.
 	 * @throws NotBoundException if the record model is not bound
 	 */
 	public final void storeOriginalValue() throws NotBoundException {
-		if (mDirty && mOriginalModel != null) {
-			LOG.debug("Storing original values.");
-			mOriginalModel.save(mResolver);
-		}
-		else {
-			LOG.debug("Not storing original: {} {}", mDirty, mOriginalModel != null);
+		flushEdits();
+		if (mDirty) {
+			runAfterStores("Unable to revert changes.", new Callable<Void>() {
+				@Override
+				public Void call() throws NotBoundException {
+					if (getOriginalModel() != null) {
+						// The current values may have been saved over the
+						// original so the parts which hash differently
+						// from what is stored are written back.
+						LOG.debug("Storing original values.");
+						mOriginalModel.markChanged(mStoredModel);
+						mOriginalModel.save(mResolver);
+					} else {
+						LOG.debug("No original to store: {}", mUri);
+					}
+					return null;
+				}
+			});
+		} else {
+			LOG.debug("Not storing original: {}", mUri);
 		}
 	}
 
 	/**
-	 * Stores the current values held by the model to the database.
+	 * Stores the current values held by the model to the database. This
+	 * happens in the background once the stores queued before it are
+	 * done, as for storeCurrentValueLater.
 	 * @throws NotBoundException ifthe record model is not bound
 	 */
 	public final void storeCurrentValue() throws NotBoundException {
-		if (mDirty && mCurrentModel != null) {
-			LOG.debug("Storing current state to uri: " + mUri);
-			mCurrentModel.save(mResolver);
+		storeCurrentValueLater();
+	}
+
+	/**
+	 * Hands the current values held by the model to a background thread
+	 * which encodes the changes and stores them to the database. The model
+	 * lets go of them so they can not change while they are stored.
+	 * loadData waits for the store to finish before loading the stored
+	 * values. The changes are kept until the store succeeds so saveState
+	 * can still save them and a failed store does not lose them.
+	 */
+	public final void storeCurrentValueLater() {
+		flushEdits();
+		if (mDirty && mCurrentModel != null && mCurrentModel.isUnchanged()) {
+			LOG.debug("Not storing unchanged state to uri: " + mUri);
+			mCurrentModel.markClean();
+			mDirty = false;
+		} else if (mDirty && mCurrentModel != null) {
+			LOG.debug("Queueing store of current state to uri: " + mUri);
+			final QueuedStore store =
+					new QueuedStore(mCurrentModel, getSpillDir());
+			mQueuedStore.set(store);
+			UriSaveQueue.save(mUri, mResolver, mCurrentModel,
+					new UriSaveQueue.SaveListener() {
+				@Override
+				public void saving(final Uri uri) {
+					store.getChanges();
+				}
+
+				@Override
+				public void saved(final Uri uri) {
+					store.markStored();
+					mQueuedStore.compareAndSet(store, null);
+				}
+
+				@Override
+				public void failed(final Uri uri, final Exception e) {
+					// The changes stay queued and are applied again by
+					// the next load.
+					showError("Unable to save changes.");
+				}
+			});
+			mStoredModel = mCurrentModel;
+			mCurrentModel = null;
 		} else {
 			LOG.debug("Not storing: {} {}", mDirty, mCurrentModel != null);
 		}
 	}
 
 	/**
-	 * Loads the model from the database.
+	 * Loads the model from the database. This waits for the stores queued
+	 * before it, so it is called off the UI thread.
 	 * @throws NotBoundException if the record model is not bound
 	 */
 	public final void loadData() throws NotBoundException {
 		LOG.debug("Loading data from: " + mUri);
-		mCurrentModel = new UriRecord(mUri, mSchema).load(mResolver);
+		UriSaveQueue.await(mUri);
+		// Changes still queued once the store is done were not stored.
+		final QueuedStore queued = mQueuedStore.getAndSet(null);
+		byte[] unsaved = null;
+		if (queued != null) {
+			unsaved = queued.getChanges();
+		}
+		if (unsaved != null && mPendingChanges == null) {
+			LOG.debug("Keeping changes from failed store for this load.");
+			mPendingChanges = unsaved;
+		}
+		// The model being replaced is no longer changed so the original
+		// state has to be taken from it before the new model changes it.
+		getOriginalModel();
+		if (mLazyLoading) {
+			mCurrentModel = new UriRecord(mUri, mSchema).loadLazily(mResolver);
+		} else {
+			mCurrentModel = new UriRecord(mUri, mSchema).load(mResolver);
+		}
+		mStoredModel = mCurrentModel;
 		mDirty = false;
-		// If there is no original model then load another copy
-		// TODO: Can we do a clone here?
+		// If there is no original model then the current model keeps a
+		// copy of each part of itself when it is first changed.
 		if (mOriginalModel == null) {
-			mOriginalModel = new UriRecord(mUri, mSchema).load(mResolver);
+			mCurrentModel.snapshot(mResolver);
+			mSnapshotModel = mCurrentModel;
+		}
+		if (mPendingChanges != null) {
+			LOG.debug("Applying pending changes.");
+			StateSnapshot.applyChanges(mResolver, mCurrentModel,
+					mPendingChanges);
+			mPendingChanges = null;
+			mDirty = true;
+		}
+	}
+
+	/**
+	 * Returns the original state of the model, taking it from the snapshot
+	 * if that has not been done yet. Parts of it which were never loaded are
+	 * loaded just before the provider first changes them.
+	 * @return the original state or null if there is none
+	 * @throws NotBoundException if the record model is not bound
+	 */
+	private UriRecord getOriginalModel() throws NotBoundException {
+		if (mOriginalModel == null && mSnapshotModel != null) {
+			mOriginalModel = mSnapshotModel.getSnapshot();
+			mSnapshotModel = null;
 		}
+		return mOriginalModel;
 	}
 
 	/**
@@ -174,9 +369,23 @@ public class AvroRecordModel extends DataSetObserver {
 	 */
 	public final void saveState(final Bundle outState)
 			throws NotBoundException {
+		flushEdits();
+		final QueuedStore store = mQueuedStore.get();
+		byte[] queued = null;
+		if (store != null && !(mDirty && mCurrentModel != null)) {
+			queued = store.getChanges();
+		}
 		if (mDirty && mCurrentModel != null) {
-			LOG.debug("Saving current state to bundle.");
-			mCurrentModel.save(outState);
+			LOG.debug("Saving changes to bundle.");
+			outState.putByteArray(STATE_KEY, StateSnapshot.encodeChanges(
+					mCurrentModel, getSpillDir()));
+		} else if (queued != null) {
+			// Handed to a store which may not have reached the database.
+			LOG.debug("Saving queued changes to bundle.");
+			outState.putByteArray(STATE_KEY, queued);
+		} else if (mPendingChanges != null) {
+			// Not loaded yet so the restored changes are still pending.
+			outState.putByteArray(STATE_KEY, mPendingChanges);
 		} else {
 			LOG.debug("Not saving to bundle: {} {}",
 					mDirty, mCurrentModel != null);
@@ -184,11 +393,61 @@ public class AvroRecordModel extends DataSetObserver {
 	}
 
 	/**
-	 * Deletes the data for this model from the database.
+	 * @return the directory blobs of this model are spilled to
+	 */
+	private File getSpillDir() {
+		return new File(new File(mActivity.getCacheDir(), SPILL_DIR),
+				Integer.toHexString(mUri.hashCode()));
+	}
+
+	/**
+	 * Deletes the data for this model from the database. This happens in
+	 * the background once the stores queued before it are done.
 	 * @throws NotBoundException if the record model is not bound
 	 */
 	public final void delete() throws NotBoundException {
-		mOriginalModel.delete(mResolver);
+		runAfterStores("Unable to delete.", new Callable<Void>() {
+			@Override
+			public Void call() throws NotBoundException {
+				getOriginalModel().delete(mResolver);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Runs the given work on the thread stores run on once the stores
+	 * queued before it are done, so the caller does not wait for them.
+	 * The user is told if the work fails.
+	 * @param failure the message to show if the work fails
+	 * @param work the work to run
+	 */
+	private void runAfterStores(final String failure,
+			final Callable<Void> work) {
+		UriSaveQueue.run(mUri, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					work.call();
+				} catch (Exception e) {
+					LOG.error(failure + " " + mUri, e);
+					showError(failure);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Shows the given error to the user.
+	 * @param message the message to show
+	 */
+	private void showError(final String message) {
+		runOnUI(new Runnable() {
+			@Override
+			public void run() {
+				Toast.makeText(mActivity, message, Toast.LENGTH_LONG).show();
+			}
+		});
 	}
 
 	/**
@@ -211,6 +470,64 @@ public class AvroRecordModel extends DataSetObserver {
 		mDirty = true;
 	}
 
+	/**
+	 * Sets if nested arrays, maps and records in the current model are
+	 * loaded when first accessed instead of when the model is loaded.
+	 * Deferred data is loaded on the thread which first accesses it.
+	 * @param lazy true to load nested data on first access
+	 */
+	public final void setLazyLoading(final boolean lazy) {
+		mLazyLoading = lazy;
+	}
+
+	/**
+	 * Sets how long edits wait for further edits before they are pushed
+	 * to the model.
+	 * @param delay the delay in milliseconds, 0 to push every edit
+	 */
+	public final void setEditDelay(final long delay) {
+		mEditDelay = delay;
+	}
+
+	/**
+	 * @return how long edits wait for further edits in milliseconds
+	 */
+	public final long getEditDelay() {
+		return mEditDelay;
+	}
+
+	/**
+	 * Registers an edit which has not been pushed to the model yet. It is
+	 * run before the model is stored. Must be called on the ui thread.
+	 * @param edit the runnable which pushes the edit to the model
+	 */
+	public final void addPendingEdit(final Runnable edit) {
+		mPendingEdits.add(edit);
+	}
+
+	/**
+	 * Removes an edit which has been pushed to the model.
+	 * Must be called on the ui thread.
+	 * @param edit the edit to remove
+	 */
+	public final void removePendingEdit(final Runnable edit) {
+		mPendingEdits.remove(edit);
+	}
+
+	/**
+	 * Pushes all pending edits to the model.
+	 * Must be called on the ui thread.
+	 */
+	public final void flushEdits() {
+		if (!mPendingEdits.isEmpty()) {
+			LOG.debug("Flushing {} pending edits.", mPendingEdits.size());
+			for (Runnable edit : new ArrayList<Runnable>(mPendingEdits)) {
+				edit.run();
+			}
+			mPendingEdits.clear();
+		}
+	}
+
 	/**
 	 * Sets the resolver to be used to get access to data.
 	 * @param contentResolver the resolver to be used
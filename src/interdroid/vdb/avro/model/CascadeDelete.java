@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import org.apache.avro.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.net.Uri;
+
+/**
+ * Deletes a record or collection together with every row reachable from
+ * it according to its schema. Rows are deleted in batches, children
+ * before the rows referring to them.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class CascadeDelete extends RowWalker {
+	/** Access to logger. */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(CascadeDelete.class);
+
+	/** The number of deletes sent to the provider at once. */
+	private static final int BATCH_SIZE = 500;
+
+	/** The deletes collected so far. */
+	private final UriBatch mBatch;
+	/** The number of rows deleted so far. */
+	private int mDeleted;
+
+	/**
+	 * @param resolver the resolver to delete with
+	 * @param uri a uri served by the provider to delete from
+	 */
+	CascadeDelete(final ContentResolver resolver, final Uri uri) {
+		super(resolver);
+		mBatch = new UriBatch(uri);
+	}
+
+	/**
+	 * Deletes a record and everything reachable from it.
+	 * @param resolver the resolver to delete with
+	 * @param uri the uri of the record
+	 * @param schema the schema for the record
+	 */
+	static void deleteRecord(final ContentResolver resolver, final Uri uri,
+			final Schema schema) {
+		final CascadeDelete delete = new CascadeDelete(resolver, uri);
+		delete.visitRecord(uri, schema);
+		delete.flush();
+	}
+
+	/**
+	 * Deletes the rows of an array or map and everything reachable from
+	 * them.
+	 * @param resolver the resolver to delete with
+	 * @param uri the uri of the table holding the rows
+	 * @param schema the schema for the array or map
+	 */
+	static void deleteCollection(final ContentResolver resolver,
+			final Uri uri, final Schema schema) {
+		final CascadeDelete delete = new CascadeDelete(resolver, uri);
+		delete.visitCollection(uri, uri.getLastPathSegment(), schema);
+		delete.flush();
+	}
+
+	@Override
+	boolean enterRecord(final Uri uri) {
+		return true;
+	}
+
+	@Override
+	void leaveRecord(final Uri uri) {
+		delete(uri);
+	}
+
+	@Override
+	void leaveCollection(final Uri uri) {
+		delete(uri);
+	}
+
+	/**
+	 * Adds a delete, sending the batch once it is full.
+	 * @param uri the uri to delete
+	 */
+	private void delete(final Uri uri) {
+		mBatch.delete(uri);
+		if (mBatch.size() >= BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends the deletes collected so far.
+	 */
+	void flush() {
+		LOG.debug("Deleting {} rows and tables", mBatch.size());
+		for (ContentProviderResult result : mBatch.apply(getResolver())) {
+			if (result.count != null) {
+				mDeleted += result.count;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of rows the provider reported deleted so far
+	 */
+	int getDeleted() {
+		return mDeleted;
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.avro.generic.GenericFixed;
+
+/**
+ * Computes cheap structural hashes of model values so a save can tell
+ * data which was marked changed from data which really changed. The
+ * hashes are 64 bit FNV-1a over the values. Different values can have
+ * the same hash, which is rare enough to be an accepted risk: a save of
+ * data whose hash collides with what is stored is skipped. Bound data
+ * hashes through its adapter, which keeps the hash taken when the data
+ * was last loaded or saved.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class ContentHash {
+	/** The hash of nothing. */
+	static final long EMPTY = 0xcbf29ce484222325L;
+	/** The FNV prime for 64 bit hashes. */
+	private static final long PRIME = 0x100000001b3L;
+	/** The hash of null, kept apart from the hash of empty values. */
+	private static final long NULL = 0x9e3779b97f4a7c15L;
+	/** The number of bits in a byte. */
+	private static final int BYTE = 8;
+	/** The mask for a byte. */
+	private static final long BYTE_MASK = 0xff;
+
+	/** The counter unique hashes are taken from. */
+	private static final AtomicLong UNIQUE = new AtomicLong(NULL);
+
+	/**
+	 * No construction.
+	 */
+	private ContentHash() {
+		// No construction
+	}
+
+	/**
+	 * Adds a long to a hash.
+	 * @param hash the hash so far
+	 * @param value the value to add
+	 * @return the new hash
+	 */
+	static long mix(final long hash, final long value) {
+		long ret = hash;
+		for (int shift = 0; shift < Long.SIZE; shift += BYTE) {
+			ret = (ret ^ ((value >>> shift) & BYTE_MASK)) * PRIME;
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns a hash which differs from every hash handed out before.
+	 * This is used for data which can not be hashed without loading it.
+	 * @return a hash no data will match
+	 */
+	static long unique() {
+		return mix(EMPTY, UNIQUE.incrementAndGet());
+	}
+
+	/**
+	 * Returns the hash of a value held in a record, array, map or union.
+	 * @param value the value to hash
+	 * @return the hash of the value
+	 */
+	@SuppressWarnings("rawtypes")
+	static long of(final Object value) {
+		long ret;
+		if (value == null) {
+			ret = NULL;
+		} else if (value instanceof UriRecord) {
+			ret = of((UriRecord) value);
+		} else if (value instanceof UriArray) {
+			ret = ((UriArray) value).getContentHash();
+		} else if (value instanceof UriMap) {
+			ret = ((UriMap) value).getContentHash();
+		} else if (value instanceof UriUnion) {
+			ret = ((UriUnion) value).getContentHash();
+		} else if (value instanceof CharSequence) {
+			ret = of((CharSequence) value);
+		} else if (value instanceof Float) {
+			ret = mix(EMPTY, Float.floatToIntBits((Float) value));
+		} else if (value instanceof Double) {
+			ret = mix(EMPTY, Double.doubleToLongBits((Double) value));
+		} else if (value instanceof Number) {
+			ret = mix(EMPTY, ((Number) value).longValue());
+		} else if (value instanceof Boolean) {
+			ret = mix(EMPTY, ((Boolean) value) ? 1 : 0);
+		} else if (value instanceof ByteBuffer) {
+			ret = of((ByteBuffer) value);
+		} else if (value instanceof byte[]) {
+			ret = of(ByteBuffer.wrap((byte[]) value));
+		} else if (value instanceof GenericFixed) {
+			ret = of(ByteBuffer.wrap(((GenericFixed) value).bytes()));
+		} else if (value instanceof UriBlob) {
+			// A copy of the original data differs from the field.
+			ret = of(((UriBlob) value).getUri().toString());
+			if (((UriBlob) value).isCopy()) {
+				ret = mix(ret, 1);
+			}
+		} else {
+			// Enum symbols and anything else compare by their text.
+			ret = of(value.toString());
+		}
+		return ret;
+	}
+
+	/**
+	 * Records are held by reference, so a record hashes with the row it is
+	 * stored in. A reference moved to another row with the same values
+	 * then still counts as a change.
+	 * @param record the record to hash
+	 * @return the hash of the row and values of the record
+	 */
+	private static long of(final UriRecord record) {
+		long ret;
+		try {
+			ret = of(record.getInstanceUri().toString());
+		} catch (NotBoundException e) {
+			ret = NULL;
+		}
+		return mix(ret, record.getContentHash());
+	}
+
+	/**
+	 * @param text the text to hash
+	 * @return the hash of the text
+	 */
+	private static long of(final CharSequence text) {
+		long ret = mix(EMPTY, text.length());
+		for (int i = 0; i < text.length(); i++) {
+			ret = (ret ^ text.charAt(i)) * PRIME;
+		}
+		return ret;
+	}
+
+	/**
+	 * @param bytes the bytes to hash, which are left as they are
+	 * @return the hash of the bytes from the position to the limit
+	 */
+	private static long of(final ByteBuffer bytes) {
+		long ret = mix(EMPTY, bytes.remaining());
+		for (int i = bytes.position(); i < bytes.limit(); i++) {
+			ret = (ret ^ (bytes.get(i) & BYTE_MASK)) * PRIME;
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,747 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * Loads and stores the values of one schema. The switch on the type of a
+ * schema is done once when the codec is compiled instead of for every
+ * value, and the codecs for the fields of a record are kept by field
+ * position so records are loaded and saved without looking fields up by
+ * name.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+abstract class FieldCodec {
+
+	/** The number of schemas to keep compiled codecs for. */
+	private static final int CACHE_SIZE = 256;
+
+	/**
+	 * The compiled codecs for schemas which need their schema to load or
+	 * store.
+	 */
+	private static final SchemaCache<FieldCodec> CODECS =
+			new SchemaCache<FieldCodec>(CACHE_SIZE);
+
+	/** The compiled field codecs of record schemas by field position. */
+	private static final SchemaCache<FieldCodec[]> RECORD_CODECS =
+			new SchemaCache<FieldCodec[]>(CACHE_SIZE);
+
+	/** The codec for BOOLEAN values. */
+	private static final FieldCodec BOOLEAN = new BooleanCodec();
+	/** The codec for BYTES and FIXED values. */
+	private static final FieldCodec BLOB = new BlobCodec();
+	/** The codec for DOUBLE values. */
+	private static final FieldCodec DOUBLE = new DoubleCodec();
+	/** The codec for ENUM values. */
+	private static final FieldCodec ENUM = new EnumCodec();
+	/** The codec for FLOAT values. */
+	private static final FieldCodec FLOAT = new FloatCodec();
+	/** The codec for INT values. */
+	private static final FieldCodec INT = new IntCodec();
+	/** The codec for LONG values. */
+	private static final FieldCodec LONG = new LongCodec();
+	/** The codec for NULL values. */
+	private static final FieldCodec NULL = new NullCodec();
+	/** The codec for STRING values. */
+	private static final FieldCodec STRING = new StringCodec();
+
+	/**
+	 * Returns the codec for values of the given schema.
+	 * @param schema the schema for the values
+	 * @return the codec
+	 */
+	static FieldCodec forSchema(final Schema schema) {
+		FieldCodec ret;
+		switch (schema.getType()) {
+		case BOOLEAN:
+			ret = BOOLEAN;
+			break;
+		case BYTES:
+		case FIXED:
+			ret = BLOB;
+			break;
+		case DOUBLE:
+			ret = DOUBLE;
+			break;
+		case ENUM:
+			ret = ENUM;
+			break;
+		case FLOAT:
+			ret = FLOAT;
+			break;
+		case INT:
+			ret = INT;
+			break;
+		case LONG:
+			ret = LONG;
+			break;
+		case NULL:
+			ret = NULL;
+			break;
+		case STRING:
+			ret = STRING;
+			break;
+		case ARRAY:
+		case MAP:
+		case RECORD:
+		case UNION:
+			ret = CODECS.get(schema);
+			if (ret == null) {
+				ret = compile(schema);
+				CODECS.put(schema, ret);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException(
+					"Unsupported type: " + schema);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the codecs for the fields of a record by field position.
+	 * @param schema the schema for the record
+	 * @return the codecs
+	 */
+	static FieldCodec[] forRecord(final Schema schema) {
+		FieldCodec[] ret = RECORD_CODECS.get(schema);
+		if (ret == null) {
+			ret = new FieldCodec[schema.getFields().size()];
+			for (Field field : schema.getFields()) {
+				ret[field.pos()] = forSchema(field.schema());
+			}
+			RECORD_CODECS.put(schema, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Builds the codec for a schema which needs its schema.
+	 * @param schema the schema to build for
+	 * @return the codec
+	 */
+	private static FieldCodec compile(final Schema schema) {
+		FieldCodec ret;
+		switch (schema.getType()) {
+		case ARRAY:
+			ret = new ArrayCodec(schema);
+			break;
+		case MAP:
+			ret = new MapCodec(schema);
+			break;
+		case RECORD:
+			ret = new RecordCodec(schema);
+			break;
+		case UNION:
+			ret = new UnionCodec(schema);
+			break;
+		default:
+			throw new IllegalArgumentException(
+					"Not a compiled type: " + schema);
+		}
+		return ret;
+	}
+
+	/**
+	 * Loads a value from a content provider.
+	 * @param resolver the resolver to load nested data with
+	 * @param rootUri the uri for the row being loaded
+	 * @param cursor the cursor positioned on the row
+	 * @param fieldName the name of the field being loaded
+	 * @param plan the column indexes resolved for the cursor
+	 * @param position the position of the field in the plan
+	 * @param lazy true if arrays, maps and records should be loaded on
+	 * first access instead of now
+	 * @return the loaded value
+	 * @throws NotBoundException if the data is not bound properly
+	 */
+	abstract Object load(ContentResolver resolver, Uri rootUri,
+			Cursor cursor, String fieldName, LoadPlan plan, int position,
+			boolean lazy) throws NotBoundException;
+
+	/**
+	 * Stores a value to a content provider.
+	 * @param batch the batch to add the operations for nested data to
+	 * @param resolver the resolver to store with
+	 * @param rootUri the uri for the row being stored
+	 * @param values the values for the row
+	 * @param fieldName the name of the field
+	 * @param data the value to store
+	 * @return the uri for nested data which was stored or null
+	 * @throws NotBoundException if the data is not bound properly
+	 */
+	abstract Uri store(UriBatch batch, ContentResolver resolver, Uri rootUri,
+			ContentValues values, String fieldName, Object data)
+					throws NotBoundException;
+
+	/**
+	 * Loads a value from a bundle.
+	 * @param saved the bundle to load from
+	 * @param fieldFullName the full name of the field
+	 * @return the loaded value
+	 * @throws NotBoundException if the data is not bound properly
+	 */
+	abstract Object load(Bundle saved, String fieldFullName)
+			throws NotBoundException;
+
+	/**
+	 * Stores a value which is not null to a bundle.
+	 * @param outState the bundle to store to
+	 * @param fieldFullName the full name of the field
+	 * @param data the value to store
+	 * @throws NotBoundException if the data is not bound properly
+	 */
+	abstract void store(Bundle outState, String fieldFullName, Object data)
+			throws NotBoundException;
+
+	/**
+	 * Codec for ARRAY values.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static final class ArrayCodec extends FieldCodec {
+		/** The schema for the arrays. */
+		private final Schema mSchema;
+
+		/**
+		 * @param schema the schema for the arrays
+		 */
+		ArrayCodec(final Schema schema) {
+			mSchema = schema;
+		}
+
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy)
+						throws NotBoundException {
+			final UriArray array = new UriArray(
+					Uri.withAppendedPath(rootUri, fieldName), mSchema);
+			Object ret;
+			if (lazy) {
+				ret = array.loadLazily(resolver, fieldName);
+			} else {
+				ret = array.load(resolver, fieldName);
+			}
+			return ret;
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data)
+						throws NotBoundException {
+			Uri ret = null;
+			if (data != null) {
+				final UriArray array = (UriArray) data;
+				array.save(batch, resolver, fieldName);
+				ret = array.getInstanceUri();
+			} else {
+				// Make sure any old values don't exist
+				new UriArray(Uri.withAppendedPath(rootUri, fieldName),
+						mSchema).delete(resolver);
+			}
+			return ret;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName)
+				throws NotBoundException {
+			return new UriArray(mSchema, saved).load(saved, fieldFullName);
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) throws NotBoundException {
+			((UriArray) data).save(outState, fieldFullName);
+		}
+	}
+
+	/**
+	 * Codec for MAP values.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static final class MapCodec extends FieldCodec {
+		/** The schema for the maps. */
+		private final Schema mSchema;
+
+		/**
+		 * @param schema the schema for the maps
+		 */
+		MapCodec(final Schema schema) {
+			mSchema = schema;
+		}
+
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy)
+						throws NotBoundException {
+			final UriMap map = new UriMap(
+					Uri.withAppendedPath(rootUri, fieldName), mSchema);
+			Object ret;
+			if (lazy) {
+				ret = map.loadLazily(resolver, fieldName);
+			} else {
+				ret = map.load(resolver, fieldName);
+			}
+			return ret;
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data)
+						throws NotBoundException {
+			Uri ret = null;
+			if (data != null) {
+				final UriMap map = (UriMap) data;
+				map.save(batch, resolver, fieldName);
+				ret = map.getInstanceUri();
+			} else {
+				new UriMap(Uri.withAppendedPath(rootUri, fieldName),
+						mSchema).delete(resolver);
+			}
+			return ret;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName)
+				throws NotBoundException {
+			return new UriMap(mSchema, saved).load(saved, fieldFullName);
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) throws NotBoundException {
+			((UriMap) data).save(outState, fieldFullName);
+		}
+	}
+
+	/**
+	 * Codec for RECORD values, which are stored by id.
+	 */
+	private static final class RecordCodec extends FieldCodec {
+		/** The schema for the records. */
+		private final Schema mSchema;
+
+		/**
+		 * @param schema the schema for the records
+		 */
+		RecordCodec(final Schema schema) {
+			mSchema = schema;
+		}
+
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy)
+						throws NotBoundException {
+			Object ret = null;
+			final int recordId = cursor.getInt(plan.getValueIndex(position));
+			if (recordId > 0) {
+				final UriRecord record = new UriRecord(Uri.withAppendedPath(
+						UriDataManager.getRecordUri(rootUri, mSchema),
+						String.valueOf(recordId)), mSchema);
+				if (lazy) {
+					ret = record.loadLazily(resolver);
+				} else {
+					ret = record.load(resolver);
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data)
+						throws NotBoundException {
+			Uri ret = null;
+			if (data != null) {
+				final UriRecord record = (UriRecord) data;
+				record.save(batch, resolver, null);
+				ret = record.getInstanceUri();
+			}
+			return ret;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName)
+				throws NotBoundException {
+			return new UriRecord(mSchema, saved).load(saved, fieldFullName);
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) throws NotBoundException {
+			((UriRecord) data).save(outState, fieldFullName);
+		}
+	}
+
+	/**
+	 * Codec for UNION values.
+	 */
+	private static final class UnionCodec extends FieldCodec {
+		/** The schema for the unions. */
+		private final Schema mSchema;
+
+		/**
+		 * @param schema the schema for the unions
+		 */
+		UnionCodec(final Schema schema) {
+			mSchema = schema;
+		}
+
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy)
+						throws NotBoundException {
+			return new UriUnion(mSchema).load(resolver, rootUri, cursor,
+					fieldName, plan, position, lazy);
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data)
+						throws NotBoundException {
+			if (data != null) {
+				((UriUnion) data).save(batch, resolver, rootUri, values,
+						fieldName);
+			}
+			return null;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName)
+				throws NotBoundException {
+			return new UriUnion(mSchema).load(saved, fieldFullName);
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) throws NotBoundException {
+			((UriUnion) data).save(outState, fieldFullName);
+		}
+	}
+
+	/**
+	 * Codec for BYTES and FIXED values.
+	 */
+	private static final class BlobCodec extends FieldCodec {
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy) {
+			return UriDataManager.loadBlob(cursor, fieldName, plan, rootUri,
+					plan.getValueIndex(position));
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data) {
+			UriDataManager.storeBlob(batch, resolver, rootUri, values,
+					fieldName, data);
+			return null;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName) {
+			return BundleDataManager.loadBlobFromBundle(saved, fieldFullName);
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) {
+			BundleDataManager.storeBlobToBundle(outState, fieldFullName, data);
+		}
+	}
+
+	/**
+	 * Codec for BOOLEAN values.
+	 */
+	private static final class BooleanCodec extends FieldCodec {
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy) {
+			return cursor.getInt(plan.getValueIndex(position)) == 1;
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data) {
+			values.put(fieldName, (Boolean) data);
+			return null;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName) {
+			return saved.getBoolean(fieldFullName);
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) {
+			outState.putBoolean(fieldFullName, (Boolean) data);
+		}
+	}
+
+	/**
+	 * Codec for DOUBLE values.
+	 */
+	private static final class DoubleCodec extends FieldCodec {
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy) {
+			return cursor.getDouble(plan.getValueIndex(position));
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data) {
+			values.put(fieldName, (Double) data);
+			return null;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName) {
+			return saved.getDouble(fieldFullName);
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) {
+			outState.putDouble(fieldFullName, (Double) data);
+		}
+	}
+
+	/**
+	 * Codec for ENUM values, which are stored by ordinal.
+	 */
+	private static final class EnumCodec extends FieldCodec {
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy) {
+			return cursor.getInt(plan.getValueIndex(position));
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data) {
+			values.put(fieldName, (Integer) data);
+			return null;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName) {
+			return saved.getString(fieldFullName);
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) {
+			outState.putInt(fieldFullName, (Integer) data);
+		}
+	}
+
+	/**
+	 * Codec for FLOAT values.
+	 */
+	private static final class FloatCodec extends FieldCodec {
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy) {
+			return cursor.getFloat(plan.getValueIndex(position));
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data) {
+			values.put(fieldName, (Float) data);
+			return null;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName) {
+			return saved.getFloat(fieldFullName);
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) {
+			outState.putFloat(fieldFullName, (Float) data);
+		}
+	}
+
+	/**
+	 * Codec for INT values.
+	 */
+	private static final class IntCodec extends FieldCodec {
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy) {
+			return cursor.getInt(plan.getValueIndex(position));
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data) {
+			values.put(fieldName, (Integer) data);
+			return null;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName) {
+			return saved.getInt(fieldFullName);
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) {
+			outState.putInt(fieldFullName, (Integer) data);
+		}
+	}
+
+	/**
+	 * Codec for LONG values.
+	 */
+	private static final class LongCodec extends FieldCodec {
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy) {
+			return cursor.getLong(plan.getValueIndex(position));
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data) {
+			values.put(fieldName, (Long) data);
+			return null;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName) {
+			return saved.getLong(fieldFullName);
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) {
+			outState.putLong(fieldFullName, (Long) data);
+		}
+	}
+
+	/**
+	 * Codec for NULL values.
+	 */
+	private static final class NullCodec extends FieldCodec {
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy) {
+			return null;
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data) {
+			values.putNull(fieldName);
+			return null;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName) {
+			return null;
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) {
+			// No need to do anything.
+		}
+	}
+
+	/**
+	 * Codec for STRING values.
+	 */
+	private static final class StringCodec extends FieldCodec {
+		@Override
+		Object load(final ContentResolver resolver, final Uri rootUri,
+				final Cursor cursor, final String fieldName,
+				final LoadPlan plan, final int position, final boolean lazy) {
+			return cursor.getString(plan.getValueIndex(position));
+		}
+
+		@Override
+		Uri store(final UriBatch batch, final ContentResolver resolver,
+				final Uri rootUri, final ContentValues values,
+				final String fieldName, final Object data) {
+			values.put(fieldName, (String) data);
+			return null;
+		}
+
+		@Override
+		Object load(final Bundle saved, final String fieldFullName) {
+			return saved.getString(fieldFullName);
+		}
+
+		@Override
+		void store(final Bundle outState, final String fieldFullName,
+				final Object data) {
+			outState.putString(fieldFullName, (String) data);
+		}
+	}
+}
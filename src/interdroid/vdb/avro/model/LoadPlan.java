@@ -0,0 +1,458 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import interdroid.util.DbUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+/**
+ * The cursor column indexes needed to load a set of fields. A plan is
+ * resolved once for a cursor and then used for every row in it, and plans
+ * for records are cached per schema as long as the column layout of the
+ * cursors they are used with stays the same.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class LoadPlan {
+
+	/** The cached plans for record schemas. */
+	private static final Map<Schema, LoadPlan> RECORD_PLANS =
+			Collections.synchronizedMap(new WeakHashMap<Schema, LoadPlan>());
+
+	/** The number of tables to keep projections for. */
+	private static final int CACHE_SIZE = 256;
+
+	/**
+	 * The columns loaded from each table, by the schema of the record in a
+	 * record table or of the array or map in a field table.
+	 */
+	private static final SchemaCache<String[]> PROJECTIONS =
+			new SchemaCache<String[]>(CACHE_SIZE);
+
+	/** The initial capacity of the column map. */
+	private static final int INITIAL_CAPACITY = 16;
+	/** The load factor of the column map. */
+	private static final float LOAD_FACTOR = 0.75f;
+
+	/**
+	 * Does a table have a column, by the uri of the table with row ids
+	 * left out followed by the name of the column.
+	 */
+	private static final Map<String, Boolean> COLUMNS =
+			new LinkedHashMap<String, Boolean>(INITIAL_CAPACITY, LOAD_FACTOR,
+					true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<String, Boolean> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/** A value with no column to load. */
+	private static final int LOAD_NONE = 0;
+	/** A value of which only the length is loaded. */
+	private static final int LOAD_LENGTH = 1;
+	/** A value which is loaded from its column. */
+	private static final int LOAD_VALUE = 2;
+
+	/** The column names the plan was resolved against. */
+	private final String[] mColumns;
+	/** The uri for the table the rows are in or null for a record. */
+	private final Uri mTableUri;
+	/** The index of the id column. */
+	private final int mIdIndex;
+	/** The index of the map key column. */
+	private final int mKeyIndex;
+	/** The index of the value column for each field position. */
+	private final int[] mValueIndex;
+	/** The index of the union type column for each field position. */
+	private final int[] mTypeIndex;
+	/** The index of the union type name column for each field position. */
+	private final int[] mTypeNameIndex;
+	/** The index of the union branch column for each field position. */
+	private final int[] mBranchIndex;
+
+	/**
+	 * Resolves a plan against the given cursor.
+	 * @param tableUri the uri for the table the rows are in or null
+	 * @param cursor the cursor to resolve against
+	 * @param fieldNames the names of the fields by position
+	 * @param keyName the name of the map key column or null
+	 */
+	private LoadPlan(final Uri tableUri, final Cursor cursor,
+			final List<String> fieldNames, final String keyName) {
+		mTableUri = tableUri;
+		mColumns = cursor.getColumnNames();
+		mIdIndex = DbUtil.getFieldIndex(cursor, BaseColumns._ID);
+		if (keyName == null) {
+			mKeyIndex = -1;
+		} else {
+			mKeyIndex = DbUtil.getFieldIndex(cursor, keyName);
+		}
+		mValueIndex = new int[fieldNames.size()];
+		mTypeIndex = new int[fieldNames.size()];
+		mTypeNameIndex = new int[fieldNames.size()];
+		mBranchIndex = new int[fieldNames.size()];
+		for (int i = 0; i < fieldNames.size(); i++) {
+			final String fieldName = fieldNames.get(i);
+			mValueIndex[i] = DbUtil.getFieldIndex(cursor, fieldName);
+			mTypeIndex[i] = DbUtil.getFieldIndex(cursor,
+					NameHelper.getTypeName(fieldName));
+			mTypeNameIndex[i] = DbUtil.getFieldIndex(cursor,
+					NameHelper.getTypeNameName(fieldName));
+			mBranchIndex[i] = DbUtil.getFieldIndex(cursor,
+					NameHelper.getBranchName(fieldName));
+		}
+	}
+
+	/**
+	 * Returns the plan for loading the fields of a record from the rows
+	 * of the given cursor, positioned by field position.
+	 * @param schema the schema for the record
+	 * @param cursor the cursor to load from
+	 * @return the plan
+	 */
+	static LoadPlan forRecord(final Schema schema, final Cursor cursor) {
+		LoadPlan plan = RECORD_PLANS.get(schema);
+		if (plan == null || !plan.matches(cursor)) {
+			final String[] names = new String[schema.getFields().size()];
+			for (Field field : schema.getFields()) {
+				names[field.pos()] = field.name();
+			}
+			plan = new LoadPlan(null, cursor, Arrays.asList(names), null);
+			RECORD_PLANS.put(schema, plan);
+		}
+		return plan;
+	}
+
+	/**
+	 * Returns the plan for loading a single field, at position 0, from the
+	 * rows of an array or map table.
+	 * @param tableUri the uri for the table
+	 * @param fieldName the name of the field
+	 * @param cursor the cursor to load from
+	 * @param keyName the name of the map key column or null
+	 * @return the plan
+	 */
+	static LoadPlan forField(final Uri tableUri, final String fieldName,
+			final Cursor cursor, final String keyName) {
+		return new LoadPlan(tableUri, cursor,
+				Collections.singletonList(fieldName), keyName);
+	}
+
+	/**
+	 * Returns the columns to load the records in a table with. See
+	 * getProjection.
+	 * @param resolver the resolver to look up the columns with
+	 * @param uri a uri in the table
+	 * @param schema the schema for the records
+	 * @return the projection or null to load all columns
+	 */
+	static String[] getRecordProjection(final ContentResolver resolver,
+			final Uri uri, final Schema schema) {
+		String[] ret = PROJECTIONS.get(schema);
+		if (ret == null) {
+			final List<String> names = new ArrayList<String>();
+			final List<Schema> schemas = new ArrayList<Schema>();
+			for (Field field : schema.getFields()) {
+				names.add(field.name());
+				schemas.add(field.schema());
+			}
+			ret = getProjection(resolver, uri, names, schemas, null);
+			if (ret != null) {
+				PROJECTIONS.put(schema, ret);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the columns to load the rows of an array or map table with.
+	 * See getProjection.
+	 * @param resolver the resolver to look up the columns with
+	 * @param tableUri the uri for the table
+	 * @param schema the schema for the array or map
+	 * @param valueSchema the schema for the values in the rows
+	 * @param fieldName the name of the field
+	 * @param keyName the name of the map key column or null
+	 * @return the projection or null to load all columns
+	 */
+	static String[] getFieldProjection(final ContentResolver resolver,
+			final Uri tableUri, final Schema schema, final Schema valueSchema,
+			final String fieldName, final String keyName) {
+		String[] ret = PROJECTIONS.get(schema);
+		if (ret == null) {
+			ret = getProjection(resolver, tableUri,
+					Collections.singletonList(fieldName),
+					Collections.singletonList(valueSchema), keyName);
+			if (ret != null) {
+				PROJECTIONS.put(schema, ret);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Builds the columns to load the given fields with. Only the length
+	 * of BYTES and FIXED data is loaded, which tells null apart, since the
+	 * data itself is read through a UriBlob for its row. This keeps large
+	 * blobs out of the cursor window. Arrays and maps are loaded from
+	 * their own tables so nothing is loaded for them. The columns of the
+	 * table are looked up with a query which matches no rows so columns it
+	 * does not have are not asked for. Tables without an id column are
+	 * loaded whole since blobs can not be read by row from them.
+	 * @param resolver the resolver to look up the columns with
+	 * @param uri a uri in the table
+	 * @param fieldNames the names of the fields
+	 * @param fieldSchemas the schemas of the fields
+	 * @param keyName the name of the map key column or null
+	 * @return the projection or null to load all columns
+	 */
+	private static String[] getProjection(final ContentResolver resolver,
+			final Uri uri, final List<String> fieldNames,
+			final List<Schema> fieldSchemas, final String keyName) {
+		String[] ret = null;
+		final Cursor cursor = resolver.query(uri, null,
+				BaseColumns._ID + " < 0", null, null);
+		try {
+			final Set<String> columns = new HashSet<String>();
+			if (cursor != null) {
+				columns.addAll(Arrays.asList(cursor.getColumnNames()));
+			}
+			if (columns.contains(BaseColumns._ID)) {
+				final List<String> projection = new ArrayList<String>();
+				projection.add(BaseColumns._ID);
+				if (keyName != null) {
+					addColumn(projection, columns, keyName);
+				}
+				for (int i = 0; i < fieldNames.size(); i++) {
+					final String name = fieldNames.get(i);
+					final Schema schema = fieldSchemas.get(i);
+					final int load = getLoad(schema);
+					if (load == LOAD_VALUE) {
+						addColumn(projection, columns, name);
+					} else if (load == LOAD_LENGTH && columns.contains(name)) {
+						projection.add("length(" + name + ") AS " + name);
+					}
+					if (schema.getType() == Schema.Type.UNION) {
+						addColumn(projection, columns,
+								NameHelper.getTypeName(name));
+						addColumn(projection, columns,
+								NameHelper.getTypeNameName(name));
+						addColumn(projection, columns,
+								NameHelper.getBranchName(name));
+					}
+				}
+				ret = projection.toArray(new String[projection.size()]);
+			}
+		} finally {
+			UriDataManager.safeClose(cursor);
+		}
+		return ret;
+	}
+
+	/**
+	 * Checks if the table holding the given uri has a column. The answer
+	 * is looked up once for each table and column.
+	 * @param resolver the resolver to look up the columns with
+	 * @param uri a uri in the table
+	 * @param column the name of the column
+	 * @return true if the table has the column
+	 */
+	static boolean hasColumn(final ContentResolver resolver, final Uri uri,
+			final String column) {
+		final StringBuilder key = new StringBuilder();
+		key.append(uri.getAuthority());
+		for (String segment : uri.getPathSegments()) {
+			key.append('/');
+			if (TextUtils.isDigitsOnly(segment)) {
+				key.append('#');
+			} else {
+				key.append(segment);
+			}
+		}
+		key.append(' ').append(column);
+		Boolean ret;
+		synchronized (COLUMNS) {
+			ret = COLUMNS.get(key.toString());
+		}
+		if (ret == null) {
+			final Cursor cursor = resolver.query(uri, null,
+					BaseColumns._ID + " < 0", null, null);
+			try {
+				ret = cursor != null && cursor.getColumnIndex(column) >= 0;
+			} finally {
+				UriDataManager.safeClose(cursor);
+			}
+			synchronized (COLUMNS) {
+				COLUMNS.put(key.toString(), ret);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds a column to a projection if the table has it.
+	 * @param projection the projection to add to
+	 * @param columns the columns of the table
+	 * @param name the name of the column
+	 */
+	private static void addColumn(final List<String> projection,
+			final Set<String> columns, final String name) {
+		if (columns.contains(name)) {
+			projection.add(name);
+		}
+	}
+
+	/**
+	 * @param schema the schema for a value
+	 * @return how the column for the value is loaded
+	 */
+	private static int getLoad(final Schema schema) {
+		int ret;
+		switch (schema.getType()) {
+		case ARRAY:
+		case MAP:
+			ret = LOAD_NONE;
+			break;
+		case BYTES:
+		case FIXED:
+			ret = LOAD_LENGTH;
+			break;
+		case UNION:
+			// The column holds the value of any branch.
+			ret = LOAD_NONE;
+			for (Schema branch : schema.getTypes()) {
+				if (branch.getType() != Schema.Type.NULL) {
+					ret = Math.max(ret, getLoad(branch));
+				}
+			}
+			break;
+		default:
+			ret = LOAD_VALUE;
+		}
+		return ret;
+	}
+
+	/**
+	 * @param cursor the cursor to check
+	 * @return true if this plan was resolved against the same columns
+	 */
+	private boolean matches(final Cursor cursor) {
+		final String[] columns = cursor.getColumnNames();
+		return columns == mColumns || Arrays.equals(columns, mColumns);
+	}
+
+	/**
+	 * @param rootUri the uri the data is being loaded from
+	 * @param cursor the cursor positioned on a row
+	 * @return the uri for the row or null if it is not known
+	 */
+	Uri getRowUri(final Uri rootUri, final Cursor cursor) {
+		Uri ret;
+		if (mTableUri == null) {
+			ret = rootUri;
+		} else if (mIdIndex >= 0) {
+			ret = ContentUris.withAppendedId(mTableUri,
+					cursor.getLong(mIdIndex));
+		} else {
+			ret = null;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the index of the id column or -1 if there is none
+	 */
+	int getIdIndex() {
+		return mIdIndex;
+	}
+
+	/**
+	 * @return the index of the map key column or -1 if there is none
+	 */
+	int getKeyIndex() {
+		return mKeyIndex;
+	}
+
+	/**
+	 * @param position the position of the field
+	 * @return the index of the value column for the field
+	 */
+	int getValueIndex(final int position) {
+		return mValueIndex[position];
+	}
+
+	/**
+	 * @param position the position of the field
+	 * @return the index of the union type column for the field
+	 */
+	int getTypeIndex(final int position) {
+		return mTypeIndex[position];
+	}
+
+	/**
+	 * @param position the position of the field
+	 * @return the index of the union type name column for the field
+	 */
+	int getTypeNameIndex(final int position) {
+		return mTypeNameIndex[position];
+	}
+
+	/**
+	 * @param position the position of the field
+	 * @return the index of the union branch column for the field
+	 */
+	int getBranchIndex(final int position) {
+		return mBranchIndex[position];
+	}
+}
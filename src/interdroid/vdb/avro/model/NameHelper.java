@@ -68,6 +68,12 @@ final class NameHelper {
 	/** The uri name suffix. */
 	private static final String SUFFIX_URI_NAME =
 			AvroContentProvider.TYPE_URI_COLUMN_NAME;
+	/** The null positions suffix. */
+	private static final String SUFFIX_NULLS =
+			SEPARATOR + "nulls";
+	/** The union branch suffix. */
+	private static final String SUFFIX_BRANCH =
+			SEPARATOR + "branch";
 
 	/**
 	 * @param dataFullName the full name of the data type
@@ -144,6 +150,22 @@ final class NameHelper {
 		return fieldName + SUFFIX_TYPE_NAME;
 	}
 
+	/**
+	 * @param fieldFullName the full field name
+	 * @return the name for the positions of null elements in the field
+	 */
+	static String getNullsName(final String fieldFullName) { // NOPMD by nick
+		return fieldFullName + SUFFIX_NULLS;
+	}
+
+	/**
+	 * @param fieldName the full field name
+	 * @return the union branch ordinal field for the field
+	 */
+	static String getBranchName(final String fieldName) { // NOPMD by nick
+		return fieldName + SUFFIX_BRANCH;
+	}
+
 	/**
 	 * @param fieldName the full field name
 	 * @return the uri name for the field
@@ -0,0 +1,837 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import interdroid.vdb.content.EntityUriMatcher;
+import interdroid.vdb.content.avro.AvroProviderRegistry;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.apache.avro.Schema.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Looper;
+import android.os.MessageQueue.IdleHandler;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+/**
+ * Deletes nested record rows nothing refers to any more. Records are
+ * inserted as soon as they are created in an editor, so they are left
+ * behind when the edit is discarded or the element holding them is
+ * removed. The collector marks every row reachable from the root tables
+ * of a checkout and then sweeps the unmarked rows of the nested record
+ * tables in batches, together with the rows reachable from them.
+ * <p>
+ * Marking a large checkout may take longer than the budget of one
+ * collection, so it is carried on by the next collection. Records found
+ * while marking are visited a page per table at a time. Records written
+ * while a marking is in progress are visited again before anything is
+ * swept, so rows they came to refer to are not taken to be unreachable.
+ * <p>
+ * Nested record tables are shared by every root type which holds the
+ * same record type, so the root types are taken from the schema of the
+ * provider serving the checkout, not from the lists which happen to have
+ * been opened. Checkouts whose provider schema can not be found are not
+ * collected.
+ * <p>
+ * Only rows which already existed when the previous marking started are
+ * swept, so records inserted by an editor which has not yet saved the
+ * record referring to them are left alone. The first marking in a
+ * process therefore only records where the tables end.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class OrphanCollector {
+	/** Access to logger. */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(OrphanCollector.class);
+
+	/** The default number of milliseconds a collection may take. */
+	public static final long DEFAULT_BUDGET = 2000;
+
+	/** The number of row ids read per query. */
+	private static final int PAGE_SIZE = 500;
+
+	/**
+	 * The checkouts to collect with the root schemas registered for them
+	 * by name, which are added to those of the provider.
+	 */
+	private static final Map<Uri, Map<String, Schema>> ROOTS =
+			new LinkedHashMap<Uri, Map<String, Schema>>();
+
+	/** The last id each nested table held when a marking started. */
+	private static final Map<Uri, Long> WATERMARKS = new HashMap<Uri, Long>();
+
+	/** The markings which have not finished by checkout. */
+	private static final Map<Uri, Marking> MARKINGS =
+			new HashMap<Uri, Marking>();
+
+	/** The thread collections run on. */
+	private static final ExecutorService EXECUTOR =
+			Executors.newSingleThreadExecutor();
+
+	/** Is a collection waiting for an idle moment or running. */
+	private static final AtomicBoolean SCHEDULED = new AtomicBoolean();
+
+	/** The context to find provider schemas with. */
+	private final Context mContext;
+	/** The resolver to collect with. */
+	private final ContentResolver mResolver;
+	/** The number of milliseconds the collection may take. */
+	private final long mBudget;
+	/** The time at which the collection has to stop. */
+	private long mDeadline;
+
+	/** The number of rows found to be reachable. */
+	private long mMarked;
+	/** The number of nested rows checked. */
+	private long mScanned;
+	/** The number of rows deleted. */
+	private long mReclaimed;
+	/** The number of tables swept completely. */
+	private int mTables;
+	/** Did the collection run out of time. */
+	private boolean mExpired;
+
+	/**
+	 * The result of a collection.
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	public static final class Result {
+		/** The number of rows found to be reachable. */
+		private final long mMarked;
+		/** The number of nested rows checked. */
+		private final long mScanned;
+		/** The number of rows deleted. */
+		private final long mReclaimed;
+		/** The number of tables swept completely. */
+		private final int mTables;
+		/** The time the collection took in milliseconds. */
+		private final long mElapsed;
+		/** Did the collection finish within its budget. */
+		private final boolean mComplete;
+
+		/**
+		 * Construct a result.
+		 * @param collector the collector which finished
+		 * @param elapsed the time the collection took in milliseconds
+		 */
+		private Result(final OrphanCollector collector, final long elapsed) {
+			mMarked = collector.mMarked;
+			mScanned = collector.mScanned;
+			mReclaimed = collector.mReclaimed;
+			mTables = collector.mTables;
+			mElapsed = elapsed;
+			mComplete = !collector.mExpired;
+		}
+
+		/**
+		 * @return the number of rows found to be reachable
+		 */
+		public long getMarkedCount() {
+			return mMarked;
+		}
+
+		/**
+		 * @return the number of nested rows checked
+		 */
+		public long getScannedCount() {
+			return mScanned;
+		}
+
+		/**
+		 * @return the number of rows deleted, including the rows of
+		 * arrays and maps held by deleted records
+		 */
+		public long getReclaimedCount() {
+			return mReclaimed;
+		}
+
+		/**
+		 * @return the number of tables swept completely
+		 */
+		public int getTableCount() {
+			return mTables;
+		}
+
+		/**
+		 * @return the time the collection took in milliseconds
+		 */
+		public long getElapsed() {
+			return mElapsed;
+		}
+
+		/**
+		 * @return true if the collection finished within its budget
+		 */
+		public boolean isComplete() {
+			return mComplete;
+		}
+
+		@Override
+		public String toString() {
+			String ret = String.format("%d rows reclaimed, %d scanned,"
+					+ " %d reachable, %d tables swept in %d ms", mReclaimed,
+					mScanned, mMarked, mTables, mElapsed);
+			if (!mComplete) {
+				ret += " (out of time)";
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Marks the record rows reachable from the root tables of a checkout.
+	 * Records are marked when they are found and the rows reachable from
+	 * them are visited later, together with the other records found in
+	 * the same table, so the marking can stop between any two steps and
+	 * go on where it stopped.
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	private static final class Marking extends RowWalker {
+		/** The uri of the checkout. */
+		private final Uri mCheckoutUri;
+		/** The names of the root schemas in the order they are marked. */
+		private final List<String> mRootNames = new ArrayList<String>();
+		/** The root tables in the order they are marked. */
+		private final List<Uri> mRootTables = new ArrayList<Uri>();
+		/** The nested record tables with the schema for their records. */
+		private final Map<Uri, Schema> mTables;
+		/** The last id each nested table held when marking started. */
+		private final Map<Uri, Long> mEnds;
+		/** The schema for the records of each table. */
+		private final Map<String, Schema> mSchemas =
+				new HashMap<String, Schema>();
+		/** The ids marked for each table. */
+		private final Map<String, BitSet> mMarks =
+				new HashMap<String, BitSet>();
+		/** The ids marked for each table whose rows are not visited yet. */
+		private final Map<String, BitSet> mPending =
+				new LinkedHashMap<String, BitSet>();
+		/** The records written since they were visited. */
+		private final Set<Uri> mWritten = new LinkedHashSet<Uri>();
+		/** The position of the root table being visited. */
+		private int mRoot;
+		/** The last id visited in that table. */
+		private long mLast;
+		/** The root table a page is being visited of or null. */
+		private String mVisiting;
+		/** The number of rows marked. */
+		private long mMarked;
+
+		/**
+		 * @param resolver the resolver to query with
+		 * @param checkoutUri the uri of the checkout
+		 * @param roots the schemas for the root tables
+		 * @param tables the nested record tables with their schema
+		 * @param ends the last id each nested table holds
+		 */
+		Marking(final ContentResolver resolver, final Uri checkoutUri,
+				final List<Schema> roots, final Map<Uri, Schema> tables,
+				final Map<Uri, Long> ends) {
+			super(resolver);
+			mCheckoutUri = checkoutUri;
+			mTables = tables;
+			mEnds = ends;
+			for (Map.Entry<Uri, Schema> entry : tables.entrySet()) {
+				mSchemas.put(entry.getKey().toString(), entry.getValue());
+			}
+			for (Schema root : roots) {
+				final Uri table =
+						Uri.withAppendedPath(checkoutUri, root.getName());
+				mRootNames.add(root.getName());
+				mRootTables.add(table);
+				mSchemas.put(table.toString(), root);
+			}
+		}
+
+		/**
+		 * @param roots the schemas for the root tables
+		 * @return true if the marking is for the same root tables
+		 */
+		boolean isFor(final List<Schema> roots) {
+			boolean ret = roots.size() == mRootNames.size();
+			for (int i = 0; ret && i < roots.size(); i++) {
+				ret = roots.get(i).getName().equals(mRootNames.get(i));
+			}
+			return ret;
+		}
+
+		/**
+		 * @return the nested record tables with the schema for their
+		 * records
+		 */
+		Map<Uri, Schema> getTables() {
+			return mTables;
+		}
+
+		/**
+		 * @param table the uri of a nested table
+		 * @return the last id the table held when marking started
+		 */
+		long getEnd(final Uri table) {
+			return mEnds.get(table);
+		}
+
+		/**
+		 * @return the number of rows marked so far
+		 */
+		long getMarked() {
+			return mMarked;
+		}
+
+		/**
+		 * @param table the uri of a table
+		 * @return the ids marked in the table
+		 */
+		BitSet getMarks(final Uri table) {
+			BitSet ret = mMarks.get(table.toString());
+			if (ret == null) {
+				ret = new BitSet();
+			}
+			return ret;
+		}
+
+		/**
+		 * Notes that a row of the checkout was written. The record it
+		 * belongs to is visited again. Must hold the MARKINGS lock.
+		 * @param uri the uri of the row, field or table written
+		 */
+		void noteWritten(final Uri uri) {
+			final List<String> segments = uri.getPathSegments();
+			final int at = mCheckoutUri.getPathSegments().size();
+			if (segments.size() > at + 1
+					&& TextUtils.isDigitsOnly(segments.get(at + 1))) {
+				mWritten.add(ContentUris.withAppendedId(
+						Uri.withAppendedPath(mCheckoutUri, segments.get(at)),
+						Long.parseLong(segments.get(at + 1))));
+			}
+		}
+
+		/**
+		 * @return true if records were written since they were visited
+		 */
+		boolean hasWritten() {
+			synchronized (MARKINGS) {
+				return !mWritten.isEmpty();
+			}
+		}
+
+		/**
+		 * Takes the next step in marking: visiting a record which was
+		 * written, the records found in a table or a page of a root table.
+		 * @return false if all rows reachable have been marked
+		 */
+		boolean step() {
+			boolean ret = true;
+			Uri written = null;
+			synchronized (MARKINGS) {
+				final Iterator<Uri> it = mWritten.iterator();
+				if (it.hasNext()) {
+					written = it.next();
+					it.remove();
+				}
+			}
+			if (written != null) {
+				visitAgain(written);
+			} else if (!mPending.isEmpty()) {
+				visitPending();
+			} else if (mRoot < mRootTables.size()) {
+				final Uri table = mRootTables.get(mRoot);
+				mVisiting = table.toString();
+				mLast = visitPage(table, mSchemas.get(mVisiting), mLast);
+				mVisiting = null;
+				if (mLast < 0) {
+					mRoot++;
+					mLast = 0;
+				}
+			} else {
+				ret = false;
+			}
+			return ret;
+		}
+
+		/**
+		 * Marks a record which was written and has its rows visited again.
+		 * @param uri the uri of the record
+		 */
+		private void visitAgain(final Uri uri) {
+			final String path = uri.toString();
+			final String table = path.substring(0, path.lastIndexOf('/'));
+			if (mSchemas.containsKey(table)) {
+				final int id = (int) ContentUris.parseId(uri);
+				final BitSet marks = getBits(mMarks, table);
+				if (!marks.get(id)) {
+					marks.set(id);
+					mMarked++;
+				}
+				forgetCollections(uri);
+				getBits(mPending, table).set(id);
+			}
+		}
+
+		/**
+		 * Visits the rows of a page of the records found in one table.
+		 */
+		private void visitPending() {
+			final Map.Entry<String, BitSet> entry =
+					mPending.entrySet().iterator().next();
+			final BitSet pending = entry.getValue();
+			final List<Long> ids = new ArrayList<Long>();
+			for (int id = pending.nextSetBit(0);
+					id >= 0 && ids.size() < getPageSize();
+					id = pending.nextSetBit(id + 1)) {
+				ids.add((long) id);
+				pending.clear(id);
+			}
+			if (pending.isEmpty()) {
+				mPending.remove(entry.getKey());
+			}
+			visitRecords(Uri.parse(entry.getKey()),
+					mSchemas.get(entry.getKey()), ids);
+		}
+
+		/**
+		 * @param bits the bits by table
+		 * @param table the uri of a table
+		 * @return the bits for the table, added if there were none
+		 */
+		private static BitSet getBits(final Map<String, BitSet> bits,
+				final String table) {
+			BitSet ret = bits.get(table);
+			if (ret == null) {
+				ret = new BitSet();
+				bits.put(table, ret);
+			}
+			return ret;
+		}
+
+		@Override
+		boolean enterRecord(final Uri uri) {
+			final String path = uri.toString();
+			final String table = path.substring(0, path.lastIndexOf('/'));
+			final BitSet marks = getBits(mMarks, table);
+			final int id = (int) ContentUris.parseId(uri);
+			boolean ret = false;
+			// A record already marked has been or will be visited.
+			if (!marks.get(id)) {
+				marks.set(id);
+				mMarked++;
+				// The rows of the root table a page is visited of are
+				// visited with the page, others with their table.
+				ret = table.equals(mVisiting);
+				if (!ret && mSchemas.containsKey(table)) {
+					getBits(mPending, table).set(id);
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		void leaveRecord(final Uri uri) {
+			// Nothing to do once a record is marked
+		}
+
+		@Override
+		void leaveCollection(final Uri uri) {
+			// Collections are deleted with the records holding them
+		}
+	}
+
+	/**
+	 * Construct a collector.
+	 * @param context the context to find provider schemas and the
+	 * resolver with
+	 * @param budget the number of milliseconds a collection may take
+	 */
+	public OrphanCollector(final Context context, final long budget) {
+		mContext = context;
+		mResolver = context.getContentResolver();
+		mBudget = budget;
+	}
+
+	/**
+	 * Registers a checkout to collect together with a schema whose records
+	 * are kept in a table in its root. The root types of the provider
+	 * serving the checkout are always included, registered schemas add
+	 * root tables the provider schema does not name.
+	 * @param checkoutUri the uri of the checkout
+	 * @param schema the schema for the records in the root table
+	 */
+	public static void register(final Uri checkoutUri, final Schema schema) {
+		synchronized (ROOTS) {
+			Map<String, Schema> roots = ROOTS.get(checkoutUri);
+			if (roots == null) {
+				roots = new LinkedHashMap<String, Schema>();
+				ROOTS.put(checkoutUri, roots);
+			}
+			roots.put(schema.getName(), schema);
+		}
+	}
+
+	/**
+	 * Schedules a collection with the default budget on a background
+	 * thread once the message queue of the calling thread is idle. Nothing
+	 * is scheduled if a collection is already waiting or running. Must be
+	 * called on a thread with a looper.
+	 * @param context the context to collect with
+	 */
+	public static void scheduleWhenIdle(final Context context) {
+		final Context application = context.getApplicationContext();
+		if (SCHEDULED.compareAndSet(false, true)) {
+			Looper.myQueue().addIdleHandler(new IdleHandler() {
+				@Override
+				public boolean queueIdle() {
+					EXECUTOR.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								LOG.info("Collected orphans: {}",
+										new OrphanCollector(application,
+												DEFAULT_BUDGET).collect());
+							} catch (IllegalStateException e) {
+								LOG.warn("Orphan collection failed.", e);
+							} finally {
+								SCHEDULED.set(false);
+							}
+						}
+					});
+					return false;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Tells the markings in progress that a row was written, so the record
+	 * it belongs to is visited again before anything is swept. Rows only
+	 * come to refer to other rows by being written.
+	 * @param uri the uri of the row, field or table written
+	 */
+	static void noteWrite(final Uri uri) {
+		synchronized (MARKINGS) {
+			if (!MARKINGS.isEmpty()) {
+				final Marking marking = MARKINGS.get(
+						EntityUriMatcher.getMatch(uri).getCheckoutUri());
+				if (marking != null) {
+					marking.noteWritten(uri);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Collects the unreachable rows of every registered checkout until
+	 * the budget runs out.
+	 * @return the result of the collection
+	 */
+	public Result collect() {
+		final long start = System.currentTimeMillis();
+		mDeadline = start + mBudget;
+		final Map<Uri, List<Schema>> roots =
+				new LinkedHashMap<Uri, List<Schema>>();
+		synchronized (ROOTS) {
+			for (Map.Entry<Uri, Map<String, Schema>> entry
+					: ROOTS.entrySet()) {
+				roots.put(entry.getKey(),
+						new ArrayList<Schema>(entry.getValue().values()));
+			}
+		}
+		for (Map.Entry<Uri, List<Schema>> entry : roots.entrySet()) {
+			final Schema schema = AvroProviderRegistry.getSchema(mContext,
+					entry.getKey());
+			if (schema == null) {
+				LOG.warn("No provider schema, not collecting: {}",
+						entry.getKey());
+			} else if (!mExpired) {
+				collect(entry.getKey(), getRoots(schema, entry.getValue()));
+			}
+		}
+		return new Result(this, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Returns every root type of a provider. The schema of a provider is
+	 * either the record type of its root table or a union of them.
+	 * @param schema the schema of the provider
+	 * @param registered the root schemas registered for the checkout
+	 * @return the schemas of the root tables by name
+	 */
+	private static List<Schema> getRoots(final Schema schema,
+			final List<Schema> registered) {
+		final Map<String, Schema> roots = new LinkedHashMap<String, Schema>();
+		if (schema.getType() == Type.UNION) {
+			for (Schema branch : schema.getTypes()) {
+				if (branch.getType() == Type.RECORD) {
+					roots.put(branch.getName(), branch);
+				}
+			}
+		} else if (schema.getType() == Type.RECORD) {
+			roots.put(schema.getName(), schema);
+		}
+		for (Schema root : registered) {
+			if (!roots.containsKey(root.getName())) {
+				roots.put(root.getName(), root);
+			}
+		}
+		return new ArrayList<Schema>(roots.values());
+	}
+
+	/**
+	 * @return true if the budget has run out
+	 */
+	private boolean isExpired() {
+		return System.currentTimeMillis() >= mDeadline;
+	}
+
+	/**
+	 * Collects the unreachable rows of one checkout. The marking left by
+	 * the previous collection is carried on. Nothing is swept unless every
+	 * root table was marked completely.
+	 * @param checkoutUri the uri of the checkout
+	 * @param roots the schemas for the root tables
+	 */
+	private void collect(final Uri checkoutUri, final List<Schema> roots) {
+		Marking marking;
+		synchronized (MARKINGS) {
+			marking = MARKINGS.get(checkoutUri);
+		}
+		if (marking == null || !marking.isFor(roots)) {
+			marking = startMarking(checkoutUri, roots);
+		}
+		final long marked = marking.getMarked();
+
+		final CascadeDelete delete = new CascadeDelete(mResolver, checkoutUri);
+		boolean swept = false;
+		while (!swept && !mExpired) {
+			if (marking.step()) {
+				mExpired = isExpired();
+			} else {
+				swept = sweep(marking, delete);
+			}
+		}
+		delete.flush();
+		mReclaimed += delete.getDeleted();
+		mMarked += marking.getMarked() - marked;
+		if (swept) {
+			synchronized (MARKINGS) {
+				MARKINGS.remove(checkoutUri);
+			}
+		}
+	}
+
+	/**
+	 * Starts marking a checkout.
+	 * @param checkoutUri the uri of the checkout
+	 * @param roots the schemas for the root tables
+	 * @return the marking
+	 */
+	private Marking startMarking(final Uri checkoutUri,
+			final List<Schema> roots) {
+		final Map<Uri, Schema> tables = new LinkedHashMap<Uri, Schema>();
+		for (Schema root : roots) {
+			for (Field field : root.getFields()) {
+				addTables(checkoutUri, field.schema(), tables);
+			}
+		}
+		for (Schema root : roots) {
+			tables.remove(Uri.withAppendedPath(checkoutUri, root.getName()));
+		}
+		// Rows after these were inserted while marking and may not be
+		// referred to yet. They are left for the next collection.
+		final Map<Uri, Long> ends = new HashMap<Uri, Long>();
+		for (Uri table : tables.keySet()) {
+			ends.put(table, getLastId(table));
+		}
+		final Marking ret = new Marking(mResolver, checkoutUri, roots,
+				tables, ends);
+		synchronized (MARKINGS) {
+			MARKINGS.put(checkoutUri, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Sweeps the nested tables once marking is done. Tables are only
+	 * swept once a marking has finished before, up to where they ended
+	 * when it started.
+	 * @param marking the finished marking
+	 * @param delete the delete to add the rows to
+	 * @return true if every table was swept, false if the budget ran out
+	 * or records were written, which have to be marked first
+	 */
+	private boolean sweep(final Marking marking, final CascadeDelete delete) {
+		boolean ret = true;
+		int tables = 0;
+		for (Map.Entry<Uri, Schema> entry : marking.getTables().entrySet()) {
+			Long watermark;
+			synchronized (WATERMARKS) {
+				watermark = WATERMARKS.get(entry.getKey());
+			}
+			if (ret && watermark != null) {
+				ret = sweep(entry.getKey(), entry.getValue(), marking,
+						watermark, delete);
+				tables++;
+			}
+		}
+		if (ret) {
+			mTables += tables;
+			synchronized (WATERMARKS) {
+				for (Uri table : marking.getTables().keySet()) {
+					WATERMARKS.put(table, marking.getEnd(table));
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds the tables holding the records nested in a schema.
+	 * @param checkoutUri the uri of the checkout
+	 * @param schema the schema to add the nested record tables of
+	 * @param tables the tables found so far with their schema
+	 */
+	private static void addTables(final Uri checkoutUri, final Schema schema,
+			final Map<Uri, Schema> tables) {
+		switch (schema.getType()) {
+		case RECORD:
+			final Uri table = UriDataManager.getRecordUri(checkoutUri, schema);
+			if (!tables.containsKey(table)) {
+				tables.put(table, schema);
+				for (Field field : schema.getFields()) {
+					addTables(checkoutUri, field.schema(), tables);
+				}
+			}
+			break;
+		case ARRAY:
+			addTables(checkoutUri, schema.getElementType(), tables);
+			break;
+		case MAP:
+			addTables(checkoutUri, schema.getValueType(), tables);
+			break;
+		case UNION:
+			for (Schema branch : schema.getTypes()) {
+				addTables(checkoutUri, branch, tables);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @param table the uri of a table
+	 * @return the highest id in the table or zero if it is empty
+	 */
+	private long getLastId(final Uri table) {
+		long ret = 0;
+		final Cursor cursor = mResolver.query(table,
+				new String[] {BaseColumns._ID}, null, null,
+				BaseColumns._ID + " DESC LIMIT 1");
+		try {
+			if (cursor != null && cursor.moveToFirst()) {
+				ret = cursor.getLong(0);
+			}
+		} finally {
+			UriDataManager.safeClose(cursor);
+		}
+		return ret;
+	}
+
+	/**
+	 * Deletes the unmarked rows of a table up to the watermark together
+	 * with the rows reachable from them. The ids are read a page at a time.
+	 * Stops if a record is written, as it may refer to rows not marked.
+	 * @param table the uri of the table
+	 * @param schema the schema for the records in the table
+	 * @param marking the marking of the reachable rows
+	 * @param watermark the highest id which may be deleted
+	 * @param delete the delete to add the rows to
+	 * @return true if the whole table was swept within the budget
+	 */
+	private boolean sweep(final Uri table, final Schema schema,
+			final Marking marking, final long watermark,
+			final CascadeDelete delete) {
+		final String[] projection = new String[] {BaseColumns._ID};
+		final BitSet marks = marking.getMarks(table);
+		long last = 0;
+		int read;
+		boolean written;
+		do {
+			read = 0;
+			final Cursor cursor = mResolver.query(table, projection,
+					BaseColumns._ID + " > ? AND " + BaseColumns._ID + " <= ?",
+					new String[] {String.valueOf(last),
+						String.valueOf(watermark)},
+					BaseColumns._ID + " LIMIT " + PAGE_SIZE);
+			try {
+				while (cursor != null && cursor.moveToNext()) {
+					last = cursor.getLong(0);
+					if (!marks.get((int) last)) {
+						delete.visitRecord(
+								ContentUris.withAppendedId(table, last),
+								schema);
+					}
+					mScanned++;
+					read++;
+				}
+			} finally {
+				UriDataManager.safeClose(cursor);
+			}
+			mExpired = isExpired();
+			written = marking.hasWritten();
+		} while (read == PAGE_SIZE && !mExpired && !written);
+		LOG.debug("Swept {} up to {}", table, last);
+		return !mExpired && !written;
+	}
+}
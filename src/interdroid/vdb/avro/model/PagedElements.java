@@ -0,0 +1,865 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import interdroid.vdb.content.EntityUriMatcher;
+import interdroid.vdb.content.EntityUriMatcher.UriMatch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * Holds the elements of a large array without loading all of them. The
+ * rows in the provider form the base of the array. Only a window of one
+ * page of base rows is loaded at a time, by position. Changes are kept as
+ * a list of pieces which are either runs of base rows or single values,
+ * so the memory used depends on the number of edits and not on the
+ * number of elements. A copy of the pieces kept as the original of the
+ * array reads the base rows until the provider changes them, and keeps
+ * them in memory from then on.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class PagedElements {
+	/** Access to logger. */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(PagedElements.class);
+
+	/** The base position used for values which are not stored in a row. */
+	private static final int NO_BASE = -1;
+
+	/**
+	 * The originals which still read their base rows from the provider.
+	 * Their rows are kept in memory before the provider changes them.
+	 */
+	private static final Map<PagedElements, Boolean> ORIGINALS =
+			new WeakHashMap<PagedElements, Boolean>();
+
+	/**
+	 * A piece of the array. Either a run of base rows, possibly reversed,
+	 * or a single value which may replace the value of one base row.
+	 */
+	private static final class Piece {
+		/** The first base position of the run or the replaced row. */
+		private final int mBase;
+		/** The number of elements in the piece. */
+		private final int mCount;
+		/** Is the run in reverse base order. */
+		private final boolean mReversed;
+		/** Is this a single value rather than a run. */
+		private final boolean mIsValue;
+		/** The value if this is a single value. */
+		private Object mValue;
+
+		/**
+		 * Construct a run of base rows.
+		 * @param base the first base position
+		 * @param count the number of rows
+		 * @param reversed is the run in reverse order
+		 */
+		Piece(final int base, final int count, final boolean reversed) {
+			mBase = base;
+			mCount = count;
+			mReversed = reversed;
+			mIsValue = false;
+		}
+
+		/**
+		 * Construct a single value.
+		 * @param base the base position of the row it replaces or NO_BASE
+		 * @param value the value
+		 */
+		Piece(final int base, final Object value) {
+			mBase = base;
+			mCount = 1;
+			mReversed = false;
+			mIsValue = true;
+			mValue = value;
+		}
+
+		/**
+		 * @param offset the offset into the run
+		 * @return the base position of the element at the offset
+		 */
+		int getBase(final int offset) {
+			int ret;
+			if (mReversed) {
+				ret = mBase + mCount - 1 - offset;
+			} else {
+				ret = mBase + offset;
+			}
+			return ret;
+		}
+
+		/**
+		 * @param from the first offset into the run
+		 * @param count the number of elements
+		 * @return a run with the given part of this run
+		 */
+		Piece slice(final int from, final int count) {
+			int base;
+			if (mReversed) {
+				base = getBase(from + count - 1);
+			} else {
+				base = getBase(from);
+			}
+			return new Piece(base, count, mReversed);
+		}
+	}
+
+	/** The resolver to load with. */
+	private final ContentResolver mResolver;
+	/** The field the array is stored in. */
+	private final String mFieldName;
+	/** The codec for the elements. */
+	private final FieldCodec mCodec;
+	/** The columns to load a page with or null for all columns. */
+	private final String[] mProjection;
+	/** The number of base rows loaded at a time. */
+	private final int mPageSize;
+
+	/** The uri the base rows are stored under. */
+	private Uri mBaseUri;
+	/** The number of base rows. */
+	private int mBaseCount;
+	/** The pieces making up the array in order. */
+	private final List<Piece> mPieces = new ArrayList<Piece>();
+	/** The number of elements. */
+	private int mSize;
+	/** Have the pieces changed since the base was loaded. */
+	private boolean mChanged;
+	/** Do all elements have to be written to new rows. */
+	private boolean mRewrite;
+	/** The position of the first element of the piece last found. */
+	private int mFound;
+
+	/** Base elements with changes which were dropped from the window. */
+	private final Map<Integer, Object> mModified =
+			new HashMap<Integer, Object>();
+	/** The base position of the first row in the window or NO_BASE. */
+	private int mWindowStart = NO_BASE;
+	/** The number of rows in the window. */
+	private int mWindowCount;
+	/** The elements in the window. */
+	private final Object[] mWindow;
+	/** The row ids of the elements in the window. */
+	private final long[] mWindowIds;
+	/**
+	 * The elements of the base rows as they were before the provider
+	 * changed them, or null while they are read from the provider.
+	 */
+	private Object[] mKeptBase;
+
+	/**
+	 * Construct elements backed by the rows under the given uri.
+	 * @param resolver the resolver to load with
+	 * @param uri the uri of the rows
+	 * @param fieldName the field the array is stored in
+	 * @param codec the codec for the elements
+	 * @param projection the columns to load a page with or null
+	 * @param count the number of rows
+	 * @param pageSize the number of rows to load at a time
+	 */
+	PagedElements(final ContentResolver resolver, final Uri uri,
+			final String fieldName, final FieldCodec codec,
+			final String[] projection, final int count, final int pageSize) {
+		mResolver = resolver;
+		mFieldName = fieldName;
+		mCodec = codec;
+		mProjection = projection;
+		mPageSize = pageSize;
+		mWindow = new Object[pageSize];
+		mWindowIds = new long[pageSize];
+		reset(uri, count);
+	}
+
+	/**
+	 * Makes the given rows the base with no changes.
+	 * @param uri the uri of the rows
+	 * @param count the number of rows
+	 */
+	private void reset(final Uri uri, final int count) {
+		mBaseUri = uri;
+		mBaseCount = count;
+		mPieces.clear();
+		if (count > 0) {
+			mPieces.add(new Piece(0, count, false));
+		}
+		mSize = count;
+		mModified.clear();
+		mWindowStart = NO_BASE;
+		mWindowCount = 0;
+		mChanged = false;
+		mRewrite = false;
+		mKeptBase = null;
+		synchronized (ORIGINALS) {
+			ORIGINALS.remove(this);
+		}
+	}
+
+	/**
+	 * Counts the rows under the given uri without reading them.
+	 * @param resolver the resolver to count with
+	 * @param uri the uri of the rows
+	 * @return the number of rows
+	 */
+	static int count(final ContentResolver resolver, final Uri uri) {
+		final Cursor cursor = resolver.query(uri,
+				new String[] {"count(" + BaseColumns._ID + ")"},
+				null, null, null);
+		int ret;
+		try {
+			if (cursor == null || !cursor.moveToFirst()) {
+				throw new IllegalStateException("Unable to count: " + uri);
+			}
+			ret = cursor.getInt(0);
+		} finally {
+			UriDataManager.safeClose(cursor);
+		}
+		return ret;
+	}
+
+	/**
+	 * Copies the elements as they are now. The copy reads the same base
+	 * rows until they are changed, when keepOriginals keeps them.
+	 * @return the copy
+	 */
+	PagedElements preserve() {
+		final PagedElements ret = new PagedElements(mResolver, mBaseUri,
+				mFieldName, mCodec, mProjection, mBaseCount, mPageSize);
+		ret.mPieces.clear();
+		for (Piece piece : mPieces) {
+			if (piece.mIsValue) {
+				ret.mPieces.add(new Piece(piece.mBase, piece.mValue));
+			} else {
+				ret.mPieces.add(piece);
+			}
+		}
+		ret.mSize = mSize;
+		ret.mModified.putAll(mModified);
+		ret.mChanged = mChanged;
+		ret.mRewrite = mRewrite;
+		ret.mKeptBase = mKeptBase;
+		if (mKeptBase == null) {
+			synchronized (ORIGINALS) {
+				ORIGINALS.put(ret, Boolean.TRUE);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return true if any original reads base rows from the provider
+	 */
+	static boolean hasOriginals() {
+		synchronized (ORIGINALS) {
+			return !ORIGINALS.isEmpty();
+		}
+	}
+
+	/**
+	 * Keeps the base rows of the originals at, above or below the given
+	 * uri in memory before the provider changes them.
+	 * @param uri the uri of the field, row or table being changed
+	 */
+	static void keepOriginals(final Uri uri) {
+		final List<PagedElements> originals = new ArrayList<PagedElements>();
+		synchronized (ORIGINALS) {
+			for (PagedElements original : ORIGINALS.keySet()) {
+				if (original != null
+						&& UriDataManager.overlaps(uri, original.mBaseUri)) {
+					originals.add(original);
+				}
+			}
+			for (PagedElements original : originals) {
+				ORIGINALS.remove(original);
+			}
+		}
+		for (PagedElements original : originals) {
+			original.keepBase();
+		}
+	}
+
+	/**
+	 * Loads all base rows into memory.
+	 */
+	private void keepBase() {
+		LOG.debug("Keeping {} rows of: {}", mBaseCount, mBaseUri);
+		final Object[] kept = new Object[mBaseCount];
+		for (int start = 0; start < mBaseCount; start += mPageSize) {
+			loadWindow(start);
+			System.arraycopy(mWindow, 0, kept, start, mWindowCount);
+		}
+		mKeptBase = kept;
+		mWindowStart = NO_BASE;
+		mWindowCount = 0;
+	}
+
+	/**
+	 * @return the number of elements
+	 */
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param index the position of the element
+	 * @return the element
+	 */
+	Object get(final int index) {
+		check(index);
+		final int at = find(index);
+		final Piece piece = mPieces.get(at);
+		Object ret;
+		if (piece.mIsValue) {
+			ret = piece.mValue;
+		} else {
+			ret = getBase(piece.getBase(index - mFound));
+		}
+		return ret;
+	}
+
+	/**
+	 * @param index the position of the element
+	 * @param value the new value
+	 * @return the old value
+	 */
+	Object set(final int index, final Object value) {
+		check(index);
+		final int at = find(index);
+		final Piece piece = mPieces.get(at);
+		Object ret;
+		if (piece.mIsValue) {
+			ret = piece.mValue;
+			piece.mValue = value;
+		} else {
+			final int offset = index - mFound;
+			final int base = piece.getBase(offset);
+			ret = getBase(base);
+			mModified.remove(base);
+			split(at, offset, 1, new Piece(base, value));
+		}
+		mChanged = true;
+		return ret;
+	}
+
+	/**
+	 * @param index the position to insert at
+	 * @param value the value to insert
+	 */
+	void add(final int index, final Object value) {
+		if (index < 0 || index > mSize) {
+			throw new IndexOutOfBoundsException(
+					"Index: " + index + " Size: " + mSize);
+		}
+		final Piece added = new Piece(NO_BASE, value);
+		if (index == mSize) {
+			mPieces.add(added);
+		} else {
+			final int at = find(index);
+			if (index == mFound) {
+				mPieces.add(at, added);
+			} else {
+				split(at, index - mFound, 0, added);
+			}
+		}
+		mSize++;
+		mChanged = true;
+	}
+
+	/**
+	 * @param index the position of the element to remove
+	 * @return the removed element
+	 */
+	Object remove(final int index) {
+		check(index);
+		final int at = find(index);
+		final Piece piece = mPieces.get(at);
+		Object ret;
+		if (piece.mIsValue) {
+			ret = piece.mValue;
+			mPieces.remove(at);
+		} else {
+			final int offset = index - mFound;
+			final int base = piece.getBase(offset);
+			ret = getBase(base);
+			mModified.remove(base);
+			split(at, offset, 1, null);
+		}
+		mSize--;
+		mChanged = true;
+		return ret;
+	}
+
+	/**
+	 * Removes all elements.
+	 */
+	void clear() {
+		mPieces.clear();
+		mModified.clear();
+		mSize = 0;
+		mChanged = true;
+	}
+
+	/**
+	 * Reverses the order of the elements.
+	 */
+	void reverse() {
+		final List<Piece> reversed = new ArrayList<Piece>(mPieces.size());
+		for (int i = mPieces.size() - 1; i >= 0; i--) {
+			final Piece piece = mPieces.get(i);
+			if (piece.mIsValue) {
+				reversed.add(piece);
+			} else {
+				reversed.add(new Piece(piece.mBase, piece.mCount,
+						!piece.mReversed));
+			}
+		}
+		mPieces.clear();
+		mPieces.addAll(reversed);
+		mChanged = true;
+	}
+
+	/**
+	 * @return true if the elements differ from the base rows, which is
+	 * always the case once the base rows are kept in memory
+	 */
+	boolean isDirty() {
+		boolean ret = mChanged || mRewrite || !mModified.isEmpty()
+				|| mKeptBase != null;
+		for (int i = 0; !ret && i < mWindowCount; i++) {
+			ret = UriDataManager.isDirty(mWindow[i]);
+		}
+		return ret;
+	}
+
+	/**
+	 * Makes the next save write all elements to new rows.
+	 */
+	void markDirty() {
+		mRewrite = true;
+	}
+
+	/**
+	 * Writes the changes to the base rows so they can be applied to the
+	 * same rows once they are loaded again: the pieces, with the values
+	 * they hold, and the elements of base rows which changed.
+	 * @param snapshot the snapshot to write the elements with
+	 * @param out the encoder to write to
+	 * @param schema the schema for the elements
+	 * @throws IOException if writing fails
+	 * @throws NotBoundException if an element is not bound
+	 */
+	void writeChanges(final StateSnapshot snapshot, final BinaryEncoder out,
+			final Schema schema) throws IOException, NotBoundException {
+		final Map<Integer, Object> modified =
+				new HashMap<Integer, Object>(mModified);
+		for (int i = 0; i < mWindowCount; i++) {
+			if (UriDataManager.isDirty(mWindow[i])
+					&& !modified.containsKey(mWindowStart + i)) {
+				modified.put(mWindowStart + i, mWindow[i]);
+			}
+		}
+		out.writeInt(mBaseCount);
+		out.writeBoolean(mRewrite);
+		out.writeArrayStart();
+		out.setItemCount(mPieces.size());
+		for (Piece piece : mPieces) {
+			out.startItem();
+			out.writeBoolean(piece.mIsValue);
+			out.writeInt(piece.mBase);
+			if (piece.mIsValue) {
+				snapshot.write(schema, mFieldName, piece.mValue);
+			} else {
+				out.writeInt(piece.mCount);
+				out.writeBoolean(piece.mReversed);
+			}
+		}
+		out.writeArrayEnd();
+		out.writeArrayStart();
+		out.setItemCount(modified.size());
+		for (Map.Entry<Integer, Object> entry : modified.entrySet()) {
+			out.startItem();
+			out.writeInt(entry.getKey());
+			snapshot.write(schema, mFieldName, entry.getValue());
+		}
+		out.writeArrayEnd();
+	}
+
+	/**
+	 * Reads changes written by writeChanges and applies them to the base
+	 * rows, which must be the rows the changes were made to.
+	 * @param snapshot the snapshot to read the elements with
+	 * @param in the decoder to read from
+	 * @param schema the schema for the elements
+	 * @throws IOException if reading fails or the rows changed
+	 * @throws NotBoundException if an element is not bound
+	 */
+	void readChanges(final StateSnapshot snapshot, final BinaryDecoder in,
+			final Schema schema) throws IOException, NotBoundException {
+		if (in.readInt() != mBaseCount) {
+			throw new IOException("Rows changed under: " + mBaseUri);
+		}
+		mRewrite = in.readBoolean();
+		mPieces.clear();
+		mSize = 0;
+		for (long count = in.readArrayStart(); count > 0;
+				count = in.arrayNext()) {
+			for (long i = 0; i < count; i++) {
+				final boolean isValue = in.readBoolean();
+				final int base = in.readInt();
+				Piece piece;
+				if (isValue) {
+					piece = new Piece(base, snapshot.read(schema, mFieldName));
+				} else {
+					final int pieceCount = in.readInt();
+					piece = new Piece(base, pieceCount, in.readBoolean());
+				}
+				mPieces.add(piece);
+				mSize += piece.mCount;
+			}
+		}
+		for (long count = in.readArrayStart(); count > 0;
+				count = in.arrayNext()) {
+			for (long i = 0; i < count; i++) {
+				final int base = in.readInt();
+				mModified.put(base, snapshot.read(schema, mFieldName));
+			}
+		}
+		mChanged = true;
+	}
+
+	/**
+	 * Adds the operations to save the elements to the given batch. Rows
+	 * which keep their place are updated in place. Everything from the
+	 * first element out of row order on is written to new rows and the
+	 * rows no longer used are deleted last, so the base rows can be read
+	 * by position until the whole batch is built. Base rows kept in memory
+	 * are no longer in the provider so all elements are written again.
+	 * @param batch the batch to save with
+	 * @param resolver the resolver to save with
+	 * @param uri the uri to save the rows under
+	 * @param fieldName the field being saved
+	 * @throws NotBoundException if an element is not bound
+	 */
+	void save(final UriBatch batch, final ContentResolver resolver,
+			final Uri uri, final String fieldName) throws NotBoundException {
+		final boolean sameBase = uri.equals(mBaseUri) && mKeptBase == null;
+		final BitSet kept = new BitSet(mBaseCount);
+		int index = 0;
+		if (!sameBase) {
+			batch.delete(uri);
+		} else if (!mRewrite) {
+			index = saveInPlace(batch, resolver, kept, fieldName);
+		}
+		LOG.debug("Saving {} paged elements from {}", mSize, index);
+
+		for (int i = index; i < mSize; i++) {
+			final ContentValues values = new ContentValues();
+			storeElement(batch, resolver, uri, values, fieldName, get(i));
+			batch.insert(uri, values, null);
+		}
+
+		if (sameBase) {
+			// Only pages holding rows which were not kept are read.
+			int start = kept.nextClearBit(0);
+			while (start < mBaseCount) {
+				final long[] ids = loadIds(start);
+				for (int i = 0; i < ids.length; i++) {
+					if (!kept.get(start + i)) {
+						batch.delete(ContentUris.withAppendedId(uri, ids[i]));
+					}
+				}
+				start = kept.nextClearBit(start + mPageSize);
+			}
+		}
+
+		final int size = mSize;
+		batch.whenApplied(new Runnable() {
+			@Override
+			public void run() {
+				reset(uri, size);
+			}
+		});
+	}
+
+	/**
+	 * Updates the rows of elements which keep their place.
+	 * @param batch the batch to save with
+	 * @param resolver the resolver to save with
+	 * @param kept receives the base positions of the rows kept
+	 * @param fieldName the field being saved
+	 * @return the position of the first element which needs a new row
+	 * @throws NotBoundException if an element is not bound
+	 */
+	private int saveInPlace(final UriBatch batch,
+			final ContentResolver resolver, final BitSet kept,
+			final String fieldName) throws NotBoundException {
+		int ret = 0;
+		int last = NO_BASE;
+		for (Piece piece : mPieces) {
+			final int first = piece.getBase(0);
+			if (piece.mBase == NO_BASE || first <= last
+					|| (piece.mReversed && piece.mCount > 1)) {
+				break;
+			}
+			// Rows which are not loaded and not modified have not changed.
+			for (int i = 0; i < piece.mCount; i++) {
+				final int base = first + i;
+				Object value = null;
+				if (piece.mIsValue) {
+					value = piece.mValue;
+				} else if (mModified.containsKey(base)) {
+					value = mModified.get(base);
+				} else if (isInWindow(base)) {
+					value = mWindow[base - mWindowStart];
+				}
+				if (piece.mIsValue || UriDataManager.isDirty(value)) {
+					final Uri rowUri = ContentUris.withAppendedId(mBaseUri,
+							getBaseId(base));
+					final ContentValues values = new ContentValues();
+					storeElement(batch, resolver, rowUri, values, fieldName,
+							value);
+					if (piece.mIsValue) {
+						batch.update(rowUri, values);
+					}
+				}
+			}
+			kept.set(first, first + piece.mCount);
+			last = piece.getBase(piece.mCount - 1);
+			ret += piece.mCount;
+		}
+		return ret;
+	}
+
+	/**
+	 * Stores an element to the given values.
+	 * @param batch the batch to save nested data with
+	 * @param resolver the resolver to save with
+	 * @param rowUri the uri for the row holding the element
+	 * @param values the values for the row
+	 * @param fieldName the name of the field being saved
+	 * @param value the element to store
+	 * @throws NotBoundException if the element is not bound
+	 */
+	private void storeElement(final UriBatch batch,
+			final ContentResolver resolver, final Uri rowUri,
+			final ContentValues values, final String fieldName,
+			final Object value) throws NotBoundException {
+		final Uri dataUri = mCodec.store(batch, resolver, rowUri, values,
+				fieldName, value);
+		if (dataUri != null) {
+			final UriMatch match = EntityUriMatcher.getMatch(dataUri);
+			values.put(fieldName, match.entityIdentifier);
+		}
+	}
+
+	/**
+	 * Finds the piece holding the element at the given position and
+	 * leaves the position of its first element in mFound.
+	 * @param index the position of the element
+	 * @return the index of the piece
+	 */
+	private int find(final int index) {
+		int start = 0;
+		int ret = 0;
+		while (start + mPieces.get(ret).mCount <= index) {
+			start += mPieces.get(ret).mCount;
+			ret++;
+		}
+		mFound = start;
+		return ret;
+	}
+
+	/**
+	 * Splits a run, dropping count elements at the offset and putting the
+	 * given piece in their place.
+	 * @param at the index of the run
+	 * @param offset the offset into the run
+	 * @param count the number of elements to drop
+	 * @param replacement the piece to put in their place or null
+	 */
+	private void split(final int at, final int offset, final int count,
+			final Piece replacement) {
+		final Piece piece = mPieces.remove(at);
+		int insert = at;
+		if (offset > 0) {
+			mPieces.add(insert++, piece.slice(0, offset));
+		}
+		if (replacement != null) {
+			mPieces.add(insert++, replacement);
+		}
+		final int rest = piece.mCount - offset - count;
+		if (rest > 0) {
+			mPieces.add(insert, piece.slice(offset + count, rest));
+		}
+	}
+
+	/**
+	 * @param index the position to check
+	 */
+	private void check(final int index) {
+		if (index < 0 || index >= mSize) {
+			throw new IndexOutOfBoundsException(
+					"Index: " + index + " Size: " + mSize);
+		}
+	}
+
+	/**
+	 * @param base the base position
+	 * @return the element stored in the base row
+	 */
+	private Object getBase(final int base) {
+		Object ret;
+		if (mModified.containsKey(base)) {
+			ret = mModified.get(base);
+		} else if (mKeptBase != null) {
+			ret = mKeptBase[base];
+		} else {
+			if (!isInWindow(base)) {
+				loadWindow(base);
+			}
+			ret = mWindow[base - mWindowStart];
+		}
+		return ret;
+	}
+
+	/**
+	 * @param base the base position
+	 * @return the id of the base row
+	 */
+	private long getBaseId(final int base) {
+		if (!isInWindow(base)) {
+			loadWindow(base);
+		}
+		return mWindowIds[base - mWindowStart];
+	}
+
+	/**
+	 * @param base the base position
+	 * @return true if the row is in the window
+	 */
+	private boolean isInWindow(final int base) {
+		return mWindowStart != NO_BASE && base >= mWindowStart
+				&& base < mWindowStart + mWindowCount;
+	}
+
+	/**
+	 * Loads the page holding the given base position into the window.
+	 * Elements with changes are kept aside before they are dropped.
+	 * @param base the base position
+	 */
+	private void loadWindow(final int base) {
+		for (int i = 0; i < mWindowCount; i++) {
+			if (UriDataManager.isDirty(mWindow[i])
+					&& !mModified.containsKey(mWindowStart + i)) {
+				mModified.put(mWindowStart + i, mWindow[i]);
+			}
+		}
+		final int start = base - base % mPageSize;
+		LOG.debug("Loading page at {} of: {}", start, mBaseUri);
+		final Cursor cursor = query(mProjection, start);
+		try {
+			if (cursor == null) {
+				throw new IllegalStateException("Unable to load: " + mBaseUri);
+			}
+			final LoadPlan plan = LoadPlan.forField(mBaseUri, mFieldName,
+					cursor, null);
+			final int idIndex = plan.getIdIndex();
+			int count = 0;
+			while (count < mPageSize && cursor.moveToNext()) {
+				mWindow[count] = mCodec.load(mResolver, mBaseUri, cursor,
+						mFieldName, plan, 0, true);
+				mWindowIds[count] = cursor.getLong(idIndex);
+				count++;
+			}
+			mWindowStart = start;
+			mWindowCount = count;
+		} catch (NotBoundException e) {
+			throw new IllegalStateException("Unable to load: " + mBaseUri, e);
+		} finally {
+			UriDataManager.safeClose(cursor);
+		}
+		if (base >= mWindowStart + mWindowCount) {
+			throw new IllegalStateException("Row " + base
+					+ " is missing from: " + mBaseUri);
+		}
+	}
+
+	/**
+	 * @param start the base position of the first row
+	 * @return the ids of the page of base rows starting there
+	 */
+	private long[] loadIds(final int start) {
+		final Cursor cursor = query(new String[] {BaseColumns._ID}, start);
+		long[] ret;
+		try {
+			if (cursor == null) {
+				throw new IllegalStateException("Unable to load: " + mBaseUri);
+			}
+			ret = new long[Math.min(mPageSize, cursor.getCount())];
+			for (int i = 0; i < ret.length && cursor.moveToNext(); i++) {
+				ret[i] = cursor.getLong(0);
+			}
+		} finally {
+			UriDataManager.safeClose(cursor);
+		}
+		return ret;
+	}
+
+	/**
+	 * @param projection the columns to load
+	 * @param start the base position of the first row
+	 * @return a cursor over the page of base rows starting there
+	 */
+	private Cursor query(final String[] projection, final int start) {
+		return mResolver.query(mBaseUri, projection, null, null,
+				BaseColumns._ID + " LIMIT " + mPageSize + " OFFSET " + start);
+	}
+}
@@ -0,0 +1,619 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import java.util.BitSet;
+
+import org.apache.avro.Schema.Type;
+
+import android.database.Cursor;
+import android.os.Bundle;
+
+/**
+ * Holds the elements of an array of a primitive type in a primitive array
+ * so they are not boxed while they sit in the array. Elements are boxed
+ * only when they are read through the List API. Null elements, which the
+ * editor uses for elements which have not been filled in yet, are kept in
+ * a separate set.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+abstract class PrimitiveElements {
+
+	/** The capacity of the backing array when it first grows. */
+	private static final int MIN_CAPACITY = 10;
+
+	/** The backing array. */
+	private Object mData;
+	/** The capacity of the backing array. */
+	private int mCapacity;
+	/** The number of elements. */
+	private int mSize;
+	/** The positions of null elements or null if there are none. */
+	private BitSet mNulls;
+
+	/**
+	 * @param type the element type
+	 * @return the elements for the type or null if the type is not one
+	 * which is kept in a primitive array
+	 */
+	static PrimitiveElements forType(final Type type) {
+		PrimitiveElements ret;
+		switch (type) {
+		case BOOLEAN:
+			ret = new BooleanElements();
+			break;
+		case DOUBLE:
+			ret = new DoubleElements();
+			break;
+		case FLOAT:
+			ret = new FloatElements();
+			break;
+		case INT:
+			ret = new IntElements();
+			break;
+		case LONG:
+			ret = new LongElements();
+			break;
+		default:
+			ret = null;
+		}
+		return ret;
+	}
+
+	/**
+	 * Construct empty elements.
+	 */
+	PrimitiveElements() {
+		mData = newArray(0);
+	}
+
+	/**
+	 * @return the number of elements
+	 */
+	final int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param index the position of the element
+	 * @return the element, boxed
+	 */
+	final Object get(final int index) {
+		check(index);
+		Object ret = null;
+		if (mNulls == null || !mNulls.get(index)) {
+			ret = box(mData, index);
+		}
+		return ret;
+	}
+
+	/**
+	 * @param index the position of the element
+	 * @param value the new value for the element
+	 * @return the old value of the element
+	 */
+	final Object set(final int index, final Object value) {
+		final Object ret = get(index);
+		store(index, value);
+		return ret;
+	}
+
+	/**
+	 * @param index the position to insert at
+	 * @param value the value to insert
+	 */
+	final void add(final int index, final Object value) {
+		if (index < 0 || index > mSize) {
+			throw new IndexOutOfBoundsException(
+					"Index: " + index + " Size: " + mSize);
+		}
+		makeRoom(index);
+		store(index, value);
+	}
+
+	/**
+	 * @param index the position of the element to remove
+	 * @return the removed element
+	 */
+	final Object remove(final int index) {
+		final Object ret = get(index);
+		System.arraycopy(mData, index + 1, mData, index, mSize - index - 1);
+		if (mNulls != null) {
+			for (int i = index; i < mSize - 1; i++) {
+				mNulls.set(i, mNulls.get(i + 1));
+			}
+			mNulls.clear(mSize - 1);
+		}
+		mSize--;
+		return ret;
+	}
+
+	/**
+	 * Removes all elements.
+	 */
+	final void clear() {
+		mSize = 0;
+		mNulls = null;
+	}
+
+	/**
+	 * Reverses the order of the elements.
+	 */
+	final void reverse() {
+		for (int i = 0, j = mSize - 1; i < j; i++, j--) {
+			swap(mData, i, j);
+			if (mNulls != null) {
+				final boolean isNull = mNulls.get(i);
+				mNulls.set(i, mNulls.get(j));
+				mNulls.set(j, isNull);
+			}
+		}
+	}
+
+	/**
+	 * Appends the value in a column of the current row of a cursor.
+	 * @param cursor the cursor to read from
+	 * @param column the index of the column
+	 */
+	final void add(final Cursor cursor, final int column) {
+		makeRoom(mSize);
+		read(cursor, column, mData, mSize - 1);
+	}
+
+	/**
+	 * @return a copy of the elements
+	 */
+	final PrimitiveElements copy() {
+		final PrimitiveElements ret = forType(getType());
+		ret.adopt(trimmed());
+		if (mNulls != null) {
+			ret.mNulls = (BitSet) mNulls.clone();
+		}
+		return ret;
+	}
+
+	/**
+	 * Stores the elements to a bundle with a single array copy. Null
+	 * elements are stored as the default value of the type and their
+	 * positions are stored under a key of their own.
+	 * @param outState the bundle to store to
+	 * @param key the key to store under
+	 */
+	final void save(final Bundle outState, final String key) {
+		put(outState, key, trimmed());
+		final BitSet nullBits;
+		if (mNulls == null) {
+			nullBits = null;
+		} else {
+			nullBits = mNulls.get(0, mSize);
+		}
+		if (nullBits != null && !nullBits.isEmpty()) {
+			final int[] nulls = new int[nullBits.cardinality()];
+			int next = 0;
+			for (int i = nullBits.nextSetBit(0); i >= 0;
+					i = nullBits.nextSetBit(i + 1)) {
+				nulls[next++] = i;
+			}
+			outState.putIntArray(NameHelper.getNullsName(key), nulls);
+		}
+	}
+
+	/**
+	 * Replaces the elements with those stored to a bundle. The array in
+	 * the bundle is used as it is.
+	 * @param saved the bundle to load from
+	 * @param key the key the elements are stored under
+	 * @return the number of elements loaded
+	 */
+	final int load(final Bundle saved, final String key) {
+		final Object data = get(saved, key);
+		if (data != null) {
+			adopt(data);
+			final int[] nulls = saved.getIntArray(NameHelper.getNullsName(key));
+			if (nulls != null && nulls.length > 0) {
+				mNulls = new BitSet();
+				for (int index : nulls) {
+					mNulls.set(index);
+				}
+			}
+		}
+		return mSize;
+	}
+
+	/**
+	 * @param index the position to check
+	 */
+	private void check(final int index) {
+		if (index < 0 || index >= mSize) {
+			throw new IndexOutOfBoundsException(
+					"Index: " + index + " Size: " + mSize);
+		}
+	}
+
+	/**
+	 * Opens a slot at the given position.
+	 * @param index the position of the slot
+	 */
+	private void makeRoom(final int index) {
+		if (mSize == mCapacity) {
+			final int capacity = Math.max(MIN_CAPACITY, mCapacity * 2);
+			final Object data = newArray(capacity);
+			System.arraycopy(mData, 0, data, 0, mSize);
+			mData = data;
+			mCapacity = capacity;
+		}
+		System.arraycopy(mData, index, mData, index + 1, mSize - index);
+		if (mNulls != null) {
+			for (int i = mSize; i > index; i--) {
+				mNulls.set(i, mNulls.get(i - 1));
+			}
+			mNulls.clear(index);
+		}
+		mSize++;
+	}
+
+	/**
+	 * @param index the position to store to
+	 * @param value the value to store, which may be null
+	 */
+	private void store(final int index, final Object value) {
+		if (value == null) {
+			if (mNulls == null) {
+				mNulls = new BitSet();
+			}
+			mNulls.set(index);
+		} else {
+			if (mNulls != null) {
+				mNulls.clear(index);
+			}
+			unbox(mData, index, value);
+		}
+	}
+
+	/**
+	 * @param data the array to use as backing array
+	 */
+	private void adopt(final Object data) {
+		mData = data;
+		mCapacity = java.lang.reflect.Array.getLength(data);
+		mSize = mCapacity;
+		mNulls = null;
+	}
+
+	/**
+	 * @return the elements in an array of exactly the right length
+	 */
+	private Object trimmed() {
+		final Object ret = newArray(mSize);
+		System.arraycopy(mData, 0, ret, 0, mSize);
+		return ret;
+	}
+
+	/**
+	 * @return the element type
+	 */
+	abstract Type getType();
+
+	/**
+	 * @param length the length of the array
+	 * @return a new backing array
+	 */
+	abstract Object newArray(int length);
+
+	/**
+	 * @param data the backing array
+	 * @param index the position to read
+	 * @return the boxed element
+	 */
+	abstract Object box(Object data, int index);
+
+	/**
+	 * @param data the backing array
+	 * @param index the position to write
+	 * @param value the boxed value
+	 */
+	abstract void unbox(Object data, int index, Object value);
+
+	/**
+	 * @param data the backing array
+	 * @param i the first position
+	 * @param j the second position
+	 */
+	abstract void swap(Object data, int i, int j);
+
+	/**
+	 * @param cursor the cursor to read from
+	 * @param column the column to read
+	 * @param data the backing array
+	 * @param index the position to write
+	 */
+	abstract void read(Cursor cursor, int column, Object data, int index);
+
+	/**
+	 * @param outState the bundle to store to
+	 * @param key the key to store under
+	 * @param data the array to store
+	 */
+	abstract void put(Bundle outState, String key, Object data);
+
+	/**
+	 * @param saved the bundle to load from
+	 * @param key the key to load
+	 * @return the stored array or null
+	 */
+	abstract Object get(Bundle saved, String key);
+
+	/**
+	 * Elements of an array of BOOLEAN.
+	 */
+	private static final class BooleanElements extends PrimitiveElements {
+		@Override
+		Type getType() {
+			return Type.BOOLEAN;
+		}
+
+		@Override
+		Object newArray(final int length) {
+			return new boolean[length];
+		}
+
+		@Override
+		Object box(final Object data, final int index) {
+			return ((boolean[]) data)[index];
+		}
+
+		@Override
+		void unbox(final Object data, final int index, final Object value) {
+			((boolean[]) data)[index] = (Boolean) value;
+		}
+
+		@Override
+		void swap(final Object data, final int i, final int j) {
+			final boolean[] array = (boolean[]) data;
+			final boolean value = array[i];
+			array[i] = array[j];
+			array[j] = value;
+		}
+
+		@Override
+		void read(final Cursor cursor, final int column, final Object data,
+				final int index) {
+			((boolean[]) data)[index] = cursor.getInt(column) == 1;
+		}
+
+		@Override
+		void put(final Bundle outState, final String key, final Object data) {
+			outState.putBooleanArray(key, (boolean[]) data);
+		}
+
+		@Override
+		Object get(final Bundle saved, final String key) {
+			return saved.getBooleanArray(key);
+		}
+	}
+
+	/**
+	 * Elements of an array of DOUBLE.
+	 */
+	private static final class DoubleElements extends PrimitiveElements {
+		@Override
+		Type getType() {
+			return Type.DOUBLE;
+		}
+
+		@Override
+		Object newArray(final int length) {
+			return new double[length];
+		}
+
+		@Override
+		Object box(final Object data, final int index) {
+			return ((double[]) data)[index];
+		}
+
+		@Override
+		void unbox(final Object data, final int index, final Object value) {
+			((double[]) data)[index] = (Double) value;
+		}
+
+		@Override
+		void swap(final Object data, final int i, final int j) {
+			final double[] array = (double[]) data;
+			final double value = array[i];
+			array[i] = array[j];
+			array[j] = value;
+		}
+
+		@Override
+		void read(final Cursor cursor, final int column, final Object data,
+				final int index) {
+			((double[]) data)[index] = cursor.getDouble(column);
+		}
+
+		@Override
+		void put(final Bundle outState, final String key, final Object data) {
+			outState.putDoubleArray(key, (double[]) data);
+		}
+
+		@Override
+		Object get(final Bundle saved, final String key) {
+			return saved.getDoubleArray(key);
+		}
+	}
+
+	/**
+	 * Elements of an array of FLOAT.
+	 */
+	private static final class FloatElements extends PrimitiveElements {
+		@Override
+		Type getType() {
+			return Type.FLOAT;
+		}
+
+		@Override
+		Object newArray(final int length) {
+			return new float[length];
+		}
+
+		@Override
+		Object box(final Object data, final int index) {
+			return ((float[]) data)[index];
+		}
+
+		@Override
+		void unbox(final Object data, final int index, final Object value) {
+			((float[]) data)[index] = (Float) value;
+		}
+
+		@Override
+		void swap(final Object data, final int i, final int j) {
+			final float[] array = (float[]) data;
+			final float value = array[i];
+			array[i] = array[j];
+			array[j] = value;
+		}
+
+		@Override
+		void read(final Cursor cursor, final int column, final Object data,
+				final int index) {
+			((float[]) data)[index] = cursor.getFloat(column);
+		}
+
+		@Override
+		void put(final Bundle outState, final String key, final Object data) {
+			outState.putFloatArray(key, (float[]) data);
+		}
+
+		@Override
+		Object get(final Bundle saved, final String key) {
+			return saved.getFloatArray(key);
+		}
+	}
+
+	/**
+	 * Elements of an array of INT.
+	 */
+	private static final class IntElements extends PrimitiveElements {
+		@Override
+		Type getType() {
+			return Type.INT;
+		}
+
+		@Override
+		Object newArray(final int length) {
+			return new int[length];
+		}
+
+		@Override
+		Object box(final Object data, final int index) {
+			return ((int[]) data)[index];
+		}
+
+		@Override
+		void unbox(final Object data, final int index, final Object value) {
+			((int[]) data)[index] = (Integer) value;
+		}
+
+		@Override
+		void swap(final Object data, final int i, final int j) {
+			final int[] array = (int[]) data;
+			final int value = array[i];
+			array[i] = array[j];
+			array[j] = value;
+		}
+
+		@Override
+		void read(final Cursor cursor, final int column, final Object data,
+				final int index) {
+			((int[]) data)[index] = cursor.getInt(column);
+		}
+
+		@Override
+		void put(final Bundle outState, final String key, final Object data) {
+			outState.putIntArray(key, (int[]) data);
+		}
+
+		@Override
+		Object get(final Bundle saved, final String key) {
+			return saved.getIntArray(key);
+		}
+	}
+
+	/**
+	 * Elements of an array of LONG.
+	 */
+	private static final class LongElements extends PrimitiveElements {
+		@Override
+		Type getType() {
+			return Type.LONG;
+		}
+
+		@Override
+		Object newArray(final int length) {
+			return new long[length];
+		}
+
+		@Override
+		Object box(final Object data, final int index) {
+			return ((long[]) data)[index];
+		}
+
+		@Override
+		void unbox(final Object data, final int index, final Object value) {
+			((long[]) data)[index] = (Long) value;
+		}
+
+		@Override
+		void swap(final Object data, final int i, final int j) {
+			final long[] array = (long[]) data;
+			final long value = array[i];
+			array[i] = array[j];
+			array[j] = value;
+		}
+
+		@Override
+		void read(final Cursor cursor, final int column, final Object data,
+				final int index) {
+			((long[]) data)[index] = cursor.getLong(column);
+		}
+
+		@Override
+		void put(final Bundle outState, final String key, final Object data) {
+			outState.putLongArray(key, (long[]) data);
+		}
+
+		@Override
+		Object get(final Bundle saved, final String key) {
+			return saved.getLongArray(key);
+		}
+	}
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.apache.avro.Schema.Type;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * Walks the rows reachable from a record, collection or table according
+ * to the schema. Only the columns referring to other rows are queried and
+ * nothing has to be loaded into the model, so the cost does not depend on
+ * what is held in memory. Subclasses are told about each row and table as
+ * it is entered and left.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+abstract class RowWalker {
+	/** The number of rows of a table read per query. */
+	private static final int PAGE_SIZE = 500;
+
+	/** The resolver to query with. */
+	private final ContentResolver mResolver;
+	/** The collection tables already visited. */
+	private final Set<Uri> mTables = new HashSet<Uri>();
+
+	/**
+	 * @param resolver the resolver to query with
+	 */
+	RowWalker(final ContentResolver resolver) {
+		mResolver = resolver;
+	}
+
+	/**
+	 * @return the resolver queries are made with
+	 */
+	final ContentResolver getResolver() {
+		return mResolver;
+	}
+
+	/**
+	 * Called when a record row is reached.
+	 * @param uri the uri of the record
+	 * @return true if the rows reachable from the record should be visited
+	 */
+	abstract boolean enterRecord(Uri uri);
+
+	/**
+	 * Called once the rows reachable from a record have been visited.
+	 * @param uri the uri of the record
+	 */
+	abstract void leaveRecord(Uri uri);
+
+	/**
+	 * Called once the rows reachable from the rows of an array or map
+	 * have been visited.
+	 * @param uri the uri of the table
+	 */
+	abstract void leaveCollection(Uri uri);
+
+	/**
+	 * Checks if values of a schema can refer to rows in other tables.
+	 * @param schema the schema to check
+	 * @return true if the value may refer to other rows
+	 */
+	static boolean refersToRows(final Schema schema) {
+		boolean ret;
+		switch (schema.getType()) {
+		case ARRAY:
+		case MAP:
+		case RECORD:
+			ret = true;
+			break;
+		case UNION:
+			ret = false;
+			for (Schema branch : schema.getTypes()) {
+				ret |= refersToRows(branch);
+			}
+			break;
+		default:
+			ret = false;
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds the columns which hold the reference for a value.
+	 * @param schema the schema for the value
+	 * @param fieldName the name of the field holding the value
+	 * @param columns the list to add to
+	 */
+	private static void addColumns(final Schema schema,
+			final String fieldName, final List<String> columns) {
+		switch (schema.getType()) {
+		case RECORD:
+			columns.add(fieldName);
+			break;
+		case UNION:
+			columns.add(fieldName);
+			columns.add(NameHelper.getTypeName(fieldName));
+			columns.add(NameHelper.getTypeNameName(fieldName));
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @param schema the schema for a record
+	 * @return the columns of the record which refer to other rows
+	 */
+	private static List<String> getColumns(final Schema schema) {
+		final List<String> columns = new ArrayList<String>();
+		for (Field field : schema.getFields()) {
+			addColumns(field.schema(), field.name(), columns);
+		}
+		return columns;
+	}
+
+	/**
+	 * Visits a record row and the rows reachable from it.
+	 * @param uri the uri of the record
+	 * @param schema the schema for the record
+	 */
+	final void visitRecord(final Uri uri, final Schema schema) {
+		if (enterRecord(uri)) {
+			final List<String> columns = getColumns(schema);
+			if (!columns.isEmpty()) {
+				final Cursor cursor = mResolver.query(uri,
+						columns.toArray(new String[columns.size()]),
+						null, null, null);
+				try {
+					if (cursor != null && cursor.moveToFirst()) {
+						visitFields(uri, schema, cursor);
+					}
+				} finally {
+					UriDataManager.safeClose(cursor);
+				}
+			}
+			visitCollections(uri, schema);
+			leaveRecord(uri);
+		}
+	}
+
+	/**
+	 * Visits the next page of rows of a table of records and the rows
+	 * reachable from them. The rows are read by id.
+	 * @param uri the uri of the table
+	 * @param schema the schema for the records
+	 * @param last the last id already visited
+	 * @return the last id visited or -1 if the table has no rows left
+	 */
+	final long visitPage(final Uri uri, final Schema schema,
+			final long last) {
+		final List<String> columns = getColumns(schema);
+		columns.add(0, BaseColumns._ID);
+		final String[] projection = columns.toArray(new String[columns.size()]);
+		long ret = last;
+		int read = 0;
+		final Cursor cursor = queryPage(uri, projection, last);
+		try {
+			while (cursor != null && cursor.moveToNext()) {
+				ret = cursor.getLong(0);
+				final Uri recordUri = ContentUris.withAppendedId(uri, ret);
+				if (enterRecord(recordUri)) {
+					visitFields(recordUri, schema, cursor);
+					visitCollections(recordUri, schema);
+					leaveRecord(recordUri);
+				}
+				read++;
+			}
+		} finally {
+			UriDataManager.safeClose(cursor);
+		}
+		if (read < PAGE_SIZE) {
+			ret = -1;
+		}
+		return ret;
+	}
+
+	/**
+	 * Visits the rows reachable from the given records of a table, which
+	 * have already been entered. The columns referring to other rows are
+	 * read for a page of records at once instead of one record at a time.
+	 * @param uri the uri of the table
+	 * @param schema the schema for the records
+	 * @param ids the ids of the records, at most a page of them
+	 */
+	final void visitRecords(final Uri uri, final Schema schema,
+			final Collection<Long> ids) {
+		final List<String> columns = getColumns(schema);
+		if (columns.isEmpty()) {
+			for (Long id : ids) {
+				final Uri recordUri = ContentUris.withAppendedId(uri, id);
+				visitCollections(recordUri, schema);
+				leaveRecord(recordUri);
+			}
+		} else {
+			columns.add(0, BaseColumns._ID);
+			final StringBuilder selection = new StringBuilder(
+					BaseColumns._ID + " IN (");
+			for (Iterator<Long> it = ids.iterator(); it.hasNext();) {
+				selection.append(it.next());
+				if (it.hasNext()) {
+					selection.append(',');
+				}
+			}
+			selection.append(')');
+			final Cursor cursor = mResolver.query(uri,
+					columns.toArray(new String[columns.size()]),
+					selection.toString(), null, null);
+			try {
+				while (cursor != null && cursor.moveToNext()) {
+					final Uri recordUri = ContentUris.withAppendedId(uri,
+							cursor.getLong(0));
+					visitFields(recordUri, schema, cursor);
+					visitCollections(recordUri, schema);
+					leaveRecord(recordUri);
+				}
+			} finally {
+				UriDataManager.safeClose(cursor);
+			}
+		}
+	}
+
+	/**
+	 * Lets the arrays and maps held by a record be visited again.
+	 * @param uri the uri of the record
+	 */
+	final void forgetCollections(final Uri uri) {
+		final String prefix = uri.toString() + "/";
+		for (Iterator<Uri> it = mTables.iterator(); it.hasNext();) {
+			if (it.next().toString().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Visits the rows of an array or map and the rows reachable from them.
+	 * @param uri the uri of the table
+	 * @param fieldName the name of the field the rows hold
+	 * @param schema the schema for the array or map
+	 */
+	final void visitCollection(final Uri uri, final String fieldName,
+			final Schema schema) {
+		// Arrays nested in arrays share one table which is visited once.
+		if (mTables.add(uri)) {
+			Schema valueSchema;
+			if (schema.getType() == Type.MAP) {
+				valueSchema = schema.getValueType();
+			} else {
+				valueSchema = schema.getElementType();
+			}
+			if (refersToRows(valueSchema)) {
+				visitRows(uri, fieldName, valueSchema,
+						schema.getType() == Type.MAP);
+			}
+			leaveCollection(uri);
+		}
+	}
+
+	/**
+	 * Queries a page of rows with ids above the given one.
+	 * @param uri the uri of the table
+	 * @param projection the columns to read, starting with the id
+	 * @param last the last id already read
+	 * @return the cursor for the page
+	 */
+	final Cursor queryPage(final Uri uri, final String[] projection,
+			final long last) {
+		return mResolver.query(uri, projection,
+				BaseColumns._ID + " > ?",
+				new String[] {String.valueOf(last)},
+				BaseColumns._ID + " LIMIT " + PAGE_SIZE);
+	}
+
+	/**
+	 * @return the number of rows returned by each query for a page
+	 */
+	static int getPageSize() {
+		return PAGE_SIZE;
+	}
+
+	/**
+	 * Visits the rows the fields in the current row of a cursor refer to.
+	 * @param uri the uri of the record
+	 * @param schema the schema for the record
+	 * @param cursor the cursor holding the reference columns
+	 */
+	private void visitFields(final Uri uri, final Schema schema,
+			final Cursor cursor) {
+		for (Field field : schema.getFields()) {
+			visitValue(uri, field.name(), field.schema(), cursor);
+		}
+	}
+
+	/**
+	 * Visits the arrays and maps held directly by a record.
+	 * @param uri the uri of the record
+	 * @param schema the schema for the record
+	 */
+	private void visitCollections(final Uri uri, final Schema schema) {
+		for (Field field : schema.getFields()) {
+			final Type type = field.schema().getType();
+			if (type == Type.ARRAY || type == Type.MAP) {
+				visitCollection(Uri.withAppendedPath(uri, field.name()),
+						field.name(), field.schema());
+			}
+		}
+	}
+
+	/**
+	 * Visits the rows referred to by the rows of an array or map.
+	 * @param uri the uri of the table
+	 * @param fieldName the name of the field the rows hold
+	 * @param valueSchema the schema for the elements or values
+	 * @param isMap true if the table holds the values of a map
+	 */
+	private void visitRows(final Uri uri, final String fieldName,
+			final Schema valueSchema, final boolean isMap) {
+		final List<String> columns = new ArrayList<String>();
+		columns.add(BaseColumns._ID);
+		if (isMap) {
+			columns.add(NameHelper.getMapKeyName(fieldName));
+		}
+		addColumns(valueSchema, fieldName, columns);
+		final String[] projection = columns.toArray(new String[columns.size()]);
+		long last = 0;
+		int read;
+		do {
+			read = 0;
+			final Cursor cursor = queryPage(uri, projection, last);
+			try {
+				while (cursor != null && cursor.moveToNext()) {
+					last = cursor.getLong(0);
+					Uri rootUri = uri;
+					if (isMap) {
+						rootUri = Uri.withAppendedPath(uri,
+								cursor.getString(1));
+					}
+					visitValue(rootUri, fieldName, valueSchema, cursor);
+					read++;
+				}
+			} finally {
+				UriDataManager.safeClose(cursor);
+			}
+		} while (read == PAGE_SIZE);
+	}
+
+	/**
+	 * Visits the rows a value in the current row of a cursor refers to.
+	 * @param rootUri the uri the value is stored under
+	 * @param fieldName the name of the field holding the value
+	 * @param schema the schema for the value
+	 * @param cursor the cursor holding the reference columns
+	 */
+	private void visitValue(final Uri rootUri, final String fieldName,
+			final Schema schema, final Cursor cursor) {
+		switch (schema.getType()) {
+		case ARRAY:
+		case MAP:
+			visitCollection(Uri.withAppendedPath(rootUri, fieldName),
+					fieldName, schema);
+			break;
+		case RECORD:
+			final int index = cursor.getColumnIndex(fieldName);
+			if (index >= 0 && cursor.getLong(index) > 0) {
+				visitRecord(ContentUris.withAppendedId(
+						UriDataManager.getRecordUri(rootUri, schema),
+						cursor.getLong(index)), schema);
+			}
+			break;
+		case UNION:
+			final Schema branch = getBranch(schema, fieldName, cursor);
+			if (branch != null) {
+				visitValue(rootUri, fieldName, branch, cursor);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @param schema the schema for the union
+	 * @param fieldName the name of the field holding the union
+	 * @param cursor the cursor holding the type columns
+	 * @return the branch the union holds or null if it holds nothing
+	 */
+	private static Schema getBranch(final Schema schema,
+			final String fieldName, final Cursor cursor) {
+		final UnionBranches branches = UnionBranches.forSchema(schema);
+		final int typeIndex = cursor.getColumnIndex(
+				NameHelper.getTypeName(fieldName));
+		Schema ret = null;
+		if (typeIndex >= 0 && !cursor.isNull(typeIndex)) {
+			final String type = cursor.getString(typeIndex);
+			if (UnionBranches.isOrdinal(type)) {
+				ret = branches.get(branches.parseOrdinal(type));
+			} else {
+				ret = branches.get(branches.getOrdinal(Type.valueOf(type),
+						cursor.getString(cursor.getColumnIndex(
+								NameHelper.getTypeNameName(fieldName)))));
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+
+/**
+ * A cache of values compiled for schemas. Schemas are compared by
+ * identity because hashing a schema walks all of it. The cache holds a
+ * bounded number of schemas and drops the least recently used one when
+ * it is full, since editors parse a new schema each time they start.
+ * Weak keys would not help as the values usually refer to their schema.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ * @param <V> the type of value cached for a schema
+ */
+final class SchemaCache<V> {
+	/** The initial capacity of the map. */
+	private static final int INITIAL_CAPACITY = 16;
+	/** The load factor of the map. */
+	private static final float LOAD_FACTOR = 0.75f;
+
+	/**
+	 * A schema compared by identity.
+	 */
+	private static final class Key {
+		/** The schema. */
+		private final Schema mSchema;
+
+		/**
+		 * @param schema the schema
+		 */
+		Key(final Schema schema) {
+			mSchema = schema;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			return other instanceof Key && ((Key) other).mSchema == mSchema;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(mSchema);
+		}
+	}
+
+	/** The cached values in order of use. */
+	private final Map<Key, V> mValues;
+
+	/**
+	 * @param capacity the number of schemas to hold values for
+	 */
+	SchemaCache(final int capacity) {
+		mValues = new LinkedHashMap<Key, V>(INITIAL_CAPACITY, LOAD_FACTOR,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<Key, V> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @param schema the schema to get the value for
+	 * @return the value cached for the schema or null
+	 */
+	synchronized V get(final Schema schema) {
+		return mValues.get(new Key(schema));
+	}
+
+	/**
+	 * @param schema the schema to cache the value for
+	 * @param value the value
+	 */
+	synchronized void put(final Schema schema, final V value) {
+		mValues.put(new Key(schema), value);
+	}
+}
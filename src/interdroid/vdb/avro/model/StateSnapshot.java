@@ -0,0 +1,695 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+/**
+ * Encodes the changes made to a record graph, along with the uris it is
+ * bound to, into a single avro binary array so they can be kept in a
+ * bundle as one entry. Only fields which changed since the graph was last
+ * loaded or saved are encoded, so the changes are applied to the graph
+ * as it is loaded again from the content provider. Blobs which
+ * are too large to be kept in a bundle are spilled to files and kept as
+ * references, as are blobs which are still in the content provider. Parts
+ * of the graph which were never loaded are kept as references too and
+ * loaded on first access once decoded. Arrays loaded a page at a time
+ * are kept as the changes to their rows, so their pages are not loaded.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class StateSnapshot {
+	/** Access to logger. */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(StateSnapshot.class);
+
+	/** Blobs at least this large are spilled to a file. */
+	private static final int SPILL_SIZE = 32 * 1024;
+
+	/** Marks a value which is null. */
+	private static final int ABSENT = 0;
+	/** Marks a value which is encoded in full. */
+	private static final int PRESENT = 1;
+	/** Marks a value which was not loaded and is encoded by uri. */
+	private static final int DEFERRED = 2;
+	/** Marks a record field which has not changed. */
+	private static final int UNCHANGED = 3;
+	/** Marks a record field holding a record with changed fields. */
+	private static final int CHANGED_RECORD = 4;
+	/** Marks an array encoded as the changes to its paged rows. */
+	private static final int PAGED = 5;
+
+	/** Marks blob data encoded in the snapshot. */
+	private static final int BLOB_DATA = 0;
+	/** Marks blob data encoded by uri. */
+	private static final int BLOB_URI = 1;
+
+	/** The encoder being written to or null when decoding. */
+	private final BinaryEncoder mOut;
+	/** The decoder being read from or null when encoding. */
+	private final BinaryDecoder mIn;
+	/** The directory blobs are spilled to or null to never spill. */
+	private final File mSpillDir;
+	/** The spilled files the snapshot refers to. */
+	private final Set<File> mSpilled = new HashSet<File>();
+	/** The resolver deferred parts are loaded with. */
+	private final ContentResolver mResolver;
+
+	/**
+	 * Construct an encoding snapshot.
+	 * @param out the stream to encode to
+	 * @param spillDir the directory to spill blobs to or null
+	 */
+	private StateSnapshot(final OutputStream out, final File spillDir) {
+		mOut = EncoderFactory.get().binaryEncoder(out, null);
+		mIn = null;
+		mSpillDir = spillDir;
+		mResolver = null;
+	}
+
+	/**
+	 * Construct a decoding snapshot.
+	 * @param resolver the resolver to load deferred parts with
+	 * @param data the encoded snapshot
+	 */
+	private StateSnapshot(final ContentResolver resolver, final byte[] data) {
+		mOut = null;
+		mIn = DecoderFactory.get().binaryDecoder(data, null);
+		mSpillDir = null;
+		mResolver = resolver;
+	}
+
+	/**
+	 * Encodes the changes made to the given record. Files in the spill
+	 * directory which the changes do not refer to are removed.
+	 * @param record the record to encode the changes of
+	 * @param spillDir the directory to spill large blobs to or null
+	 * @return the encoded changes
+	 * @throws NotBoundException if the record is not bound properly
+	 */
+	static byte[] encodeChanges(final UriRecord record, final File spillDir)
+			throws NotBoundException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final StateSnapshot snapshot = new StateSnapshot(out, spillDir);
+		try {
+			snapshot.writeUri(record.getInstanceUri());
+			snapshot.writeChanges(record);
+			snapshot.mOut.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to encode state.", e);
+		}
+		snapshot.removeUnreferenced();
+		LOG.debug("Encoded changes in {} bytes", out.size());
+		return out.toByteArray();
+	}
+
+	/**
+	 * Applies changes encoded with encodeChanges to the given record.
+	 * @param resolver the resolver to load nested data with
+	 * @param record the record to apply the changes to
+	 * @param data the encoded changes
+	 * @throws NotBoundException if the record is not bound properly
+	 */
+	static void applyChanges(final ContentResolver resolver,
+			final UriRecord record, final byte[] data)
+					throws NotBoundException {
+		final StateSnapshot snapshot = new StateSnapshot(resolver, data);
+		try {
+			final Uri uri = snapshot.readUri();
+			if (!record.getInstanceUri().equals(uri)) {
+				throw new IllegalArgumentException("Changes are for: " + uri
+						+ " not: " + record.getInstanceUri());
+			}
+			snapshot.readChanges(record);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to decode state.", e);
+		}
+	}
+
+	/**
+	 * Writes the fields of a record which changed. Unchanged fields
+	 * holding records with changed fields are written the same way.
+	 * @param record the record to write the changes of
+	 * @throws IOException if writing fails
+	 * @throws NotBoundException if the record is not bound properly
+	 */
+	private void writeChanges(final UriRecord record)
+			throws IOException, NotBoundException {
+		for (Field field : record.getSchema().getFields()) {
+			final Object value = record.get(field.pos());
+			if (record.isFieldDirty(field.pos())) {
+				write(field.schema(), field.name(), value);
+			} else if (value instanceof UriRecord
+					&& UriDataManager.isDirty(value)) {
+				mOut.writeIndex(CHANGED_RECORD);
+				writeUri(((UriRecord) value).getInstanceUri());
+				writeChanges((UriRecord) value);
+			} else if (UriDataManager.isDirty(value)) {
+				write(field.schema(), field.name(), value);
+			} else {
+				mOut.writeIndex(UNCHANGED);
+			}
+		}
+	}
+
+	/**
+	 * Reads the changes to a record and applies them.
+	 * @param record the record to apply the changes to
+	 * @throws IOException if reading fails
+	 * @throws NotBoundException if the record is not bound properly
+	 */
+	private void readChanges(final UriRecord record)
+			throws IOException, NotBoundException {
+		for (Field field : record.getSchema().getFields()) {
+			final int marker = mIn.readIndex();
+			if (marker == CHANGED_RECORD) {
+				final Uri uri = readUri();
+				UriRecord nested = null;
+				if (record.get(field.pos()) instanceof UriRecord) {
+					nested = (UriRecord) record.get(field.pos());
+				}
+				// The record may have been replaced since the changes were
+				// made, in which case the changed one is loaded again.
+				if (nested == null || !nested.getInstanceUri().equals(uri)) {
+					nested = new UriRecord(uri, field.schema())
+							.loadLazily(mResolver);
+					record.put(field.pos(), nested);
+				}
+				readChanges(nested);
+			} else if (marker != UNCHANGED) {
+				record.put(field.pos(),
+						read(marker, field.schema(), field.name()));
+			}
+		}
+	}
+
+	/**
+	 * Writes a value.
+	 * @param schema the schema for the value
+	 * @param fieldName the name of the field holding the value
+	 * @param value the value
+	 * @throws IOException if writing fails
+	 * @throws NotBoundException if the value is not bound properly
+	 */
+	@SuppressWarnings("rawtypes")
+	void write(final Schema schema, final String fieldName,
+			final Object value) throws IOException, NotBoundException {
+		if (value == null) {
+			mOut.writeIndex(ABSENT);
+		} else if (isDeferred(value)) {
+			mOut.writeIndex(DEFERRED);
+			writeUri(((UriBound<?>) value).getInstanceUri());
+		} else if (value instanceof UriArray
+				&& ((UriArray) value).getPaged() != null) {
+			mOut.writeIndex(PAGED);
+			writeUri(((UriArray) value).getInstanceUri());
+			((UriArray) value).getPaged().writeChanges(this, mOut,
+					schema.getElementType());
+		} else {
+			mOut.writeIndex(PRESENT);
+			switch (schema.getType()) {
+			case ARRAY:
+				writeArray(schema, fieldName, (UriArray) value);
+				break;
+			case BOOLEAN:
+				mOut.writeBoolean((Boolean) value);
+				break;
+			case BYTES:
+			case FIXED:
+				writeBlob(value);
+				break;
+			case DOUBLE:
+				mOut.writeDouble((Double) value);
+				break;
+			case ENUM:
+				mOut.writeEnum((Integer) value);
+				break;
+			case FLOAT:
+				mOut.writeFloat((Float) value);
+				break;
+			case INT:
+				mOut.writeInt((Integer) value);
+				break;
+			case LONG:
+				mOut.writeLong((Long) value);
+				break;
+			case MAP:
+				writeMap(schema, fieldName, (UriMap<?>) value);
+				break;
+			case NULL:
+				break;
+			case RECORD:
+				writeRecord((UriRecord) value);
+				break;
+			case STRING:
+				mOut.writeString((String) value);
+				break;
+			case UNION:
+				writeUnion(schema, fieldName, (UriUnion) value);
+				break;
+			default:
+				throw new IllegalArgumentException(
+						"Unsupported type: " + schema);
+			}
+		}
+	}
+
+	/**
+	 * @param value the value to check
+	 * @return true if the value was never loaded
+	 */
+	private static boolean isDeferred(final Object value) {
+		boolean ret = false;
+		if (value instanceof UriRecord) {
+			ret = ((UriRecord) value).isLoadDeferred();
+		} else if (value instanceof UriArray) {
+			ret = ((UriArray<?>) value).isLoadDeferred();
+		} else if (value instanceof UriMap) {
+			ret = ((UriMap<?>) value).isLoadDeferred();
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes a record with its uri and its fields in order.
+	 * @param record the record to write
+	 * @throws IOException if writing fails
+	 * @throws NotBoundException if the record is not bound properly
+	 */
+	private void writeRecord(final UriRecord record)
+			throws IOException, NotBoundException {
+		writeUri(record.getInstanceUri());
+		for (Field field : record.getSchema().getFields()) {
+			write(field.schema(), field.name(), record.get(field.pos()));
+		}
+	}
+
+	/**
+	 * Writes an array with its uri.
+	 * @param schema the schema for the array
+	 * @param fieldName the name of the field holding the array
+	 * @param array the array to write
+	 * @throws IOException if writing fails
+	 * @throws NotBoundException if the array is not bound properly
+	 */
+	private void writeArray(final Schema schema, final String fieldName,
+			final UriArray<?> array) throws IOException, NotBoundException {
+		writeUri(array.getInstanceUri());
+		mOut.writeArrayStart();
+		mOut.setItemCount(array.size());
+		for (Object element : array) {
+			mOut.startItem();
+			write(schema.getElementType(), fieldName, element);
+		}
+		mOut.writeArrayEnd();
+	}
+
+	/**
+	 * Writes a map with its uri.
+	 * @param schema the schema for the map
+	 * @param fieldName the name of the field holding the map
+	 * @param map the map to write
+	 * @throws IOException if writing fails
+	 * @throws NotBoundException if the map is not bound properly
+	 */
+	private void writeMap(final Schema schema, final String fieldName,
+			final UriMap<?> map) throws IOException, NotBoundException {
+		writeUri(map.getInstanceUri());
+		mOut.writeMapStart();
+		mOut.setItemCount(map.size());
+		for (Map.Entry<String, ?> entry : map.entrySet()) {
+			mOut.startItem();
+			mOut.writeString(entry.getKey());
+			write(schema.getValueType(), fieldName, entry.getValue());
+		}
+		mOut.writeMapEnd();
+	}
+
+	/**
+	 * Writes a union as the position of its branch, which is 0 for a
+	 * union holding nothing, followed by its value.
+	 * @param schema the schema for the union
+	 * @param fieldName the name of the field holding the union
+	 * @param union the union to write
+	 * @throws IOException if writing fails
+	 * @throws NotBoundException if the value is not bound properly
+	 */
+	private void writeUnion(final Schema schema, final String fieldName,
+			final UriUnion union) throws IOException, NotBoundException {
+		final Schema branch = union.getValueSchema();
+		final int index = union.getBranch() + 1;
+		mOut.writeIndex(index);
+		if (index > 0) {
+			write(branch, fieldName, union.getValue());
+		}
+	}
+
+	/**
+	 * Writes blob data, spilling it to a file if it is too large.
+	 * @param value the data or a handle for it
+	 * @throws IOException if writing fails
+	 */
+	private void writeBlob(final Object value) throws IOException {
+		Uri uri = null;
+		if (value instanceof UriBlob) {
+			uri = ((UriBlob) value).getUri();
+			if (isSpilled(uri)) {
+				mSpilled.add(new File(uri.getPath()));
+			}
+		} else if (((byte[]) value).length >= SPILL_SIZE) {
+			uri = spill((byte[]) value);
+		}
+		if (uri == null) {
+			mOut.writeIndex(BLOB_DATA);
+			mOut.writeBytes((byte[]) value);
+		} else {
+			mOut.writeIndex(BLOB_URI);
+			mOut.writeString(uri.toString());
+		}
+	}
+
+	/**
+	 * @param uri the uri for blob data
+	 * @return true if the uri is for a file in the spill directory
+	 */
+	private boolean isSpilled(final Uri uri) {
+		return mSpillDir != null && "file".equals(uri.getScheme())
+				&& mSpillDir.equals(new File(uri.getPath()).getParentFile());
+	}
+
+	/**
+	 * Spills blob data to a file.
+	 * @param data the data to spill
+	 * @return the uri for the file or null if it could not be written
+	 */
+	private Uri spill(final byte[] data) {
+		Uri ret = null;
+		if (mSpillDir != null) {
+			FileOutputStream out = null;
+			try {
+				if (!mSpillDir.isDirectory() && !mSpillDir.mkdirs()) {
+					throw new IOException("Unable to create: " + mSpillDir);
+				}
+				final File file = File.createTempFile("blob", null, mSpillDir);
+				out = new FileOutputStream(file);
+				out.write(data);
+				mSpilled.add(file);
+				ret = Uri.fromFile(file);
+			} catch (IOException e) {
+				LOG.warn("Unable to spill blob. Keeping it in the state.", e);
+			} finally {
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+						LOG.warn("Ignoring exception closing spill.", e);
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Removes the files in the spill directory the snapshot does not
+	 * refer to. They were spilled for earlier snapshots.
+	 */
+	private void removeUnreferenced() {
+		if (mSpillDir != null) {
+			final File[] files = mSpillDir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (!mSpilled.contains(file) && !file.delete()) {
+						LOG.warn("Unable to remove spill: {}", file);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a uri which may be null.
+	 * @param uri the uri to write
+	 * @throws IOException if writing fails
+	 */
+	private void writeUri(final Uri uri) throws IOException {
+		mOut.writeBoolean(uri != null);
+		if (uri != null) {
+			mOut.writeString(uri.toString());
+		}
+	}
+
+	/**
+	 * Reads a value.
+	 * @param schema the schema for the value
+	 * @param fieldName the name of the field holding the value
+	 * @return the value
+	 * @throws IOException if reading fails
+	 * @throws NotBoundException if the value is not bound properly
+	 */
+	Object read(final Schema schema, final String fieldName)
+			throws IOException, NotBoundException {
+		return read(mIn.readIndex(), schema, fieldName);
+	}
+
+	/**
+	 * Reads a value after its marker.
+	 * @param marker the marker read for the value
+	 * @param schema the schema for the value
+	 * @param fieldName the name of the field holding the value
+	 * @return the value
+	 * @throws IOException if reading fails
+	 * @throws NotBoundException if the value is not bound properly
+	 */
+	private Object read(final int marker, final Schema schema,
+			final String fieldName) throws IOException, NotBoundException {
+		Object ret;
+		switch (marker) {
+		case ABSENT:
+			ret = null;
+			break;
+		case DEFERRED:
+			ret = readDeferred(schema, fieldName);
+			break;
+		case PRESENT:
+			ret = readPresent(schema, fieldName);
+			break;
+		case PAGED:
+			ret = readPaged(schema, fieldName);
+			break;
+		default:
+			throw new IOException("Corrupt state for: " + fieldName);
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads a value which is loaded on first access.
+	 * @param schema the schema for the value
+	 * @param fieldName the name of the field holding the value
+	 * @return the value
+	 * @throws IOException if reading fails
+	 * @throws NotBoundException if the value is not bound properly
+	 */
+	@SuppressWarnings("rawtypes")
+	private Object readDeferred(final Schema schema, final String fieldName)
+			throws IOException, NotBoundException {
+		final Uri uri = readUri();
+		Object ret;
+		switch (schema.getType()) {
+		case ARRAY:
+			ret = new UriArray(uri, schema).loadLazily(mResolver, fieldName);
+			break;
+		case MAP:
+			ret = new UriMap(uri, schema).loadLazily(mResolver, fieldName);
+			break;
+		case RECORD:
+			ret = new UriRecord(uri, schema).loadLazily(mResolver);
+			break;
+		default:
+			throw new IOException("Corrupt state for: " + fieldName);
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads the changes to a paged array and applies them to its rows.
+	 * @param schema the schema for the array
+	 * @param fieldName the name of the field holding the array
+	 * @return the array
+	 * @throws IOException if reading fails
+	 * @throws NotBoundException if the array is not bound properly
+	 */
+	@SuppressWarnings("rawtypes")
+	private Object readPaged(final Schema schema, final String fieldName)
+			throws IOException, NotBoundException {
+		final UriArray array = new UriArray(readUri(), schema);
+		array.loadPaged(mResolver, fieldName).readChanges(this, mIn,
+				schema.getElementType());
+		return array;
+	}
+
+	/**
+	 * Reads a value which was encoded in full.
+	 * @param schema the schema for the value
+	 * @param fieldName the name of the field holding the value
+	 * @return the value
+	 * @throws IOException if reading fails
+	 * @throws NotBoundException if the value is not bound properly
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Object readPresent(final Schema schema, final String fieldName)
+			throws IOException, NotBoundException {
+		Object ret;
+		switch (schema.getType()) {
+		case ARRAY:
+			final UriArray array = new UriArray(readUri(), schema);
+			for (long count = mIn.readArrayStart(); count > 0;
+					count = mIn.arrayNext()) {
+				for (long i = 0; i < count; i++) {
+					array.add(read(schema.getElementType(), fieldName));
+				}
+			}
+			ret = array;
+			break;
+		case BOOLEAN:
+			ret = mIn.readBoolean();
+			break;
+		case BYTES:
+		case FIXED:
+			ret = readBlob();
+			break;
+		case DOUBLE:
+			ret = mIn.readDouble();
+			break;
+		case ENUM:
+			ret = mIn.readEnum();
+			break;
+		case FLOAT:
+			ret = mIn.readFloat();
+			break;
+		case INT:
+			ret = mIn.readInt();
+			break;
+		case LONG:
+			ret = mIn.readLong();
+			break;
+		case MAP:
+			final UriMap map = new UriMap(readUri(), schema);
+			for (long count = mIn.readMapStart(); count > 0;
+					count = mIn.mapNext()) {
+				for (long i = 0; i < count; i++) {
+					final String key = mIn.readString(null).toString();
+					map.put(key, read(schema.getValueType(), fieldName));
+				}
+			}
+			ret = map;
+			break;
+		case NULL:
+			ret = null;
+			break;
+		case RECORD:
+			final UriRecord record = new UriRecord(readUri(), schema);
+			for (Field field : schema.getFields()) {
+				record.put(field.pos(), read(field.schema(), field.name()));
+			}
+			ret = record;
+			break;
+		case STRING:
+			ret = mIn.readString(null).toString();
+			break;
+		case UNION:
+			final UriUnion union = new UriUnion(schema);
+			final int index = mIn.readIndex();
+			if (index > 0) {
+				final Schema branch = schema.getTypes().get(index - 1);
+				union.setValue(read(branch, fieldName), branch);
+			}
+			ret = union;
+			break;
+		default:
+			throw new IllegalArgumentException(
+					"Unsupported type: " + schema);
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads blob data.
+	 * @return the data or a handle for it
+	 * @throws IOException if reading fails
+	 */
+	private Object readBlob() throws IOException {
+		Object ret;
+		if (mIn.readIndex() == BLOB_URI) {
+			ret = new UriBlob(Uri.parse(mIn.readString(null).toString()));
+		} else {
+			final ByteBuffer buffer = mIn.readBytes(null);
+			final byte[] data = new byte[buffer.remaining()];
+			buffer.get(data);
+			ret = data;
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads a uri which may be null.
+	 * @return the uri
+	 * @throws IOException if reading fails
+	 */
+	private Uri readUri() throws IOException {
+		Uri ret = null;
+		if (mIn.readBoolean()) {
+			ret = Uri.parse(mIn.readString(null).toString());
+		}
+		return ret;
+	}
+}
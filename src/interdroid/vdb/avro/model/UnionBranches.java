@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Type;
+
+/**
+ * The branches of a union schema by ordinal. Unions are stored as the
+ * ordinal of the branch they hold next to the type and name of the
+ * branch, which are checked against the ordinal on load so a reordered
+ * union is still read right. The table also resolves the type and name
+ * columns written by older versions to an ordinal. Tables are built once
+ * per union schema and a bounded number are cached by schema identity.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class UnionBranches {
+
+	/** The ordinal for a union which holds no branch. */
+	static final int NONE = -1;
+
+	/** The number of union schemas to keep tables for. */
+	private static final int CACHE_SIZE = 256;
+
+	/** The cached tables for union schemas. */
+	private static final SchemaCache<UnionBranches> TABLES =
+			new SchemaCache<UnionBranches>(CACHE_SIZE);
+
+	/** The branches by ordinal. */
+	private final Schema[] mBranches;
+	/** The ordinals by type and name for resolving old columns. */
+	private final Map<String, Integer> mOrdinals =
+			new HashMap<String, Integer>();
+
+	/**
+	 * Builds the table for the given union.
+	 * @param schema the union schema
+	 */
+	private UnionBranches(final Schema schema) {
+		final List<Schema> types = schema.getTypes();
+		mBranches = types.toArray(new Schema[types.size()]);
+		for (int i = 0; i < mBranches.length; i++) {
+			final Type type = mBranches[i].getType();
+			if (UriBoundAdapter.isNamedType(type)) {
+				mOrdinals.put(getKey(type, mBranches[i].getName()), i);
+				mOrdinals.put(getKey(type, mBranches[i].getFullName()), i);
+			} else {
+				mOrdinals.put(getKey(type, null), i);
+			}
+		}
+	}
+
+	/**
+	 * @param schema the union schema
+	 * @return the table for the union
+	 */
+	static UnionBranches forSchema(final Schema schema) {
+		UnionBranches ret = TABLES.get(schema);
+		if (ret == null) {
+			ret = new UnionBranches(schema);
+			TABLES.put(schema, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * @param type the type of a branch
+	 * @param name the name of a named branch or null
+	 * @return the key for the branch in the ordinal table
+	 */
+	private static String getKey(final Type type, final String name) {
+		String ret = type.name();
+		if (name != null) {
+			ret = ret + ':' + name;
+		}
+		return ret;
+	}
+
+	/**
+	 * @param ordinal the ordinal of the branch
+	 * @return the branch or null for NONE
+	 */
+	Schema get(final int ordinal) {
+		Schema ret = null;
+		if (ordinal != NONE) {
+			ret = mBranches[ordinal];
+		}
+		return ret;
+	}
+
+	/**
+	 * @param branch a branch of the union
+	 * @return the ordinal of the branch
+	 */
+	int getOrdinal(final Schema branch) {
+		int ret = NONE;
+		for (int i = 0; i < mBranches.length; i++) {
+			if (mBranches[i] == branch) {
+				ret = i;
+				break;
+			}
+		}
+		if (ret == NONE) {
+			ret = getOrdinal(branch.getType(), branch.getFullName());
+		}
+		return ret;
+	}
+
+	/**
+	 * Resolves the ordinal for a type and name as written by older
+	 * versions.
+	 * @param type the type of the branch
+	 * @param name the name of the branch, which is ignored for types
+	 * which are not named
+	 * @return the ordinal of the branch
+	 */
+	int getOrdinal(final Type type, final String name) {
+		String key;
+		if (UriBoundAdapter.isNamedType(type)) {
+			key = getKey(type, name);
+		} else {
+			key = getKey(type, null);
+		}
+		final Integer ret = mOrdinals.get(key);
+		if (ret == null) {
+			throw new IllegalStateException("Unable to find union inner type: "
+					+ type + " : " + name);
+		}
+		return ret;
+	}
+
+	/**
+	 * Resolves the ordinal stored for a branch, checking it against the
+	 * type and name stored next to it.
+	 * @param ordinal the stored ordinal
+	 * @param type the stored type of the branch
+	 * @param name the stored name of the branch
+	 * @return the ordinal of the branch
+	 */
+	int getOrdinal(final int ordinal, final String type, final String name) {
+		int ret = ordinal;
+		if (ordinal < 0 || ordinal >= mBranches.length
+				|| !mBranches[ordinal].getType().toString().equals(type)
+				|| (UriBoundAdapter.isNamedType(mBranches[ordinal].getType())
+						&& !mBranches[ordinal].getFullName().equals(name))) {
+			ret = getOrdinal(Type.valueOf(type), name);
+		}
+		return ret;
+	}
+
+	/**
+	 * @param typeColumn the value of a type column
+	 * @return true if the column holds an ordinal, false if it holds the
+	 * name of a type
+	 */
+	static boolean isOrdinal(final String typeColumn) {
+		return typeColumn.length() > 0
+				&& Character.isDigit(typeColumn.charAt(0));
+	}
+
+	/**
+	 * @param typeColumn the value of a type column holding an ordinal
+	 * @return the ordinal
+	 */
+	int parseOrdinal(final String typeColumn) {
+		final int ret = Integer.parseInt(typeColumn);
+		if (ret >= mBranches.length) {
+			throw new IllegalStateException(
+					"Union branch out of range: " + ret);
+		}
+		return ret;
+	}
+}
@@ -34,6 +34,12 @@ import interdroid.vdb.avro.model.UriBoundAdapter.UriBoundAdapterImpl;
 import interdroid.vdb.content.EntityUriMatcher;
 import interdroid.vdb.content.EntityUriMatcher.UriMatch;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.avro.Schema;
 import org.apache.avro.Schema.Type;
 import org.apache.avro.generic.GenericData;
@@ -41,6 +47,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
@@ -64,49 +71,260 @@ implements UriBound<UriArray<A>> {
 	/** The default size to construct arrays with. */
 	private static final int DEFAULT_ARRAY_SIZE = 10;
 
+	/**
+	 * Arrays with more rows than this are loaded a page at a time if
+	 * their elements can be stored without knowing their row.
+	 */
+	private static final int PAGING_THRESHOLD = 1000;
+
+	/** The number of rows in a page of a paged array. */
+	private static final int PAGE_SIZE = 100;
+
+	/** The row id used for elements which are not stored in a row. */
+	private static final long NO_ROW = -1;
+
+	/**
+	 * Tracks the provider row an element is stored in.
+	 */
+	private static final class Row {
+		/** The id of the row or NO_ROW. */
+		private final long mId;
+		/** Has the element changed since the row was written. */
+		private boolean mChanged;
+
+		/**
+		 * Construct a row.
+		 * @param id the id of the row or NO_ROW
+		 */
+		Row(final long id) {
+			mId = id;
+		}
+	}
+
+	/** The rows holding each element, kept in step with the elements. */
+	private final ArrayList<Row> mRows = new ArrayList<Row>();
+	/** The ids of rows whose elements were removed since the last save. */
+	private final ArrayList<Long> mRemovedRows = new ArrayList<Long>();
+	/** Do mRows and mRemovedRows describe the rows in the provider. */
+	private boolean mRowsKnown;
+	/** The elements as they were when first changed after a snapshot. */
+	private ArrayList<A> mPreImage;
+	/** The codec for the elements, compiled on first use. */
+	private FieldCodec mElementCodec;
+	/**
+	 * The elements if they are of a primitive type or null if they are
+	 * kept by GenericData.Array.
+	 */
+	private PrimitiveElements mPrimitive;
+	/** The primitive elements as they were when first changed. */
+	private PrimitiveElements mPrimitivePreImage;
+	/** The elements if the array is loaded a page at a time or null. */
+	private PagedElements mPaged;
+	/** The paged elements as they were when the snapshot was taken. */
+	private PagedElements mPagedOriginal;
+
 	/** The implementation of our UriBoundAdapter. */
 	private final UriBoundAdapterImpl<UriArray<A>> mBinderImpl =
 			new UriBoundAdapterImpl<UriArray<A>>() {
 
 		@Override
-		public final void saveImpl(final ContentResolver resolver,
+		public final void saveImpl(final UriBatch batch,
+				final ContentResolver resolver,
 				final String fieldName) throws NotBoundException {
 			LOG.debug("Saving array: {} : {}", getInstanceUri(), fieldName);
+			if (mPaged != null) {
+				mPaged.save(batch, resolver, getInstanceUri(), fieldName);
+			} else {
+				saveRows(batch, resolver, fieldName);
+			}
+		}
+
+		/**
+		 * Saves the elements held in memory, keeping the rows of elements
+		 * which did not move.
+		 * @param batch the batch to save with
+		 * @param resolver the resolver to save with
+		 * @param fieldName the name of the field being saved
+		 * @throws NotBoundException if the array is not bound
+		 */
+		private void saveRows(final UriBatch batch,
+				final ContentResolver resolver,
+				final String fieldName) throws NotBoundException {
+			final int tail = getFirstMovedRow();
+
+			// Drop the rows of removed elements and of the tail which
+			// has to be reinserted to keep the rows in array order.
+			if (mRowsKnown) {
+				for (Long id : mRemovedRows) {
+					batch.delete(getRowUri(id));
+				}
+				for (int i = tail; i < size(); i++) {
+					if (mRows.get(i).mId != NO_ROW) {
+						batch.delete(getRowUri(mRows.get(i).mId));
+					}
+				}
+			} else {
+				batch.delete(getInstanceUri());
+			}
+
+			// Rows which kept their place are only updated if they changed
+			// but elements with their own changed data still need saving.
+			for (int i = 0; i < tail; i++) {
+				final Row row = mRows.get(i);
+				final Object value = get(i);
+				if (row.mChanged || UriDataManager.isDirty(value)) {
+					final Uri rowUri = getRowUri(row.mId);
+					final ContentValues values = new ContentValues();
+					storeElement(batch, resolver, rowUri, values, fieldName,
+							value);
+					if (row.mChanged) {
+						batch.update(rowUri, values);
+					}
+				}
+			}
 
-			deleteImpl(resolver, false);
-
-			final ContentValues values = new ContentValues();
-			for (Object value : UriArray.this) {
-				values.clear();
-				// First insert a null row
-				final Uri idUri = UriDataManager.insertUri(resolver,
-						getInstanceUri(), values);
-				LOG.debug("Got id uri for array row: " + idUri);
-				final Uri dataUri = UriDataManager.storeDataToUri(resolver,
-						idUri, values, fieldName,
-						getSchema().getElementType(), value);
-				if (dataUri != null) {
-					final UriMatch match = EntityUriMatcher.getMatch(dataUri);
-					values.put(fieldName, match.entityIdentifier);
+			// Nested arrays and maps are saved under the uri they are bound
+			// to and the row only refers to them, so every row goes in with
+			// the same batch. A new row has no old nested data to delete.
+			final boolean independent = UriDataManager.isRowIndependent(
+					getSchema().getElementType());
+			for (int i = tail; i < size(); i++) {
+				final ContentValues values = new ContentValues();
+				final Object value = get(i);
+				if (independent || value != null) {
+					storeElement(batch, resolver, getInstanceUri(), values,
+							fieldName, value);
 				}
-				UriDataManager.updateUriOrThrow(resolver, idUri, values);
+				final int index = i;
+				batch.insert(getInstanceUri(), values,
+						new UriBatch.InsertListener() {
+					@Override
+					public void inserted(final Uri uri) {
+						mRows.set(index, new Row(getRowId(uri)));
+					}
+				});
 			}
+			batch.whenApplied(new Runnable() {
+				@Override
+				public void run() {
+					rebindBlobs(tail, fieldName);
+					markRowsSaved();
+				}
+			});
+			LOG.debug("Saving {} elements from row {}", size(), tail);
 		}
 
+		/**
+		 * Points the handles for the data of reinserted elements at the
+		 * rows the data now lives in.
+		 * @param from the first reinserted element
+		 * @param fieldName the name of the field being saved
+		 */
 		@SuppressWarnings("unchecked")
+		private void rebindBlobs(final int from, final String fieldName) {
+			for (int i = from; i < size(); i++) {
+				if (get(i) instanceof UriBlob) {
+					try {
+						UriArray.super.set(i, (A) new UriBlob(
+								getRowUri(mRows.get(i).mId), fieldName));
+					} catch (NotBoundException e) {
+						throw new IllegalStateException(
+								"Saved array is not bound.", e);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Stores an element to the given values.
+		 * @param batch the batch to save nested data with
+		 * @param resolver the resolver to save with
+		 * @param rowUri the uri for the row holding the element
+		 * @param values the values for the row
+		 * @param fieldName the name of the field being saved
+		 * @param value the element to store
+		 * @throws NotBoundException if the element is not bound
+		 */
+		private void storeElement(final UriBatch batch,
+				final ContentResolver resolver, final Uri rowUri,
+				final ContentValues values, final String fieldName,
+				final Object value) throws NotBoundException {
+			final Uri dataUri = getElementCodec().store(batch, resolver,
+					rowUri, values, fieldName, value);
+			if (dataUri != null) {
+				final UriMatch match = EntityUriMatcher.getMatch(dataUri);
+				values.put(fieldName, match.entityIdentifier);
+			}
+		}
+
 		@Override
 		public final UriArray<A> loadImpl(final ContentResolver resolver,
 				final String fieldName) throws NotBoundException {
 			LOG.debug("Loading array from uri: {} : {}", getInstanceUri(),
 					getSchema());
+			final String[] projection = LoadPlan.getFieldProjection(resolver,
+					getInstanceUri(), getSchema(), getSchema().getElementType(),
+					fieldName, null);
+			// The rows are counted first so a large array is never read.
+			final int count = PagedElements.count(resolver, getInstanceUri());
+			if (count > PAGING_THRESHOLD && UriDataManager.isRowIndependent(
+					getSchema().getElementType())) {
+				LOG.debug("Paging {} rows of: {}", count, getInstanceUri());
+				page(resolver, fieldName, projection, count);
+			} else {
+				loadRows(resolver, fieldName, projection);
+			}
+			return UriArray.this;
+		}
+
+		/**
+		 * Loads all elements into memory.
+		 * @param resolver the resolver to load with
+		 * @param fieldName the name of the field being loaded
+		 * @param projection the columns to load
+		 * @throws NotBoundException if the array is not bound
+		 */
+		@SuppressWarnings("unchecked")
+		private void loadRows(final ContentResolver resolver,
+				final String fieldName, final String[] projection)
+						throws NotBoundException {
 			final Cursor cursor = resolver.query(getInstanceUri(),
-					null, null, null, null);
+					projection, null, null, null);
 			try {
 				if (cursor != null) {
+					final LoadPlan plan = LoadPlan.forField(
+							getInstanceUri(), fieldName, cursor, null);
+					final int idIndex = plan.getIdIndex();
+					final Schema elementSchema = getSchema().getElementType();
+					final FieldCodec codec = getElementCodec();
+					Map<Long, UriRecord> records = null;
+					if (elementSchema.getType() == Type.RECORD
+							&& !mUriBinder.isLazy()) {
+						records = UriDataManager.loadRecords(resolver,
+								getInstanceUri(), elementSchema,
+								UriDataManager.getRecordIds(cursor,
+										plan.getValueIndex(0)));
+						cursor.moveToPosition(-1);
+					}
 					while (cursor.moveToNext()) {
-						add((A) UriDataManager.loadDataFromUri(resolver,
-								getInstanceUri(), cursor, fieldName,
-								getSchema().getElementType()));
+						if (mPrimitive != null) {
+							mPrimitive.add(cursor, plan.getValueIndex(0));
+							mRows.add(new Row(NO_ROW));
+						} else if (records != null) {
+							add((A) records.get(
+									cursor.getLong(plan.getValueIndex(0))));
+						} else {
+							add((A) codec.load(resolver, getInstanceUri(),
+									cursor, fieldName, plan, 0,
+									mUriBinder.isLazy()));
+						}
+						if (idIndex >= 0) {
+							mRows.set(size() - 1,
+									new Row(cursor.getLong(idIndex)));
+						}
+					}
+					if (idIndex >= 0) {
+						markRowsSaved();
 					}
 				} else {
 					throw new IllegalArgumentException("Unable to load: "
@@ -115,7 +333,6 @@ implements UriBound<UriArray<A>> {
 			} finally {
 				UriDataManager.safeClose(cursor);
 			}
-			return UriArray.this;
 		}
 
 		@Override
@@ -124,28 +341,19 @@ implements UriBound<UriArray<A>> {
 			deleteImpl(resolver, true);
 		}
 
-		@SuppressWarnings("rawtypes")
 		public final void deleteImpl(final ContentResolver resolver,
 				final boolean recursion)
 						throws NotBoundException {
 			LOG.debug("Deleting Array: {}", getInstanceUri());
 			if (recursion) {
 				LOG.debug("Handling recursive delete of array.");
-				if (UriBoundAdapter.isBoundType(
-						getSchema().getElementType().getType())) {
-					for (Object element : UriArray.this) {
-						if (element != null) {
-							((UriBound) element).delete(resolver);
-						}
-					}
-				} else if (getSchema().getElementType().getType()
-						== Type.UNION) {
-					for (Object element : UriArray.this) {
-						((UriUnion) element).delete(resolver);
-					}
-				}
+				CascadeDelete.deleteCollection(resolver, getInstanceUri(),
+						getSchema());
+			} else {
+				UriDataManager.keepOriginals(resolver, getInstanceUri());
+				resolver.delete(getInstanceUri(), null, null);
 			}
-			resolver.delete(getInstanceUri(), null, null);
+			mRowsKnown = false;
 		}
 
 		@Override
@@ -157,30 +365,21 @@ implements UriBound<UriArray<A>> {
 				saveArray(outState, fieldFullName);
 				break;
 			case BOOLEAN:
-				final boolean[] bools = saveBoolean();
-				outState.putBooleanArray(fieldFullName, bools);
+			case DOUBLE:
+			case FLOAT:
+			case INT:
+			case LONG:
+				getPrimitiveElements().save(outState, fieldFullName);
 				break;
 			case BYTES:
 				saveBytes(outState, fieldFullName);
 				break;
-			case DOUBLE:
-				saveDouble(outState, fieldFullName);
-				break;
 			case ENUM:
 				saveString(outState, fieldFullName);
 				break;
 			case FIXED:
 				saveBytes(outState, fieldFullName);
 				break;
-			case FLOAT:
-				saveFloat(outState, fieldFullName);
-				break;
-			case INT:
-				saveInt(outState, fieldFullName);
-				break;
-			case LONG:
-				saveLong(outState, fieldFullName);
-				break;
 			case MAP:
 				saveMap(outState, fieldFullName);
 				break;
@@ -231,36 +430,6 @@ implements UriBound<UriArray<A>> {
 			}
 		}
 
-		private void
-				saveLong(final Bundle outState, final String fieldFullName) {
-			long[] longs = new long[size()];
-			int i = 0;
-			for (Object element : UriArray.this) {
-				longs[i++] = (Long) element;
-			}
-			outState.putLongArray(fieldFullName, longs);
-		}
-
-		private void saveInt(final Bundle outState,
-				final String fieldFullName) {
-			int[] ints = new int[size()];
-			int i = 0;
-			for (Object element : UriArray.this) {
-				ints[i++] = (Integer) element;
-			}
-			outState.putIntArray(fieldFullName, ints);
-		}
-
-		private void
-				saveFloat(final Bundle outState, final String fieldFullName) {
-			float[] floats = new float[size()];
-			int i = 0;
-			for (Object element : UriArray.this) {
-				floats[i++] = (Float) element;
-			}
-			outState.putFloatArray(fieldFullName, floats);
-		}
-
 		private void
 				saveString(final Bundle outState, final String fieldFullName) {
 			String[] strings = new String[size()];
@@ -271,34 +440,15 @@ implements UriBound<UriArray<A>> {
 			outState.putStringArray(fieldFullName, strings);
 		}
 
-		private void saveDouble(final Bundle outState,
-				final String fieldFullName) {
-			double[] doubles = new double[size()];
-			int i = 0;
-			for (Object element : UriArray.this) {
-				doubles[i++] = (Double) element;
-			}
-			outState.putDoubleArray(fieldFullName, doubles);
-		}
-
 		private void
 				saveBytes(final Bundle outState, final String fieldFullName) {
 			saveSize(outState, fieldFullName);
 			int i = 0;
 			for (Object element : UriArray.this) {
-				outState.putByteArray(NameHelper.getIndexedFieldName(
-						fieldFullName, i++),
-						(byte[]) element);
-			}
-		}
-
-		private boolean[] saveBoolean() {
-			boolean[] bools = new boolean[size()];
-			int i = 0;
-			for (Object element : UriArray.this) {
-				bools[i++] = (Boolean) element;
+				BundleDataManager.storeBlobToBundle(outState,
+						NameHelper.getIndexedFieldName(fieldFullName, i++),
+						element);
 			}
-			return bools;
 		}
 
 		private void
@@ -320,29 +470,21 @@ implements UriBound<UriArray<A>> {
 				loadArray(saved, fieldName);
 				break;
 			case BOOLEAN:
-				loadBoolean(saved, fieldName);
+			case DOUBLE:
+			case FLOAT:
+			case INT:
+			case LONG:
+				loadPrimitive(saved, fieldName);
 				break;
 			case BYTES:
 				loadBytes(saved, fieldName);
 				break;
-			case DOUBLE:
-				loadDouble(saved, fieldName);
-				break;
 			case ENUM:
 				loadString(saved, fieldName);
 				break;
 			case FIXED:
 				loadBytes(saved, fieldName);
 				break;
-			case FLOAT:
-				loadFloat(saved, fieldName);
-				break;
-			case INT:
-				loadInt(saved, fieldName);
-				break;
-			case LONG:
-				loadLong(saved, fieldName);
-				break;
 			case MAP:
 				loadMap(saved, fieldName);
 				break;
@@ -408,33 +550,16 @@ implements UriBound<UriArray<A>> {
 			}
 		}
 
-		@SuppressWarnings("unchecked")
-		private void loadLong(final Bundle saved, final String fieldName) {
-			long[] savedData = saved.getLongArray(fieldName);
-			if (savedData != null) {
-				for (long value : savedData) {
-					add((A) Long.valueOf(value));
-				}
-			}
-		}
-
-		@SuppressWarnings("unchecked")
-		private void loadInt(final Bundle saved, final String fieldName) {
-			int[] savedData = saved.getIntArray(fieldName);
-			if (savedData != null) {
-				for (int value : savedData) {
-					add((A) Integer.valueOf(value));
-				}
-			}
-		}
-
-		@SuppressWarnings("unchecked")
-		private void loadFloat(final Bundle saved, final String fieldName) {
-			float[] savedData = saved.getFloatArray(fieldName);
-			if (savedData != null) {
-				for (float value : savedData) {
-					add((A) Float.valueOf(value));
-				}
+		/**
+		 * Adopts the primitive array stored in the bundle as the elements.
+		 * @param saved the bundle to load from
+		 * @param fieldName the name of the field
+		 */
+		private void loadPrimitive(final Bundle saved, final String fieldName) {
+			final int count = mPrimitive.load(saved, fieldName);
+			mRows.clear();
+			for (int i = 0; i < count; i++) {
+				mRows.add(new Row(NO_ROW));
 			}
 		}
 
@@ -448,34 +573,12 @@ implements UriBound<UriArray<A>> {
 			}
 		}
 
-		@SuppressWarnings("unchecked")
-		private void loadDouble(final Bundle saved, final String fieldName) {
-			double[] savedData = saved.getDoubleArray(fieldName);
-			if (savedData != null) {
-				for (double value : savedData) {
-					add((A) Double.valueOf(value));
-				}
-			}
-		}
-
 		@SuppressWarnings("unchecked")
 		private void loadBytes(final Bundle saved, final String fieldName) {
 			int count = saved.getInt(NameHelper.getCountName(fieldName));
 			for (int i = 0; i < count; i++) {
-				byte[] data = saved.getByteArray(
-						NameHelper.getIndexedFieldName(
-								fieldName, i));
-				add((A) data);
-			}
-		}
-
-		@SuppressWarnings("unchecked")
-		private void loadBoolean(final Bundle saved, final String fieldName) {
-			boolean[] savedData = saved.getBooleanArray(fieldName);
-			if (savedData != null) {
-				for (boolean value : savedData) {
-					add((A) Boolean.valueOf(value));
-				}
+				add((A) BundleDataManager.loadBlobFromBundle(saved,
+						NameHelper.getIndexedFieldName(fieldName, i)));
 			}
 		}
 
@@ -492,8 +595,438 @@ implements UriBound<UriArray<A>> {
 			}
 		}
 
+		@Override
+		public boolean isDirtyImpl() {
+			boolean ret;
+			if (mPaged != null) {
+				ret = mPaged.isDirty();
+			} else {
+				ret = !mRowsKnown || !mRemovedRows.isEmpty();
+				for (int i = 0; !ret && i < size(); i++) {
+					ret = mRows.get(i).mChanged
+							|| mRows.get(i).mId == NO_ROW
+							|| (mPrimitive == null
+							&& UriDataManager.isDirty(get(i)));
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public void markDirtyImpl() {
+			mRowsKnown = false;
+			if (mPaged != null) {
+				mPaged.markDirty();
+			} else if (mPrimitive == null) {
+				for (Object element : UriArray.this) {
+					UriDataManager.markDirty(element);
+				}
+			}
+		}
+
+		@Override
+		public void markChangedImpl(final Object stored) {
+			// Rows are not matched up so all of them are written.
+			markDirtyImpl();
+		}
+
+		@Override
+		public void markCleanImpl() {
+			// Paged arrays with changes never hash the same. Elements
+			// without a row, or rows removed for them, have to be written.
+			boolean rows = mPaged == null && mRowsKnown;
+			for (int i = 0; rows && i < size(); i++) {
+				rows = mRows.get(i).mId != NO_ROW;
+			}
+			if (rows) {
+				markRowsSaved();
+			}
+			for (int i = 0; mPrimitive == null && mPaged == null
+					&& i < size(); i++) {
+				UriDataManager.markClean(get(i));
+			}
+		}
+
+		@Override
+		public void snapshotImpl(final ContentResolver resolver) {
+			mPreImage = null;
+			mPrimitivePreImage = null;
+			mPagedOriginal = null;
+			if (mPaged != null) {
+				mPagedOriginal = mPaged.preserve();
+			}
+			for (int i = 0; mPrimitive == null && mPaged == null
+					&& i < size(); i++) {
+				UriDataManager.snapshot(resolver, get(i));
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public UriArray<A> getSnapshotImpl() throws NotBoundException {
+			UriArray<A> ret = UriArray.this;
+			if (mPaged != null) {
+				// The original reads the rows from the provider until they
+				// are changed and keeps them in memory from then on.
+				if (mPagedOriginal != null && (mPaged.isDirty()
+						|| mPagedOriginal.isDirty())) {
+					ret = new UriArray<A>(getInstanceUri(), getSchema());
+					ret.mPaged = mPagedOriginal;
+					ret.mPrimitive = null;
+				}
+			} else if (mPrimitivePreImage != null) {
+				ret = new UriArray<A>(getInstanceUri(), getSchema());
+				ret.mPrimitive = mPrimitivePreImage.copy();
+				for (int i = 0; i < ret.mPrimitive.size(); i++) {
+					ret.mRows.add(new Row(NO_ROW));
+				}
+			} else if (mPrimitive == null && !mUriBinder.isLoadDeferred()) {
+				List<A> elements = mPreImage;
+				if (elements == null) {
+					elements = UriArray.this;
+				}
+				boolean changed = mPreImage != null;
+				final List<A> snapshot = new ArrayList<A>(elements.size());
+				for (A element : elements) {
+					final A original = (A) UriDataManager.getSnapshot(element);
+					changed |= original != element;
+					snapshot.add(original);
+				}
+				if (changed) {
+					ret = new UriArray<A>(getInstanceUri(), getSchema());
+					for (A element : snapshot) {
+						ret.add(element);
+					}
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public long contentHashImpl() {
+			long ret;
+			if (mPaged == null) {
+				ret = ContentHash.mix(ContentHash.EMPTY, size());
+				for (int i = 0; i < size(); i++) {
+					ret = ContentHash.mix(ret, ContentHash.of(get(i)));
+				}
+			} else if (mPaged.isDirty()) {
+				// Hashing the elements would load every page.
+				ret = ContentHash.unique();
+			} else {
+				ret = ContentHash.mix(ContentHash.EMPTY, mPaged.size());
+			}
+			return ret;
+		}
+
 	};
 
+	/**
+	 * Returns the position of the first element which is not stored in a
+	 * row that follows the rows of the elements before it. Everything from
+	 * there on has to be reinserted to keep the rows in array order.
+	 * @return the position of the first moved row
+	 */
+	private int getFirstMovedRow() {
+		int ret = 0;
+		if (mRowsKnown) {
+			long last = NO_ROW;
+			ret = size();
+			for (int i = 0; i < size(); i++) {
+				final long id = mRows.get(i).mId;
+				if (id == NO_ROW || id <= last) {
+					ret = i;
+					break;
+				}
+				last = id;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Marks all rows as matching the provider.
+	 */
+	private void markRowsSaved() {
+		mRowsKnown = true;
+		for (Row row : mRows) {
+			row.mChanged = false;
+			if (row.mId == NO_ROW) {
+				mRowsKnown = false;
+			}
+		}
+		mRemovedRows.clear();
+	}
+
+	/**
+	 * @param id the id of a row
+	 * @return the uri for the row
+	 * @throws NotBoundException if the array is not bound
+	 */
+	private Uri getRowUri(final long id) throws NotBoundException {
+		return ContentUris.withAppendedId(getInstanceUri(), id);
+	}
+
+	/**
+	 * @param rowUri the uri of an inserted row
+	 * @return the id of the row or NO_ROW if the insert failed
+	 */
+	private static long getRowId(final Uri rowUri) {
+		long ret = NO_ROW;
+		if (rowUri != null) {
+			ret = ContentUris.parseId(rowUri);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the codec for the elements
+	 */
+	private FieldCodec getElementCodec() {
+		if (mElementCodec == null) {
+			mElementCodec = FieldCodec.forSchema(getSchema().getElementType());
+		}
+		return mElementCodec;
+	}
+
+	/**
+	 * @return the primitive elements, copied out of the pages if the
+	 * array is paged
+	 */
+	private PrimitiveElements getPrimitiveElements() {
+		PrimitiveElements ret = mPrimitive;
+		if (mPaged != null) {
+			ret = PrimitiveElements.forType(
+					getSchema().getElementType().getType());
+			for (int i = 0; i < mPaged.size(); i++) {
+				ret.add(i, mPaged.get(i));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Makes the array load its rows a page at a time.
+	 * @param resolver the resolver to load with
+	 * @param fieldName the name of the field holding the array
+	 * @param projection the columns to load a page with
+	 * @param count the number of rows
+	 * @throws NotBoundException if the array is not bound
+	 */
+	private void page(final ContentResolver resolver, final String fieldName,
+			final String[] projection, final int count)
+					throws NotBoundException {
+		mPaged = new PagedElements(resolver, getInstanceUri(), fieldName,
+				getElementCodec(), projection, count, PAGE_SIZE);
+		mPrimitive = null;
+	}
+
+	/**
+	 * Loads the array a page at a time whatever its size, so changes to
+	 * its pages can be applied to it.
+	 * @param resolver the resolver to load with
+	 * @param fieldName the name of the field holding the array
+	 * @return the paged elements
+	 * @throws NotBoundException if the array is not bound
+	 */
+	final PagedElements loadPaged(final ContentResolver resolver,
+			final String fieldName) throws NotBoundException {
+		page(resolver, fieldName, LoadPlan.getFieldProjection(resolver,
+				getInstanceUri(), getSchema(), getSchema().getElementType(),
+				fieldName, null),
+				PagedElements.count(resolver, getInstanceUri()));
+		return mPaged;
+	}
+
+	/**
+	 * @return the paged elements or null if the array is held in memory
+	 */
+	final PagedElements getPaged() {
+		mUriBinder.ensureLoaded();
+		return mPaged;
+	}
+
+	/**
+	 * Keeps a copy of the elements if this is the first change since a
+	 * snapshot was taken.
+	 */
+	private void preserve() {
+		if (mPaged == null && mUriBinder.isPreserving()) {
+			if (mPrimitive != null) {
+				if (mPrimitivePreImage == null) {
+					mPrimitivePreImage = mPrimitive.copy();
+				}
+			} else if (mPreImage == null) {
+				mPreImage = new ArrayList<A>(this);
+			}
+		}
+	}
+
+	@Override
+	public final int size() {
+		mUriBinder.ensureLoaded();
+		int ret;
+		if (mPaged != null) {
+			ret = mPaged.size();
+		} else if (mPrimitive == null) {
+			ret = super.size();
+		} else {
+			ret = mPrimitive.size();
+		}
+		return ret;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public final A get(final int i) {
+		mUriBinder.ensureLoaded();
+		A ret;
+		if (mPaged != null) {
+			ret = (A) mPaged.get(i);
+		} else if (mPrimitive == null) {
+			ret = super.get(i);
+		} else {
+			ret = (A) mPrimitive.get(i);
+		}
+		return ret;
+	}
+
+	@Override
+	public final Iterator<A> iterator() {
+		mUriBinder.ensureLoaded();
+		Iterator<A> ret;
+		if (mPrimitive == null && mPaged == null) {
+			ret = super.iterator();
+		} else {
+			// The AbstractList iterator works through get and size.
+			ret = listIterator();
+		}
+		return ret;
+	}
+
+	@Override
+	public final String toString() {
+		String ret;
+		if (mUriBinder.isLoadDeferred()) {
+			ret = "[not loaded]";
+		} else {
+			ret = super.toString();
+		}
+		return ret;
+	}
+
+	@Override
+	public final boolean add(final A element) {
+		mUriBinder.ensureLoaded();
+		preserve();
+		boolean ret = true;
+		if (mPaged != null) {
+			mPaged.add(mPaged.size(), element);
+		} else {
+			if (mPrimitive == null) {
+				ret = super.add(element);
+			} else {
+				mPrimitive.add(mPrimitive.size(), element);
+			}
+			mRows.add(new Row(NO_ROW));
+		}
+		return ret;
+	}
+
+	@Override
+	public final void add(final int location, final A element) {
+		mUriBinder.ensureLoaded();
+		preserve();
+		if (mPaged != null) {
+			mPaged.add(location, element);
+		} else {
+			if (mPrimitive == null) {
+				super.add(location, element);
+			} else {
+				mPrimitive.add(location, element);
+			}
+			mRows.add(location, new Row(NO_ROW));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public final A set(final int index, final A element) {
+		mUriBinder.ensureLoaded();
+		preserve();
+		A ret;
+		if (mPaged != null) {
+			ret = (A) mPaged.set(index, element);
+		} else {
+			if (mPrimitive == null) {
+				ret = super.set(index, element);
+			} else {
+				ret = (A) mPrimitive.set(index, element);
+			}
+			mRows.get(index).mChanged = true;
+		}
+		return ret;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public final A remove(final int index) {
+		mUriBinder.ensureLoaded();
+		preserve();
+		A ret;
+		if (mPaged != null) {
+			ret = (A) mPaged.remove(index);
+		} else {
+			if (mPrimitive == null) {
+				ret = super.remove(index);
+			} else {
+				ret = (A) mPrimitive.remove(index);
+			}
+			final Row row = mRows.remove(index);
+			if (row.mId != NO_ROW) {
+				mRemovedRows.add(row.mId);
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public final void clear() {
+		mUriBinder.ensureLoaded();
+		preserve();
+		if (mPaged != null) {
+			mPaged.clear();
+		} else {
+			if (mPrimitive == null) {
+				super.clear();
+			} else {
+				mPrimitive.clear();
+			}
+			for (Row row : mRows) {
+				if (row.mId != NO_ROW) {
+					mRemovedRows.add(row.mId);
+				}
+			}
+			mRows.clear();
+		}
+	}
+
+	@Override
+	public final void reverse() {
+		mUriBinder.ensureLoaded();
+		preserve();
+		if (mPaged != null) {
+			mPaged.reverse();
+		} else {
+			if (mPrimitive == null) {
+				super.reverse();
+			} else {
+				mPrimitive.reverse();
+			}
+			Collections.reverse(mRows);
+		}
+	}
+
 	/**
 	 * Construct with the given schema from the bundle.
 	 * @param schema the schema for the array
@@ -501,6 +1034,8 @@ implements UriBound<UriArray<A>> {
 	 */
 	public UriArray(final Schema schema, final Bundle saved) {
 		super(DEFAULT_ARRAY_SIZE, schema);
+		mPrimitive = PrimitiveElements.forType(
+				schema.getElementType().getType());
 		mUriBinder = new UriBoundAdapter<UriArray<A>>(saved, mBinderImpl);
 	}
 
@@ -511,10 +1046,65 @@ implements UriBound<UriArray<A>> {
 	 */
 	public UriArray(final Uri uri, final Schema schema) {
 		super(DEFAULT_ARRAY_SIZE, schema);
+		mPrimitive = PrimitiveElements.forType(
+				schema.getElementType().getType());
 		LOG.debug("UriArray built and bound to: {}", uri);
 		mUriBinder = new UriBoundAdapter<UriArray<A>>(uri, mBinderImpl);
 	}
 
+	@Override
+	public final void snapshot(final ContentResolver resolver) {
+		mUriBinder.snapshot(resolver);
+	}
+
+	@Override
+	public final UriArray<A> getSnapshot() throws NotBoundException {
+		return mUriBinder.getSnapshot();
+	}
+
+	/**
+	 * @return true if loading was deferred and has not happened yet
+	 */
+	final boolean isLoadDeferred() {
+		return mUriBinder.isLoadDeferred();
+	}
+
+	@Override
+	public final boolean isDirty() {
+		return mUriBinder.isDirty();
+	}
+
+	/**
+	 * @return a structural hash of the elements in this array
+	 */
+	final long getContentHash() {
+		return mUriBinder.getContentHash();
+	}
+
+	/**
+	 * @param hash the content hash to check
+	 * @return true if the provider held data with the given hash when
+	 * this array was last loaded or saved
+	 */
+	final boolean isSaved(final long hash) {
+		return mUriBinder.isSaved(hash);
+	}
+
+	@Override
+	public final void markDirty() {
+		mUriBinder.markDirty();
+	}
+
+	@Override
+	public final void markChanged(final Object stored) {
+		mUriBinder.markChanged(stored);
+	}
+
+	@Override
+	public final void markClean() {
+		mUriBinder.markClean();
+	}
+
 	@Override
 	public final Uri getInstanceUri() throws NotBoundException {
 		return mUriBinder.getInstanceUri();
@@ -532,6 +1122,18 @@ implements UriBound<UriArray<A>> {
 		mUriBinder.save(resolver, fieldName);
 	}
 
+	/**
+	 * Adds the operations to save this array to the given batch.
+	 * @param batch the batch to save with
+	 * @param resolver the resolver to save with
+	 * @param fieldName the field being saved
+	 * @throws NotBoundException if this is not bound
+	 */
+	final void save(final UriBatch batch, final ContentResolver resolver,
+			final String fieldName) throws NotBoundException {
+		mUriBinder.save(batch, resolver, fieldName);
+	}
+
 	@Override
 	public final UriArray<A> load(final ContentResolver resolver,
 			final String fieldName)
@@ -539,6 +1141,20 @@ implements UriBound<UriArray<A>> {
 		return mUriBinder.load(resolver, fieldName);
 	}
 
+	/**
+	 * Binds this array for loading from the resolver on first access.
+	 * @param resolver the resolver to load with
+	 * @param fieldName the field to be loaded
+	 * @return this array
+	 * @throws NotBoundException if this is not bound
+	 */
+	public final UriArray<A> loadLazily(final ContentResolver resolver,
+			final String fieldName)
+					throws NotBoundException {
+		mUriBinder.defer(resolver, fieldName);
+		return this;
+	}
+
 	@Override
 	public final void save(final Bundle outState, final String prefix)
 			throws NotBoundException {
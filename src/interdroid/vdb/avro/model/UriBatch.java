@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+
+/**
+ * Collects inserts, updates and deletes against a content provider so
+ * they can be sent to the provider with a single applyBatch call instead
+ * of one call per row. A save of a whole graph shares one batch which is
+ * applied once at the end, or earlier when a row has to exist before the
+ * data stored under it can be saved. BYTES and FIXED data is not sent
+ * with the operations but streamed to the rows once they are written.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class UriBatch {
+	/** Access to logger. */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(UriBatch.class);
+
+	/**
+	 * Receives the uri of an inserted row once the batch is applied.
+	 */
+	interface InsertListener {
+		/**
+		 * Called when the row was inserted.
+		 * @param uri the uri for the row or null if the insert failed
+		 */
+		void inserted(Uri uri);
+	}
+
+	/**
+	 * Data to stream to a blob field of a row once the operation writing
+	 * the row is applied.
+	 */
+	private static final class BlobWrite {
+		/** The name of the field. */
+		private final String mFieldName;
+		/** The data if it is held in memory. */
+		private final byte[] mData;
+		/** The file holding the data if it is not. */
+		private final File mFile;
+		/** The uri of the row if it is known before the batch is applied. */
+		private Uri mRowUri;
+		/** The index of the insert of the row if it is not. */
+		private int mInsert;
+
+		/**
+		 * @param fieldName the name of the field
+		 * @param data the data or null
+		 * @param file the file holding the data or null
+		 */
+		BlobWrite(final String fieldName, final byte[] data,
+				final File file) {
+			mFieldName = fieldName;
+			mData = data;
+			mFile = file;
+		}
+
+		/**
+		 * Streams the data to the row.
+		 * @param resolver the resolver to write with
+		 * @param rowUri the uri of the row
+		 * @throws IOException if the data can not be written
+		 */
+		void write(final ContentResolver resolver, final Uri rowUri)
+				throws IOException {
+			InputStream in;
+			if (mFile == null) {
+				in = new ByteArrayInputStream(mData);
+			} else {
+				in = new FileInputStream(mFile);
+			}
+			try {
+				new UriBlob(rowUri, mFieldName).write(resolver, in);
+			} finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Deletes the file holding the data if there is one.
+		 */
+		void release() {
+			if (mFile != null && !mFile.delete()) {
+				LOG.warn("Unable to delete: {}", mFile);
+			}
+		}
+	}
+
+	/** The authority the operations are sent to. */
+	private final String mAuthority;
+
+	/** The operations collected so far. */
+	private final ArrayList<ContentProviderOperation> mOperations =
+			new ArrayList<ContentProviderOperation>();
+	/** The listener for each operation or null. */
+	private final ArrayList<InsertListener> mListeners =
+			new ArrayList<InsertListener>();
+	/** Run once the operations collected so far have been applied. */
+	private final ArrayList<Runnable> mAppliedTasks = new ArrayList<Runnable>();
+	/**
+	 * Blob data by the values of the row it is waiting to be written by,
+	 * which may be added after the batch is applied part way.
+	 */
+	private final Map<ContentValues, List<BlobWrite>> mPendingBlobs =
+			new IdentityHashMap<ContentValues, List<BlobWrite>>();
+	/** Blob data to stream once the operations have been applied. */
+	private final ArrayList<BlobWrite> mBlobWrites = new ArrayList<BlobWrite>();
+	/** The fields, rows and tables the batch changes. */
+	private final ArrayList<Uri> mOverwrites = new ArrayList<Uri>();
+	/** The rows and tables the batch inserts into or updates. */
+	private final ArrayList<Uri> mWrites = new ArrayList<Uri>();
+	/** The number of times operations were sent to the provider. */
+	private int mApplyCount;
+
+	/**
+	 * Construct a batch for the provider serving the given uri.
+	 * @param uri a uri served by the provider to batch against
+	 */
+	UriBatch(final Uri uri) {
+		mAuthority = uri.getAuthority();
+	}
+
+	/**
+	 * Adds an insert to the batch.
+	 * @param uri the uri to insert to
+	 * @param values the values for the new row
+	 * @param listener the listener told about the new row or null
+	 */
+	void insert(final Uri uri, final ContentValues values,
+			final InsertListener listener) {
+		final List<BlobWrite> blobs = mPendingBlobs.remove(values);
+		if (blobs != null) {
+			for (BlobWrite blob : blobs) {
+				blob.mInsert = mOperations.size();
+				mBlobWrites.add(blob);
+			}
+		}
+		if (UriDataManager.hasOriginals()) {
+			mOverwrites.add(uri);
+		}
+		mWrites.add(uri);
+		add(ContentProviderOperation.newInsert(uri)
+				.withValues(values).build(), listener);
+	}
+
+	/**
+	 * Adds an update to the batch. Empty updates are skipped.
+	 * @param uri the uri to update
+	 * @param values the values to store
+	 */
+	void update(final Uri uri, final ContentValues values) {
+		final List<BlobWrite> blobs = mPendingBlobs.remove(values);
+		if (blobs != null) {
+			for (BlobWrite blob : blobs) {
+				blob.mRowUri = uri;
+				mBlobWrites.add(blob);
+			}
+		}
+		if (values.size() > 0 && UriDataManager.hasOriginals()) {
+			for (String key : values.keySet()) {
+				mOverwrites.add(Uri.withAppendedPath(uri, key));
+			}
+		}
+		if (values.size() > 0) {
+			mWrites.add(uri);
+			add(ContentProviderOperation.newUpdate(uri)
+					.withValues(values).build(), null);
+		}
+	}
+
+	/**
+	 * Adds a delete to the batch.
+	 * @param uri the uri to delete
+	 */
+	void delete(final Uri uri) {
+		if (UriDataManager.hasOriginals()) {
+			mOverwrites.add(uri);
+		}
+		add(ContentProviderOperation.newDelete(uri).build(), null);
+	}
+
+	/**
+	 * Streams the given data to a blob field of the row the given values
+	 * are inserted or updated with, once that is applied.
+	 * @param values the values for the row
+	 * @param fieldName the name of the field
+	 * @param data the data
+	 */
+	void writeBlob(final ContentValues values, final String fieldName,
+			final byte[] data) {
+		addBlob(values, new BlobWrite(fieldName, data, null));
+	}
+
+	/**
+	 * Streams the data in the given file to a blob field of the row the
+	 * given values are inserted or updated with, once that is applied.
+	 * The file is deleted once it is written or the batch fails.
+	 * @param values the values for the row
+	 * @param fieldName the name of the field
+	 * @param file the file holding the data
+	 */
+	void writeBlob(final ContentValues values, final String fieldName,
+			final File file) {
+		addBlob(values, new BlobWrite(fieldName, null, file));
+	}
+
+	/**
+	 * @param values the values for the row the data is written to
+	 * @param blob the data to write
+	 */
+	private void addBlob(final ContentValues values, final BlobWrite blob) {
+		List<BlobWrite> blobs = mPendingBlobs.get(values);
+		if (blobs == null) {
+			blobs = new ArrayList<BlobWrite>();
+			mPendingBlobs.put(values, blobs);
+		}
+		blobs.add(blob);
+	}
+
+	/**
+	 * @param operation the operation to add
+	 * @param listener the listener for the operation or null
+	 */
+	private void add(final ContentProviderOperation operation,
+			final InsertListener listener) {
+		mOperations.add(operation);
+		mListeners.add(listener);
+	}
+
+	/**
+	 * Runs the given task once the operations collected so far have been
+	 * applied.
+	 * @param task the task to run
+	 */
+	void whenApplied(final Runnable task) {
+		mAppliedTasks.add(task);
+	}
+
+	/**
+	 * @return the number of operations in the batch
+	 */
+	int size() {
+		return mOperations.size();
+	}
+
+	/**
+	 * @return the number of times operations were sent to the provider
+	 */
+	int getApplyCount() {
+		return mApplyCount;
+	}
+
+	/**
+	 * Sends all collected operations to the provider and empties the batch.
+	 * Preserved data the batch changes is kept first and the rows updated
+	 * or inserted are noted for orphan collection. Listeners are told
+	 * about the results once they are applied, then the blob data is
+	 * streamed to its rows and then the tasks are run.
+	 * @param resolver the resolver to apply with
+	 * @return the results of the operations in the order they were added
+	 */
+	ContentProviderResult[] apply(final ContentResolver resolver) {
+		ContentProviderResult[] results;
+		final ArrayList<InsertListener> listeners =
+				new ArrayList<InsertListener>(mListeners);
+		final ArrayList<Runnable> tasks =
+				new ArrayList<Runnable>(mAppliedTasks);
+		final ArrayList<BlobWrite> blobs =
+				new ArrayList<BlobWrite>(mBlobWrites);
+		mAppliedTasks.clear();
+		mBlobWrites.clear();
+		try {
+			if (mOperations.isEmpty()) {
+				results = new ContentProviderResult[0];
+			} else {
+				LOG.debug("Applying batch of {} operations to: {}",
+						mOperations.size(), mAuthority);
+				try {
+					for (Uri uri : mOverwrites) {
+						UriDataManager.keepOriginals(resolver, uri);
+					}
+					for (Uri uri : mWrites) {
+						OrphanCollector.noteWrite(uri);
+					}
+					results = resolver.applyBatch(mAuthority, mOperations);
+					mApplyCount++;
+					// Inserted rows are only known once they are written.
+					for (ContentProviderResult result : results) {
+						if (result.uri != null) {
+							OrphanCollector.noteWrite(result.uri);
+						}
+					}
+				} catch (RemoteException e) {
+					throw new IllegalStateException(
+							"Unable to apply batch to: " + mAuthority, e);
+				} catch (OperationApplicationException e) {
+					throw new IllegalStateException(
+							"Unable to apply batch to: " + mAuthority, e);
+				} finally {
+					mOperations.clear();
+					mListeners.clear();
+					mOverwrites.clear();
+					mWrites.clear();
+				}
+			}
+			for (int i = 0; i < results.length; i++) {
+				if (listeners.get(i) != null) {
+					listeners.get(i).inserted(results[i].uri);
+				}
+			}
+			writeBlobs(resolver, blobs, results);
+		} finally {
+			for (BlobWrite blob : blobs) {
+				blob.release();
+			}
+		}
+		for (Runnable task : tasks) {
+			task.run();
+		}
+		return results;
+	}
+
+	/**
+	 * Streams blob data to the rows written by an applied batch.
+	 * @param resolver the resolver to write with
+	 * @param blobs the data to write
+	 * @param results the results of the batch
+	 */
+	private static void writeBlobs(final ContentResolver resolver,
+			final List<BlobWrite> blobs,
+			final ContentProviderResult[] results) {
+		for (BlobWrite blob : blobs) {
+			Uri rowUri = blob.mRowUri;
+			if (rowUri == null && blob.mInsert < results.length) {
+				rowUri = results[blob.mInsert].uri;
+			}
+			if (rowUri != null) {
+				try {
+					blob.write(resolver, rowUri);
+				} catch (IOException e) {
+					throw new IllegalStateException(
+							"Unable to write blob to: " + rowUri, e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * A handle for the data of a BYTES or FIXED field held in a content
+ * provider. The data is read and written as a stream of the uri for the
+ * field within its row so it never has to sit on the heap as a whole
+ * unless getBytes is used. Providers which do not serve streams for the
+ * field are read and written through the column instead.
+ * <p>
+ * A field can be preserved when a snapshot of the model is taken. Its
+ * data is then copied to a temporary file the first time it is written,
+ * and the snapshot reads the copy. Fields which are never written are
+ * never copied.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public class UriBlob {
+	/** Access to logger. */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(UriBlob.class);
+
+	/** The size of the chunks data is copied in. */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The copies of the data of preserved fields by the uri of the field,
+	 * or null for fields which have not been written since. An entry is
+	 * dropped once the handle in the snapshot holding its uri is gone.
+	 */
+	private static final Map<Uri, File> ORIGINALS =
+			new WeakHashMap<Uri, File>();
+
+	/** The uri for the field within its row. */
+	private final Uri mUri;
+	/** The copy of the original data this handle reads or null. */
+	private final File mCopy;
+
+	/**
+	 * Construct a handle for the given field of a row.
+	 * @param rowUri the uri for the row
+	 * @param fieldName the name of the field
+	 */
+	public UriBlob(final Uri rowUri, final String fieldName) {
+		this(Uri.withAppendedPath(rowUri, fieldName));
+	}
+
+	/**
+	 * Construct a handle for the given field uri.
+	 * @param uri the uri for the field within its row
+	 */
+	public UriBlob(final Uri uri) {
+		this(uri, null);
+	}
+
+	/**
+	 * Construct a handle for the given field uri.
+	 * @param uri the uri for the field within its row
+	 * @param copy the copy of the original data to read or null
+	 */
+	private UriBlob(final Uri uri, final File copy) {
+		mUri = uri;
+		mCopy = copy;
+	}
+
+	/**
+	 * Preserves the data of the field as it is now. It is copied before
+	 * it is first written.
+	 */
+	final void preserve() {
+		synchronized (ORIGINALS) {
+			if (mCopy == null && !ORIGINALS.containsKey(mUri)) {
+				ORIGINALS.put(mUri, null);
+			}
+		}
+	}
+
+	/**
+	 * @return a handle for the data of the field as it was when it was
+	 * preserved, which is this handle if it has not been written since
+	 */
+	final UriBlob getOriginal() {
+		UriBlob ret = this;
+		synchronized (ORIGINALS) {
+			final File copy = ORIGINALS.get(mUri);
+			if (mCopy == null && copy != null) {
+				ret = new UriBlob(mUri, copy);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Copies the data of the field if it is preserved and has not been
+	 * copied yet.
+	 * @param resolver the resolver to read with
+	 * @throws IOException if the data can not be copied
+	 */
+	private void copyOriginal(final ContentResolver resolver)
+			throws IOException {
+		synchronized (ORIGINALS) {
+			if (ORIGINALS.containsKey(mUri) && ORIGINALS.get(mUri) == null) {
+				LOG.debug("Copying original before it is written: {}", mUri);
+				final File copy = File.createTempFile("original", null);
+				copy.deleteOnExit();
+				final OutputStream out = new FileOutputStream(copy);
+				try {
+					copyTo(resolver, out);
+				} finally {
+					out.close();
+				}
+				ORIGINALS.put(mUri, copy);
+			}
+		}
+	}
+
+	/**
+	 * @return true if this handle reads a copy of the original data
+	 */
+	final boolean isCopy() {
+		return mCopy != null;
+	}
+
+	/**
+	 * @return true if any field is being preserved
+	 */
+	static boolean hasOriginals() {
+		synchronized (ORIGINALS) {
+			return !ORIGINALS.isEmpty();
+		}
+	}
+
+	/**
+	 * Copies the data of the preserved fields at or below the given uri
+	 * before it is overwritten or deleted. Preserved data which was not
+	 * loaded is loaded by UriDataManager.keepOriginals first.
+	 * @param resolver the resolver to read with
+	 * @param uri the uri of the field, row or table being changed
+	 */
+	static void copyOriginals(final ContentResolver resolver, final Uri uri) {
+		final List<UriBlob> blobs = new ArrayList<UriBlob>();
+		synchronized (ORIGINALS) {
+			for (Map.Entry<Uri, File> entry : ORIGINALS.entrySet()) {
+				final Uri field = entry.getKey();
+				if (entry.getValue() == null && field != null
+						&& UriDataManager.overlaps(uri, field)) {
+					blobs.add(new UriBlob(field));
+				}
+			}
+		}
+		try {
+			for (UriBlob blob : blobs) {
+				blob.copyOriginal(resolver);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(
+					"Unable to copy original data under: " + uri, e);
+		}
+	}
+
+	/**
+	 * @return the uri for the field within its row
+	 */
+	public final Uri getUri() {
+		return mUri;
+	}
+
+	/**
+	 * @return the uri for the row holding the field
+	 */
+	public final Uri getRowUri() {
+		final List<String> segments = mUri.getPathSegments();
+		final Uri.Builder builder = mUri.buildUpon().path(null);
+		for (int i = 0; i < segments.size() - 1; i++) {
+			builder.appendPath(segments.get(i));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @return the name of the field
+	 */
+	public final String getFieldName() {
+		return mUri.getLastPathSegment();
+	}
+
+	/**
+	 * Opens a stream over the data.
+	 * @param resolver the resolver to read with
+	 * @return the stream or null if the field holds no data
+	 * @throws IOException if the data can not be read
+	 */
+	public final InputStream openInputStream(final ContentResolver resolver)
+			throws IOException {
+		InputStream ret;
+		if (mCopy != null) {
+			ret = new FileInputStream(mCopy);
+		} else {
+			try {
+				ret = resolver.openInputStream(mUri);
+			} catch (FileNotFoundException e) {
+				LOG.debug("Not streamed, reading column: {}", mUri);
+				final byte[] data = readColumn(resolver);
+				if (data == null) {
+					ret = null;
+				} else {
+					ret = new ByteArrayInputStream(data);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Copies the data to the given stream in chunks.
+	 * @param resolver the resolver to read with
+	 * @param out the stream to copy to
+	 * @return the number of bytes copied
+	 * @throws IOException if the data can not be copied
+	 */
+	public final long copyTo(final ContentResolver resolver,
+			final OutputStream out) throws IOException {
+		long ret = 0;
+		final InputStream in = openInputStream(resolver);
+		if (in != null) {
+			try {
+				ret = copy(in, out);
+			} finally {
+				in.close();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads all of the data onto the heap.
+	 * @param resolver the resolver to read with
+	 * @return the data or null if the field holds no data
+	 * @throws IOException if the data can not be read
+	 */
+	public final byte[] getBytes(final ContentResolver resolver)
+			throws IOException {
+		byte[] ret = null;
+		final InputStream in = openInputStream(resolver);
+		if (in != null) {
+			try {
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				copy(in, out);
+				ret = out.toByteArray();
+			} finally {
+				in.close();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Replaces the data with the contents of the given stream, copying
+	 * it in chunks. If the field is preserved its data is copied first.
+	 * @param resolver the resolver to write with
+	 * @param in the stream to copy from
+	 * @return the number of bytes written
+	 * @throws IOException if the data can not be written
+	 */
+	public final long write(final ContentResolver resolver,
+			final InputStream in) throws IOException {
+		UriBoundAdapter.loadUnloaded(mUri);
+		copyOriginal(resolver);
+		long ret;
+		OutputStream out;
+		try {
+			out = resolver.openOutputStream(mUri);
+		} catch (FileNotFoundException e) {
+			out = null;
+		}
+		if (out != null) {
+			try {
+				ret = copy(in, out);
+			} finally {
+				out.close();
+			}
+		} else {
+			LOG.debug("Not streamed, writing column: {}", mUri);
+			final ByteArrayOutputStream data = new ByteArrayOutputStream();
+			ret = copy(in, data);
+			final ContentValues values = new ContentValues();
+			values.put(getFieldName(), data.toByteArray());
+			UriDataManager.updateUriOrThrow(resolver, getRowUri(), values);
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads the data through the column of the row.
+	 * @param resolver the resolver to read with
+	 * @return the data or null if the field holds no data
+	 */
+	private byte[] readColumn(final ContentResolver resolver) {
+		byte[] ret = null;
+		final Cursor cursor = resolver.query(getRowUri(),
+				new String[] {getFieldName()}, null, null, null);
+		try {
+			if (cursor != null && cursor.moveToFirst()) {
+				ret = cursor.getBlob(0);
+			}
+		} finally {
+			UriDataManager.safeClose(cursor);
+		}
+		return ret;
+	}
+
+	/**
+	 * Copies a stream in chunks.
+	 * @param in the stream to copy from
+	 * @param out the stream to copy to
+	 * @return the number of bytes copied
+	 * @throws IOException if the copy fails
+	 */
+	static long copy(final InputStream in, final OutputStream out)
+			throws IOException {
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		long ret = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			ret += read;
+		}
+		return ret;
+	}
+
+	@Override
+	public final boolean equals(final Object other) {
+		return other instanceof UriBlob
+				&& mUri.equals(((UriBlob) other).mUri)
+				&& mCopy == ((UriBlob) other).mCopy;
+	}
+
+	@Override
+	public final int hashCode() {
+		return mUri.hashCode();
+	}
+
+	@Override
+	public final String toString() {
+		return mUri.toString();
+	}
+}
@@ -97,4 +97,46 @@ public interface UriBound<A> {
 	 */
 	void delete(ContentResolver  resolver) throws NotBoundException;
 
+	/**
+	 * @return true if this data or any data it holds has changed since it
+	 * was last loaded from or saved to the content provider
+	 */
+	boolean isDirty();
+
+	/**
+	 * Marks all of this data and the data it holds as changed so the next
+	 * save writes all of it.
+	 */
+	void markDirty();
+
+	/**
+	 * Marks the parts of this data which differ from the given data as
+	 * changed so the next save writes only those. Parts which were never
+	 * loaded are left alone.
+	 * @param stored the data the provider holds at the same uri or null
+	 * if that is not known
+	 */
+	void markChanged(Object stored);
+
+	/**
+	 * Forgets the changes of this data and the data it holds if it hashes
+	 * the same as when it was last loaded or saved, so it is no longer
+	 * dirty. Data which was never loaded is left alone.
+	 */
+	void markClean();
+
+	/**
+	 * Starts preserving this data as it is now. Each part of the data
+	 * keeps a copy of itself when it is first changed after this.
+	 * @param resolver the resolver to read blob data with
+	 */
+	void snapshot(ContentResolver resolver);
+
+	/**
+	 * @return the data as it was when snapshot was called, sharing the
+	 * parts which have not changed since
+	 * @throws NotBoundException if this is not bound properly
+	 */
+	A getSnapshot() throws NotBoundException;
+
 }
@@ -30,7 +30,14 @@
  */
 package interdroid.vdb.avro.model;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import org.apache.avro.Schema.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import android.content.ContentResolver;
 import android.net.Uri;
@@ -46,6 +53,9 @@ import android.os.Bundle;
  * @param <A> the type being bound
  */
 public class UriBoundAdapter<A> implements UriBound<A> {
+	/** Access to logger. */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(UriBoundAdapter.class);
 
 	/**
 	 * The interface for the implementation of a UriBoundAdapter.
@@ -92,15 +102,72 @@ public class UriBoundAdapter<A> implements UriBound<A> {
 				throws NotBoundException;
 
 		/**
-		 * The implementation of UriBound.save.
+		 * The implementation of UriBound.save. The operations to save
+		 * the data are added to the given batch.
+		 * @param batch the batch to save with
 		 * @param resolver the resolver to save with
 		 * @param fieldName the field to be saved
 		 * @throws NotBoundException if the data isn't bound
 		 */
-		void saveImpl(ContentResolver resolver, String fieldName)
+		void saveImpl(UriBatch batch, ContentResolver resolver,
+				String fieldName)
 				throws NotBoundException;
+
+		/**
+		 * The implementation of UriBound.isDirty.
+		 * @return true if the data holds unsaved changes
+		 */
+		boolean isDirtyImpl();
+
+		/**
+		 * The implementation of UriBound.markDirty.
+		 */
+		void markDirtyImpl();
+
+		/**
+		 * The implementation of UriBound.markChanged for data which
+		 * differs from the given data.
+		 * @param stored the loaded data the provider holds at the same
+		 * uri or null if that is not known
+		 */
+		void markChangedImpl(Object stored);
+
+		/**
+		 * The implementation of UriBound.markClean for loaded data.
+		 * Forgets the changes of data found to hash the same as what the
+		 * provider holds, where the rows still describe what is stored.
+		 */
+		void markCleanImpl();
+
+		/**
+		 * The implementation of UriBound.snapshot for loaded data. This
+		 * drops the kept copy and snapshots the data held.
+		 * @param resolver the resolver to read blob data with
+		 */
+		void snapshotImpl(ContentResolver resolver);
+
+		/**
+		 * The implementation of UriBound.getSnapshot.
+		 * @return the data as it was when the snapshot was taken
+		 * @throws NotBoundException if the data isn't bound
+		 */
+		A getSnapshotImpl() throws NotBoundException;
+
+		/**
+		 * The implementation of the content hash for loaded data.
+		 * @return the structural hash of the data held
+		 */
+		long contentHashImpl();
 	}
 
+	/**
+	 * The preserved data which has not been loaded yet. It is loaded
+	 * before the provider first changes it, so it still reads as it was
+	 * when it was preserved.
+	 */
+	private static final Map<UriBoundAdapter<?>, Boolean> UNLOADED =
+			new WeakHashMap<UriBoundAdapter<?>, Boolean>();
+
 	/**
 	 * The instance uri this data is bound to.
 	 */
@@ -109,6 +176,20 @@ public class UriBoundAdapter<A> implements UriBound<A> {
 	 * The adapter implementation we use to handle binding.
 	 */
 	private UriBoundAdapterImpl<A> mAdapter;
+	/** The resolver to load with on first access or null if loaded. */
+	private ContentResolver mDeferredResolver;
+	/** The field to load on first access. */
+	private String mDeferredField;
+	/** Is nested data deferred until first access when loading. */
+	private boolean mLazy;
+	/** Is the data loading from the content provider right now. */
+	private boolean mLoading;
+	/** Is a copy kept of the data when it is first changed. */
+	private boolean mPreserving;
+	/** The content hash of the data as last loaded or saved. */
+	private long mSavedHash;
+	/** Does mSavedHash describe the data in the provider. */
+	private boolean mHashSaved;
 
 	/**
 	 * Constructs an adapter for the given Uri using the given implementation.
@@ -153,6 +234,10 @@ public class UriBoundAdapter<A> implements UriBound<A> {
 
 	@Override
 	public final void setInstanceUri(final Uri uri) {
+		// Nothing is known about what is stored under another uri.
+		if (uri == null || !uri.equals(mInstanceUri)) {
+			mHashSaved = false;
+		}
 		mInstanceUri = uri;
 	}
 
@@ -160,7 +245,113 @@ public class UriBoundAdapter<A> implements UriBound<A> {
 	public final void save(final ContentResolver resolver,
 			final String fieldName) throws NotBoundException {
 		verifyBound();
-		mAdapter.saveImpl(resolver, fieldName);
+		// Data which was never loaded can not have changed.
+		if (!isLoadDeferred()) {
+			final long start = System.currentTimeMillis();
+			final UriBatch batch = new UriBatch(mInstanceUri);
+			saveChanges(batch, resolver, fieldName);
+			batch.apply(resolver);
+			LOG.debug("Saved {} in {} provider transactions in {} ms",
+					new Object[] {mInstanceUri, batch.getApplyCount(),
+					System.currentTimeMillis() - start});
+		}
+	}
+
+	/**
+	 * Adds the operations to save the data to the given batch, which is
+	 * applied by whoever started the save.
+	 * @param batch the batch to save with
+	 * @param resolver the resolver to save with
+	 * @param fieldName the field to be saved
+	 * @throws NotBoundException if the data isn't bound
+	 */
+	final void save(final UriBatch batch, final ContentResolver resolver,
+			final String fieldName) throws NotBoundException {
+		verifyBound();
+		if (!isLoadDeferred()) {
+			saveChanges(batch, resolver, fieldName);
+		}
+	}
+
+	/**
+	 * Adds the operations to save the data unless it hashes the same as
+	 * when it was last loaded or saved, in which case the provider already
+	 * holds it. Data is often marked changed when nothing changed.
+	 * @param batch the batch to save with
+	 * @param resolver the resolver to save with
+	 * @param fieldName the field to be saved
+	 * @throws NotBoundException if the data isn't bound
+	 */
+	private void saveChanges(final UriBatch batch,
+			final ContentResolver resolver, final String fieldName)
+					throws NotBoundException {
+		if (isUnchanged()) {
+			LOG.debug("Not saving unchanged data: {}", mInstanceUri);
+			// The changes came back to what is stored, so they are
+			// forgotten as if they had been saved.
+			batch.whenApplied(new Runnable() {
+				@Override
+				public void run() {
+					markClean();
+				}
+			});
+		} else {
+			// Until the batch is applied it is not known what is stored.
+			mHashSaved = false;
+			mAdapter.saveImpl(batch, resolver, fieldName);
+			batch.whenApplied(new Runnable() {
+				@Override
+				public void run() {
+					markSaved();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Records the hash of the data as the hash of what the provider holds.
+	 * Called once the data has been loaded from or saved to the provider.
+	 */
+	final void markSaved() {
+		mSavedHash = mAdapter.contentHashImpl();
+		mHashSaved = true;
+	}
+
+	/**
+	 * Returns a structural hash of the data. Data which has not been
+	 * marked changed since it was last loaded or saved returns the hash
+	 * taken then without visiting what it holds, so only changed parts
+	 * are hashed again. Data which was never loaded hashes its uri.
+	 * @return the hash of the data
+	 */
+	final long getContentHash() {
+		long ret;
+		if (isLoadDeferred()) {
+			ret = ContentHash.of(String.valueOf(mInstanceUri));
+		} else if (mHashSaved && !mAdapter.isDirtyImpl()) {
+			ret = mSavedHash;
+		} else {
+			ret = mAdapter.contentHashImpl();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return true if the data is loaded and hashes the same as when it
+	 * was last loaded or saved
+	 */
+	final boolean isUnchanged() {
+		return mHashSaved && !isLoadDeferred()
+				&& getContentHash() == mSavedHash;
+	}
+
+	/**
+	 * @param hash the hash to check
+	 * @return true if the provider held data with the given hash when
+	 * this data was last loaded or saved
+	 */
+	final boolean isSaved(final long hash) {
+		return mHashSaved && mSavedHash == hash;
 	}
 
 	/**
@@ -176,7 +367,128 @@ public class UriBoundAdapter<A> implements UriBound<A> {
 	public final A load(final ContentResolver resolver,
 			final String fieldName) throws NotBoundException {
 		verifyBound();
-		return mAdapter.loadImpl(resolver, fieldName);
+		mDeferredResolver = null;
+		mLazy = false;
+		forgetUnloaded();
+		final A ret;
+		mLoading = true;
+		try {
+			ret = mAdapter.loadImpl(resolver, fieldName);
+		} finally {
+			mLoading = false;
+		}
+		markSaved();
+		if (mPreserving) {
+			mAdapter.snapshotImpl(resolver);
+		}
+		return ret;
+	}
+
+	/**
+	 * Defers loading the data from the resolver until it is first accessed.
+	 * Data nested in it is then deferred in the same way when it loads.
+	 * @param resolver the resolver to load with
+	 * @param fieldName the field to be loaded
+	 * @throws NotBoundException if the data isn't bound
+	 */
+	public final void defer(final ContentResolver resolver,
+			final String fieldName) throws NotBoundException {
+		verifyBound();
+		mDeferredResolver = resolver;
+		mDeferredField = fieldName;
+		mLazy = true;
+	}
+
+	/**
+	 * Loads the data if loading was deferred by defer. This happens
+	 * on the thread which first accesses the data.
+	 */
+	public final void ensureLoaded() {
+		if (mDeferredResolver != null) {
+			final ContentResolver resolver = mDeferredResolver;
+			mDeferredResolver = null;
+			forgetUnloaded();
+			LOG.debug("Loading deferred data: {}", mInstanceUri);
+			mLoading = true;
+			try {
+				mAdapter.loadImpl(resolver, mDeferredField);
+			} catch (NotBoundException e) {
+				throw new IllegalStateException(
+						"Unable to load deferred data: " + mInstanceUri, e);
+			} finally {
+				mLoading = false;
+			}
+			markSaved();
+			// Data held by a snapshot is snapshot once it is loaded.
+			if (mPreserving) {
+				mAdapter.snapshotImpl(resolver);
+			}
+		}
+	}
+
+	/**
+	 * Stops waiting to load this data before it is changed.
+	 */
+	private void forgetUnloaded() {
+		if (mPreserving) {
+			synchronized (UNLOADED) {
+				UNLOADED.remove(this);
+			}
+		}
+	}
+
+	/**
+	 * @return true if any preserved data has not been loaded yet
+	 */
+	static boolean hasUnloaded() {
+		synchronized (UNLOADED) {
+			return !UNLOADED.isEmpty();
+		}
+	}
+
+	/**
+	 * Loads the preserved data at, above or below the given uri which has
+	 * not been loaded yet, before the provider changes it. Data nested in
+	 * it which is deferred again is loaded as well.
+	 * @param uri the uri of the field, row or table being changed
+	 */
+	static void loadUnloaded(final Uri uri) {
+		final List<UriBoundAdapter<?>> adapters =
+				new ArrayList<UriBoundAdapter<?>>();
+		do {
+			adapters.clear();
+			synchronized (UNLOADED) {
+				for (UriBoundAdapter<?> adapter : UNLOADED.keySet()) {
+					if (adapter != null && adapter.mInstanceUri != null
+							&& UriDataManager.overlaps(uri,
+									adapter.mInstanceUri)) {
+						adapters.add(adapter);
+					}
+				}
+				for (UriBoundAdapter<?> adapter : adapters) {
+					UNLOADED.remove(adapter);
+				}
+			}
+			for (UriBoundAdapter<?> adapter : adapters) {
+				LOG.debug("Loading original before it is changed: {}",
+						adapter.mInstanceUri);
+				adapter.ensureLoaded();
+			}
+		} while (!adapters.isEmpty());
+	}
+
+	/**
+	 * @return true if loading the data is deferred until first access
+	 */
+	public final boolean isLoadDeferred() {
+		return mDeferredResolver != null;
+	}
+
+	/**
+	 * @return true if nested data should be deferred when loading
+	 */
+	public final boolean isLazy() {
+		return mLazy;
 	}
 
 	@Override
@@ -199,6 +511,61 @@ public class UriBoundAdapter<A> implements UriBound<A> {
 		mAdapter.deleteImpl(resolver);
 	}
 
+	@Override
+	public final boolean isDirty() {
+		return !isLoadDeferred() && mAdapter.isDirtyImpl();
+	}
+
+	@Override
+	public final void markDirty() {
+		ensureLoaded();
+		// Data marked changed is written whatever its hash.
+		mHashSaved = false;
+		mAdapter.markDirtyImpl();
+	}
+
+	@Override
+	public final void markChanged(final Object stored) {
+		if (!isLoadDeferred() && !UriDataManager.isStored(stored,
+				mInstanceUri, getContentHash())) {
+			mHashSaved = false;
+			mAdapter.markChangedImpl(
+					UriDataManager.getLoaded(stored, mInstanceUri));
+		}
+	}
+
+	@Override
+	public final void markClean() {
+		if (isUnchanged()) {
+			mAdapter.markCleanImpl();
+		}
+	}
+
+	@Override
+	public final void snapshot(final ContentResolver resolver) {
+		mPreserving = true;
+		if (isLoadDeferred()) {
+			synchronized (UNLOADED) {
+				UNLOADED.put(this, Boolean.TRUE);
+			}
+		} else {
+			mAdapter.snapshotImpl(resolver);
+		}
+	}
+
+	@Override
+	public final A getSnapshot() throws NotBoundException {
+		return mAdapter.getSnapshotImpl();
+	}
+
+	/**
+	 * @return true if a copy of the data should be kept before it is
+	 * changed. Changes made while loading are never preserved.
+	 */
+	public final boolean isPreserving() {
+		return mPreserving && !mLoading;
+	}
+
 	/**
 	 * @param type the type to check
 	 * @return true if the type is uri bound
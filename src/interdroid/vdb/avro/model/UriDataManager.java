@@ -30,19 +30,32 @@
  */
 package interdroid.vdb.avro.model;
 
-import interdroid.util.DbUtil;
 import interdroid.vdb.content.EntityUriMatcher;
 
 import interdroid.vdb.content.EntityUriMatcher.UriMatch;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.avro.Schema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.provider.BaseColumns;
 
 /**
  * A handler for persisting models to Uris.
@@ -54,6 +67,12 @@ public final class UriDataManager {
 	private static final Logger LOG = LoggerFactory
 			.getLogger(UriDataManager.class);
 
+	/**
+	 * The most record ids fetched with a single query. This keeps us well
+	 * below the limit sqlite places on the number of selection arguments.
+	 */
+	private static final int MAX_FETCH_IDS = 500;
+
 	/**
 	 * No construction.
 	 */
@@ -82,90 +101,120 @@ public final class UriDataManager {
 	 * @param cursor the cursor to load from
 	 * @param fieldName the name of the field being loaded
 	 * @param fieldSchema the schema for the field
+	 * @param plan the column indexes resolved for the cursor
+	 * @param position the position of the field in the plan
+	 * @param lazy true if arrays, maps and records should be loaded on
+	 * first access instead of now
 	 * @return the loaded data
 	 * @throws NotBoundException if the data is not bound properly
 	 */
-	@SuppressWarnings("rawtypes")
 	static Object loadDataFromUri(final ContentResolver resolver,
 			final Uri rootUri, final Cursor cursor,
-			final String fieldName, final Schema fieldSchema)
+			final String fieldName, final Schema fieldSchema,
+			final LoadPlan plan, final int position, final boolean lazy)
 					throws NotBoundException {
 		LOG.debug("Loading field: " + fieldName + " : " + fieldSchema);
-		Object value = null;
-		switch (fieldSchema.getType()) {
-		case ARRAY:
-			value = new UriArray(Uri.withAppendedPath(rootUri, fieldName),
-					fieldSchema).load(resolver, fieldName);
-			break;
-		case BOOLEAN:
-			value = (cursor.getInt(
-					DbUtil.getFieldIndex(cursor, fieldName)) == 1);
-			break;
-		case BYTES:
-			// TODO: Should these be handled using streams?
-			value = cursor.getBlob(
-					DbUtil.getFieldIndex(cursor, fieldName));
-			break;
-		case DOUBLE:
-			value = cursor.getDouble(
-					DbUtil.getFieldIndex(cursor, fieldName));
-			break;
-		case ENUM:
-			value = cursor.getInt(
-					DbUtil.getFieldIndex(cursor, fieldName));
-			break;
-		case FIXED:
-			// TODO: Should these be handled using streams?
-			value = cursor.getBlob(
-					DbUtil.getFieldIndex(cursor, fieldName));
-			break;
-		case FLOAT:
-			value = cursor.getFloat(
-					DbUtil.getFieldIndex(cursor, fieldName));
-			break;
-		case INT:
-			value = cursor.getInt(
-					DbUtil.getFieldIndex(cursor, fieldName));
-			break;
-		case LONG:
-			value = cursor.getLong(
-					DbUtil.getFieldIndex(cursor, fieldName));
-			break;
-		case MAP:
-			value = new UriMap(Uri.withAppendedPath(rootUri, fieldName),
-					fieldSchema).load(resolver, fieldName);
-			break;
-		case NULL:
+		return FieldCodec.forSchema(fieldSchema).load(resolver, rootUri,
+				cursor, fieldName, plan, position, lazy);
+	}
+
+	/**
+	 * Loads a BYTES or FIXED value as a handle for the data instead of
+	 * copying the data out of the cursor.
+	 * @param cursor the cursor to load from
+	 * @param fieldName the name of the field being loaded
+	 * @param plan the column indexes resolved for the cursor
+	 * @param rootUri the uri the data is being loaded from
+	 * @param index the index of the column for the field, which may only
+	 * hold the length of the data
+	 * @return the handle, the data if the row is not known, or null
+	 */
+	static Object loadBlob(final Cursor cursor,
+			final String fieldName, final LoadPlan plan, final Uri rootUri,
+			final int index) {
+		Object value;
+		final Uri rowUri = plan.getRowUri(rootUri, cursor);
+		if (index < 0 || cursor.isNull(index)) {
 			value = null;
-			break;
-		case RECORD:
-			int recordId = cursor.getInt(
-					DbUtil.getFieldIndex(cursor, fieldName));
-			if (recordId > 0) {
-				Uri recordUri = getRecordUri(rootUri, fieldSchema);
-				value = new UriRecord(Uri.withAppendedPath(recordUri,
-						String.valueOf(recordId)), fieldSchema).load(resolver);
-			} else {
-				value = null;
-			}
-			break;
-		case STRING:
-			LOG.debug("Loading {} : columns: {}", fieldName,
-					cursor.getColumnNames());
-			value = cursor.getString(DbUtil.getFieldIndex(cursor, fieldName));
-			LOG.debug("Loaded value: " + value);
-			break;
-		case UNION:
-			value = new UriUnion(fieldSchema).load(resolver, rootUri, cursor,
-					fieldName);
-			break;
-		default:
-			throw new IllegalArgumentException(
-					"Unsupported type: " + fieldSchema);
+		} else if (rowUri == null) {
+			value = cursor.getBlob(index);
+		} else {
+			value = new UriBlob(rowUri, fieldName);
 		}
 		return value;
 	}
 
+	/**
+	 * Stores a BYTES or FIXED value. The data is streamed to the row once
+	 * the batch writes it instead of being sent with the values. A handle
+	 * for the same field of the same row needs no storing since the data
+	 * is already there. Data of other handles is copied to a temporary
+	 * file first, since the row it is in may be deleted by the batch.
+	 * @param batch the batch the values are written with
+	 * @param resolver the resolver to read other handles with
+	 * @param rowUri the uri for the row being stored
+	 * @param values the values to store to
+	 * @param fieldName the name of the field
+	 * @param data the data or a handle for it
+	 */
+	static void storeBlob(final UriBatch batch,
+			final ContentResolver resolver, final Uri rowUri,
+			final ContentValues values, final String fieldName,
+			final Object data) {
+		if (data == null) {
+			values.putNull(fieldName);
+		} else if (data instanceof UriBlob) {
+			final UriBlob blob = (UriBlob) data;
+			if (!blob.equals(new UriBlob(rowUri, fieldName))) {
+				try {
+					final File copy = copyBlob(resolver, blob);
+					if (copy == null) {
+						values.putNull(fieldName);
+					} else {
+						batch.writeBlob(values, fieldName, copy);
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException(
+							"Unable to copy: " + blob, e);
+				}
+			}
+		} else {
+			batch.writeBlob(values, fieldName, (byte[]) data);
+		}
+	}
+
+	/**
+	 * Copies the data of a handle to a temporary file in chunks.
+	 * @param resolver the resolver to read with
+	 * @param blob the handle to copy
+	 * @return the file or null if the handle holds no data
+	 * @throws IOException if the data can not be copied
+	 */
+	private static File copyBlob(final ContentResolver resolver,
+			final UriBlob blob) throws IOException {
+		File ret = null;
+		final InputStream in = blob.openInputStream(resolver);
+		if (in != null) {
+			try {
+				ret = File.createTempFile("blob", null);
+				final OutputStream out = new FileOutputStream(ret);
+				try {
+					UriBlob.copy(in, out);
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				if (ret != null && !ret.delete()) {
+					LOG.warn("Unable to delete: {}", ret);
+				}
+				throw e;
+			} finally {
+				in.close();
+			}
+		}
+		return ret;
+	}
+
 	/**
 	 * @param rootUri the root uri we are working with
 	 * @param fieldSchema the schema for the record
@@ -177,8 +226,84 @@ public final class UriDataManager {
 				fieldSchema.getFullName());
 	}
 
+	/**
+	 * Reads the ids of the records referenced by the rows of a cursor.
+	 * The cursor is left after the last row.
+	 * @param cursor the cursor over the referencing rows
+	 * @param valueIndex the index of the column holding the record id
+	 * @return the ids of the referenced records
+	 */
+	static Collection<Long> getRecordIds(final Cursor cursor,
+			final int valueIndex) {
+		final Collection<Long> ids = new HashSet<Long>();
+		while (cursor.moveToNext()) {
+			final long id = cursor.getLong(valueIndex);
+			if (id > 0) {
+				ids.add(id);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Loads the records with the given ids using one query per
+	 * MAX_FETCH_IDS ids instead of one query per record.
+	 * @param resolver the resolver to load with
+	 * @param rootUri the root uri the records are referenced from
+	 * @param recordSchema the schema for the records
+	 * @param recordIds the ids of the records to load
+	 * @return the loaded records by id
+	 * @throws NotBoundException if the data is not bound properly
+	 */
+	static Map<Long, UriRecord> loadRecords(final ContentResolver resolver,
+			final Uri rootUri, final Schema recordSchema,
+			final Collection<Long> recordIds)
+					throws NotBoundException {
+		final Map<Long, UriRecord> records = new HashMap<Long, UriRecord>();
+		final Uri recordUri = getRecordUri(rootUri, recordSchema);
+		final String[] projection = LoadPlan.getRecordProjection(resolver,
+				recordUri, recordSchema);
+		final List<Long> ids = new ArrayList<Long>(recordIds);
+		for (int start = 0; start < ids.size(); start += MAX_FETCH_IDS) {
+			final List<Long> chunk = ids.subList(start,
+					Math.min(ids.size(), start + MAX_FETCH_IDS));
+			final StringBuilder selection = new StringBuilder(
+					BaseColumns._ID).append(" IN (");
+			final String[] args = new String[chunk.size()];
+			for (int i = 0; i < args.length; i++) {
+				if (i > 0) {
+					selection.append(',');
+				}
+				selection.append('?');
+				args[i] = String.valueOf(chunk.get(i));
+			}
+			selection.append(')');
+			LOG.debug("Fetching {} records from {}", args.length, recordUri);
+			final Cursor cursor = resolver.query(recordUri, projection,
+					selection.toString(), args, null);
+			try {
+				if (cursor == null) {
+					throw new IllegalArgumentException("Unable to load: "
+							+ recordUri);
+				}
+				final LoadPlan plan = LoadPlan.forRecord(recordSchema, cursor);
+				while (cursor.moveToNext()) {
+					final long id = cursor.getLong(plan.getIdIndex());
+					final UriRecord record = new UriRecord(
+							ContentUris.withAppendedId(recordUri, id),
+							recordSchema);
+					records.put(id, record.load(resolver, cursor, plan));
+				}
+			} finally {
+				safeClose(cursor);
+			}
+		}
+		return records;
+	}
+
 	/**
 	 * Stores data to the given Uri.
+	 * @param batch the batch to add the operations for nested data to
 	 * @param resolver the resolver to store with
 	 * @param rootUri the root uri for what we are storing
 	 * @param values the values to store to
@@ -188,86 +313,226 @@ public final class UriDataManager {
 	 * @return the uri for what was stored
 	 * @throws NotBoundException if the data is not bound properly
 	 */
-	@SuppressWarnings("rawtypes")
-	static Uri storeDataToUri(final ContentResolver resolver,
+	static Uri storeDataToUri(final UriBatch batch,
+			final ContentResolver resolver,
 			final Uri rootUri, final ContentValues values,
 			final String fieldName, final Schema fieldSchema, final Object data)
 					throws NotBoundException {
 		LOG.debug("Storing to: " + rootUri + " fieldName: {} schema: {}",
 				fieldName, fieldSchema);
-		Uri dataUri = null;
+		return FieldCodec.forSchema(fieldSchema).store(batch, resolver,
+				rootUri, values, fieldName, data);
+	}
+
+	/**
+	 * @param data the data to check
+	 * @return true if the data holds changes which need to be saved
+	 */
+	static boolean isDirty(final Object data) {
+		boolean ret = false;
+		if (data instanceof UriBound) {
+			ret = ((UriBound<?>) data).isDirty();
+		} else if (data instanceof UriUnion) {
+			ret = ((UriUnion) data).isDirty();
+		}
+		return ret;
+	}
+
+	/**
+	 * Marks the given data as changed if it tracks changes.
+	 * @param data the data to mark
+	 */
+	static void markDirty(final Object data) {
+		if (data instanceof UriBound) {
+			((UriBound<?>) data).markDirty();
+		} else if (data instanceof UriUnion) {
+			((UriUnion) data).markDirty();
+		}
+	}
+
+	/**
+	 * Forgets the changes of the given data if it tracks changes.
+	 * @param data the data to mark
+	 */
+	static void markClean(final Object data) {
+		if (data instanceof UriBound) {
+			((UriBound<?>) data).markClean();
+		} else if (data instanceof UriUnion) {
+			((UriUnion) data).markClean();
+		}
+	}
+
+	/**
+	 * Marks the parts of the given data which differ from the stored data
+	 * as changed if it tracks changes.
+	 * @param data the data to mark
+	 * @param stored the data the provider holds in the same place or null
+	 * if that is not known
+	 */
+	static void markChanged(final Object data, final Object stored) {
+		if (data instanceof UriBound) {
+			((UriBound<?>) data).markChanged(stored);
+		} else if (data instanceof UriUnion) {
+			((UriUnion) data).markChanged(stored);
+		}
+	}
+
+	/**
+	 * @param stored the data to check
+	 * @param uri the uri the data should be bound to
+	 * @param hash the content hash to check
+	 * @return true if the data is bound to the uri and the provider held
+	 * data with the given hash when it was last loaded or saved
+	 */
+	static boolean isStored(final Object stored, final Uri uri,
+			final long hash) {
+		boolean ret = false;
+		if (getBound(stored, uri) != null) {
+			if (stored instanceof UriRecord) {
+				ret = ((UriRecord) stored).isSaved(hash);
+			} else if (stored instanceof UriArray) {
+				ret = ((UriArray<?>) stored).isSaved(hash);
+			} else if (stored instanceof UriMap) {
+				ret = ((UriMap<?>) stored).isSaved(hash);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @param stored the data to check
+	 * @param uri the uri the data should be bound to
+	 * @return the data if it is bound to the uri and loaded, otherwise null
+	 */
+	static Object getLoaded(final Object stored, final Uri uri) {
+		Object ret = getBound(stored, uri);
+		if (stored instanceof UriRecord) {
+			ret = ((UriRecord) stored).isLoadDeferred() ? null : ret;
+		} else if (stored instanceof UriArray) {
+			ret = ((UriArray<?>) stored).isLoadDeferred() ? null : ret;
+		} else if (stored instanceof UriMap) {
+			ret = ((UriMap<?>) stored).isLoadDeferred() ? null : ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * @param stored the data to check
+	 * @param uri the uri the data should be bound to
+	 * @return the data if it is bound to the uri, otherwise null
+	 */
+	private static Object getBound(final Object stored, final Uri uri) {
+		Object ret = null;
+		if (stored instanceof UriBound && uri != null) {
+			try {
+				if (uri.equals(((UriBound<?>) stored).getInstanceUri())) {
+					ret = stored;
+				}
+			} catch (NotBoundException e) {
+				ret = null;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return true if any preserved data has to be kept before the
+	 * provider changes it
+	 */
+	static boolean hasOriginals() {
+		return UriBoundAdapter.hasUnloaded() || PagedElements.hasOriginals()
+				|| UriBlob.hasOriginals();
+	}
+
+	/**
+	 * Keeps the preserved data at, above or below the given uri as it is
+	 * now, before the provider changes it. Data which was not loaded is
+	 * loaded, the rows of paged arrays are loaded and blob data is
+	 * copied.
+	 * @param resolver the resolver to read blob data with
+	 * @param uri the uri of the field, row or table being changed
+	 */
+	static void keepOriginals(final ContentResolver resolver,
+			final Uri uri) {
+		UriBoundAdapter.loadUnloaded(uri);
+		PagedElements.keepOriginals(uri);
+		UriBlob.copyOriginals(resolver, uri);
+	}
+
+	/**
+	 * @param first a uri
+	 * @param second another uri
+	 * @return true if one of the uris is the other or a path below it
+	 */
+	static boolean overlaps(final Uri first, final Uri second) {
+		final String one = first.toString();
+		final String other = second.toString();
+		return one.equals(other) || one.startsWith(other + "/")
+				|| other.startsWith(one + "/");
+	}
+
+	/**
+	 * Starts preserving the given data if it can be snapshot. The data of
+	 * a blob handle is only copied when it is first written.
+	 * @param resolver the resolver to read blob data with
+	 * @param data the data to snapshot
+	 */
+	static void snapshot(final ContentResolver resolver, final Object data) {
+		if (data instanceof UriBound) {
+			((UriBound<?>) data).snapshot(resolver);
+		} else if (data instanceof UriUnion) {
+			((UriUnion) data).snapshot(resolver);
+		} else if (data instanceof UriBlob) {
+			((UriBlob) data).preserve();
+		}
+	}
+
+	/**
+	 * @param data the data to get the snapshot for
+	 * @return the data as it was when it was snapshot, which is the data
+	 * itself if it has not changed since
+	 * @throws NotBoundException if the data is not bound properly
+	 */
+	static Object getSnapshot(final Object data) throws NotBoundException {
+		Object ret = data;
+		if (data instanceof UriBound) {
+			ret = ((UriBound<?>) data).getSnapshot();
+		} else if (data instanceof UriUnion) {
+			ret = ((UriUnion) data).getSnapshot();
+		} else if (data instanceof UriBlob) {
+			ret = ((UriBlob) data).getOriginal();
+		}
+		return ret;
+	}
+
+	/**
+	 * Checks if a value of the given schema can be stored without knowing
+	 * the uri of the row it is stored in. Arrays and maps are stored in a
+	 * table under the row uri so they can not, nor can unions which may
+	 * hold one of them.
+	 * @param fieldSchema the schema for the value stored in a row
+	 * @return true if the value does not depend on the row uri
+	 */
+	static boolean isRowIndependent(final Schema fieldSchema) {
+		boolean ret;
 		switch (fieldSchema.getType()) {
 		case ARRAY:
-			if (data != null) {
-				UriArray array = (UriArray) data;
-				array.save(resolver, fieldName);
-				dataUri = array.getInstanceUri();
-			} else {
-				// Make sure any old values don't exist
-				LOG.warn("Clearing old values.");
-				new UriArray(Uri.withAppendedPath(rootUri, fieldName),
-						fieldSchema).delete(resolver);
-			}
-			break;
-		case BOOLEAN:
-			values.put(fieldName, (Boolean) data);
-			break;
-		case BYTES:
-			values.put(fieldName, (byte[]) data);
-			break;
-		case DOUBLE:
-			values.put(fieldName, (Double) data);
-			break;
-		case ENUM:
-			values.put(fieldName, (Integer) data);
-			break;
-		case FIXED:
-			values.put(fieldName, (byte[]) data);
-			break;
-		case FLOAT:
-			values.put(fieldName, (Float) data);
-			break;
-		case INT:
-			values.put(fieldName, (Integer) data);
-			break;
-		case LONG:
-			values.put(fieldName, (Long) data);
-			break;
 		case MAP:
-			if (data != null) {
-				UriMap map = (UriMap) data;
-				map.save(resolver, fieldName);
-				dataUri = map.getInstanceUri();
-			} else {
-				new UriMap(Uri.withAppendedPath(rootUri, fieldName),
-						fieldSchema).delete(resolver);
-			}
-			break;
-		case NULL:
-			values.putNull(fieldName);
-			break;
-		case RECORD:
-			if (data != null) {
-				UriRecord record = (UriRecord) data;
-				record.save(resolver);
-				dataUri = record.getInstanceUri();
-			}
-			break;
-		case STRING:
-			values.put(fieldName, (String) data);
+			ret = false;
 			break;
 		case UNION:
-			if (data != null) {
-				UriUnion union = (UriUnion) data;
-				union.save(resolver, rootUri, values, fieldName);
+			ret = true;
+			for (Schema branch : fieldSchema.getTypes()) {
+				if (!isRowIndependent(branch)) {
+					ret = false;
+					break;
+				}
 			}
 			break;
 		default:
-			throw new IllegalArgumentException(
-					"Unsupported type: " + fieldSchema);
+			ret = true;
 		}
-
-		return dataUri;
+		return ret;
 	}
 
 	/**
@@ -280,7 +545,13 @@ public final class UriDataManager {
 	public static Uri insertUri(final ContentResolver resolver,
 			final Uri baseUri, final ContentValues contentValues) {
 		LOG.debug("Inserting into {}", baseUri);
-		return resolver.insert(baseUri, contentValues);
+		keepOriginals(resolver, baseUri);
+		OrphanCollector.noteWrite(baseUri);
+		final Uri ret = resolver.insert(baseUri, contentValues);
+		if (ret != null) {
+			OrphanCollector.noteWrite(ret);
+		}
+		return ret;
 	}
 
 	/**
@@ -293,6 +564,8 @@ public final class UriDataManager {
 			final Uri rootUri, final ContentValues values) {
 		LOG.debug("Updating: " + rootUri);
 		if (values.size() > 0) {
+			keepOriginals(resolver, rootUri);
+			OrphanCollector.noteWrite(rootUri);
 			// Turns out update returns 0 if nothing changed in the row.
 			//          int count =
 			resolver.update(rootUri, values, null, null);
@@ -30,12 +30,16 @@
  */
 package interdroid.vdb.avro.model;
 
-import interdroid.util.DbUtil;
 import interdroid.vdb.avro.model.UriBoundAdapter.UriBoundAdapterImpl;
 import interdroid.vdb.content.EntityUriMatcher;
 import interdroid.vdb.content.EntityUriMatcher.UriMatch;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.avro.Schema;
 import org.apache.avro.Schema.Type;
@@ -43,6 +47,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
@@ -71,6 +76,19 @@ implements UriBound<UriMap<V>> {
 		return mSchema;
 	}
 
+	/** The provider row id for each key with a row. */
+	private final HashMap<String, Long> mRowIds = new HashMap<String, Long>();
+	/** The keys whose values were put since the last load or save. */
+	private final HashSet<String> mChangedKeys = new HashSet<String>();
+	/** The ids of rows whose keys were removed since the last save. */
+	private final ArrayList<Long> mRemovedRows = new ArrayList<Long>();
+	/** Do mRowIds and mRemovedRows describe the rows in the provider. */
+	private boolean mRowsKnown;
+	/** The entries as they were when first changed after a snapshot. */
+	private HashMap<String, V> mPreImage;
+	/** The codec for the values, compiled on first use. */
+	private FieldCodec mValueCodec;
+
 	/** The binder adapterused to bind this to a uri. */
 	private final UriBoundAdapter<UriMap<V>> mUriBinder;
 
@@ -129,47 +147,114 @@ implements UriBound<UriMap<V>> {
 				throws NotBoundException {
 			LOG.debug("Deleting Map: " + getInstanceUri());
 			if (recursion) {
-				if (UriBoundAdapter.isBoundType(
-						getSchema().getValueType().getType())) {
-					for (Object element : UriMap.this.values()) {
-						((UriBound<?>) element).delete(resolver);
-					}
-				} else if (getSchema().getValueType().getType() == Type.UNION) {
-					for (Object element : UriMap.this.values()) {
-						((UriUnion) element).delete(resolver);
-					}
-				}
+				CascadeDelete.deleteCollection(resolver, getInstanceUri(),
+						getSchema());
+			} else {
+				UriDataManager.keepOriginals(resolver, getInstanceUri());
+				resolver.delete(getInstanceUri(), null, null);
 			}
-			resolver.delete(getInstanceUri(), null, null);
+			mRowIds.clear();
+			mRowsKnown = false;
 		}
 
 		@Override
-		public void saveImpl(final ContentResolver resolver,
-				final String fieldName)
+		public void saveImpl(final UriBatch batch,
+				final ContentResolver resolver, final String fieldName)
 				throws NotBoundException {
+			LOG.debug("Saving map: {} : {}", getInstanceUri(), fieldName);
+			final String keyName = NameHelper.getMapKeyName(fieldName);
+
+			// The rows are only forgotten once the batch is applied.
+			final boolean rowsKnown = mRowsKnown;
+			if (rowsKnown) {
+				for (Long id : mRemovedRows) {
+					batch.delete(getRowUri(id));
+				}
+			} else {
+				batch.delete(getInstanceUri());
+			}
+
+			// Keys with a row are updated in place if they changed but
+			// values with their own changed data still need saving.
+			final ArrayList<String> inserts = new ArrayList<String>();
+			for (Map.Entry<String, V> entry : UriMap.this.entrySet()) {
+				Long id = null;
+				if (rowsKnown) {
+					id = mRowIds.get(entry.getKey());
+				}
+				final boolean changed = mChangedKeys.contains(entry.getKey());
+				if (id == null) {
+					inserts.add(entry.getKey());
+				} else if (changed
+						|| UriDataManager.isDirty(entry.getValue())) {
+					final Uri rowUri = getRowUri(id);
+					final ContentValues values = new ContentValues();
+					storeValue(batch, resolver, rowUri, values, fieldName,
+							entry.getValue());
+					if (changed) {
+						batch.update(rowUri, values);
+					}
+				}
+			}
 
-			deleteImpl(resolver, false);
-
-			final ContentValues values = new ContentValues();
-
-			for (String key : UriMap.this.keySet()) {
-				values.clear();
-				values.put(NameHelper.getMapKeyName(fieldName), key);
-				// First insert a row with just the key so we can get
-				// the ID of the row in
-				// case the row is really an array or some other table based row
-				final Uri idUri = UriDataManager.insertUri(resolver,
-						getInstanceUri(), values);
-				LOG.debug("Got id uri for map row: " + idUri);
-
-				final Uri dataUri = UriDataManager.storeDataToUri(resolver,
-						idUri, values, fieldName,
-						getSchema().getValueType(), get(key));
-				if (dataUri != null) {
-					final UriMatch match = EntityUriMatcher.getMatch(dataUri);
-					values.put(fieldName, match.entityIdentifier);
+			// Write the key and value in the insert of the key row. Nested
+			// arrays and maps are saved under the uri they are bound to and
+			// the row only refers to them. A new row has no old nested data
+			// to delete.
+			final boolean independent = UriDataManager.isRowIndependent(
+					getSchema().getValueType());
+			final HashMap<String, Long> inserted = new HashMap<String, Long>();
+			for (final String key : inserts) {
+				final ContentValues values = new ContentValues();
+				values.put(keyName, key);
+				final V value = get(key);
+				if (independent || value != null) {
+					storeValue(batch, resolver, getInstanceUri(), values,
+							fieldName, value);
+				}
+				batch.insert(getInstanceUri(), values,
+						new UriBatch.InsertListener() {
+					@Override
+					public void inserted(final Uri uri) {
+						if (uri != null) {
+							inserted.put(key, ContentUris.parseId(uri));
+						}
+					}
+				});
+			}
+			batch.whenApplied(new Runnable() {
+				@Override
+				public void run() {
+					if (!rowsKnown) {
+						mRowIds.clear();
+					}
+					mRowIds.putAll(inserted);
+					markRowsSaved();
 				}
-				UriDataManager.updateUriOrThrow(resolver, idUri, values);
+			});
+			LOG.debug("Saving {} keys with {} inserts", size(),
+					inserts.size());
+		}
+
+		/**
+		 * Stores a value to the given values.
+		 * @param batch the batch to save nested data with
+		 * @param resolver the resolver to save with
+		 * @param rowUri the uri for the row holding the value
+		 * @param values the values for the row
+		 * @param fieldName the name of the field being saved
+		 * @param value the value to store
+		 * @throws NotBoundException if the value is not bound
+		 */
+		private void storeValue(final UriBatch batch,
+				final ContentResolver resolver, final Uri rowUri,
+				final ContentValues values, final String fieldName,
+				final Object value) throws NotBoundException {
+			final Uri dataUri = getValueCodec().store(batch, resolver,
+					rowUri, values, fieldName, value);
+			if (dataUri != null) {
+				final UriMatch match = EntityUriMatcher.getMatch(dataUri);
+				values.put(fieldName, match.entityIdentifier);
 			}
 		}
 
@@ -181,45 +266,47 @@ implements UriBound<UriMap<V>> {
 			LOG.debug("Loading map from: " + getInstanceUri() + " : {} : {}",
 					fieldName, getSchema());
 			final Cursor cursor = resolver.query(getInstanceUri(),
-					null, null, null, null);
+					LoadPlan.getFieldProjection(resolver, getInstanceUri(),
+							getSchema(), getSchema().getValueType(),
+							fieldName, NameHelper.getMapKeyName(fieldName)),
+					null, null, null);
 			try {
 				if (cursor != null) {
-					final int keyIndex = DbUtil.getFieldIndex(cursor,
+					final LoadPlan plan = LoadPlan.forField(
+							getInstanceUri(), fieldName, cursor,
 							NameHelper.getMapKeyName(fieldName));
-					final int valueIndex = DbUtil.getFieldIndex(cursor,
-							fieldName);
+					final int keyIndex = plan.getKeyIndex();
+					final int valueIndex = plan.getValueIndex(0);
+					final int idIndex = plan.getIdIndex();
+					final Schema valueSchema = getSchema().getValueType();
+					final FieldCodec codec = getValueCodec();
+					Map<Long, UriRecord> records = null;
+					if (valueSchema.getType() == Type.RECORD
+							&& !mUriBinder.isLazy()) {
+						records = UriDataManager.loadRecords(resolver,
+								getInstanceUri(), valueSchema,
+								UriDataManager.getRecordIds(cursor,
+										valueIndex));
+						cursor.moveToPosition(-1);
+					}
 					while (cursor.moveToNext()) {
-						Uri dataUri = Uri.withAppendedPath(getInstanceUri(),
-								cursor.getString(keyIndex));
-						Cursor dataCursor = cursor;
-						try {
-							if (UriBoundAdapter.isBoundType(
-									getSchema().getValueType().getType())) {
-								final int recordId = cursor.getInt(valueIndex);
-								if (recordId > 0) {
-									dataUri = Uri.withAppendedPath(
-											UriDataManager.getRecordUri(
-													getInstanceUri(),
-													getSchema().getValueType()),
-											String.valueOf(recordId));
-									dataCursor = resolver.query(dataUri,
-											null, null, null, null);
-									if (dataCursor != null) {
-										dataCursor.moveToFirst();
-									}
-								}
-							}
-							put(cursor.getString(keyIndex),
-									(V) UriDataManager.loadDataFromUri(resolver,
-											dataUri, dataCursor, fieldName,
-											getSchema().getValueType()));
-						} finally {
-							if (UriBoundAdapter.isBoundType(
-									getSchema().getValueType().getType())) {
-								UriDataManager.safeClose(dataCursor);
-							}
+						final String key = cursor.getString(keyIndex);
+						if (records != null) {
+							put(key, (V) records.get(
+									cursor.getLong(valueIndex)));
+						} else {
+							put(key, (V) codec.load(resolver,
+									Uri.withAppendedPath(getInstanceUri(), key),
+									cursor, fieldName, plan, 0,
+									mUriBinder.isLazy()));
+						}
+						if (idIndex >= 0) {
+							mRowIds.put(key, cursor.getLong(idIndex));
 						}
 					}
+					if (idIndex >= 0) {
+						markRowsSaved();
+					}
 				} else {
 					throw new IllegalArgumentException("Unable to load: "
 							+ getInstanceUri());
@@ -231,6 +318,92 @@ implements UriBound<UriMap<V>> {
 			return UriMap.this;
 		}
 
+		@Override
+		public boolean isDirtyImpl() {
+			boolean ret = !mRowsKnown || !mChangedKeys.isEmpty()
+					|| !mRemovedRows.isEmpty();
+			if (!ret) {
+				for (V value : values()) {
+					if (UriDataManager.isDirty(value)) {
+						ret = true;
+						break;
+					}
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public void markDirtyImpl() {
+			mRowsKnown = false;
+			for (V value : values()) {
+				UriDataManager.markDirty(value);
+			}
+		}
+
+		@Override
+		public void markChangedImpl(final Object stored) {
+			// Rows are not matched up so all of them are written.
+			markDirtyImpl();
+		}
+
+		@Override
+		public void markCleanImpl() {
+			// Keys without a row, or rows removed for them, have to be
+			// written.
+			if (mRowsKnown && mRowIds.keySet().equals(keySet())) {
+				markRowsSaved();
+			}
+			for (V value : values()) {
+				UriDataManager.markClean(value);
+			}
+		}
+
+		@Override
+		public void snapshotImpl(final ContentResolver resolver) {
+			mPreImage = null;
+			for (V value : values()) {
+				UriDataManager.snapshot(resolver, value);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public UriMap<V> getSnapshotImpl() throws NotBoundException {
+			UriMap<V> ret = UriMap.this;
+			if (!mUriBinder.isLoadDeferred()) {
+				Map<String, V> entries = mPreImage;
+				if (entries == null) {
+					entries = UriMap.this;
+				}
+				boolean changed = mPreImage != null;
+				final Map<String, V> snapshot = new HashMap<String, V>();
+				for (Map.Entry<String, V> entry : entries.entrySet()) {
+					final V original =
+							(V) UriDataManager.getSnapshot(entry.getValue());
+					changed |= original != entry.getValue();
+					snapshot.put(entry.getKey(), original);
+				}
+				if (changed) {
+					ret = new UriMap<V>(getInstanceUri(), getSchema());
+					ret.putAll(snapshot);
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public long contentHashImpl() {
+			// Entries are added up so the order of the keys does not count.
+			long entries = 0;
+			for (Map.Entry<String, V> entry : entrySet()) {
+				entries += ContentHash.mix(ContentHash.of(entry.getKey()),
+						ContentHash.of(entry.getValue()));
+			}
+			return ContentHash.mix(ContentHash.mix(ContentHash.EMPTY,
+					size()), entries);
+		}
+
 	};
 
 	/**
@@ -255,6 +428,193 @@ implements UriBound<UriMap<V>> {
 		mUriBinder = new UriBoundAdapter<UriMap<V>>(uri, mBinderImpl);
 	}
 
+	/**
+	 * Marks all rows as matching the provider.
+	 */
+	private void markRowsSaved() {
+		mChangedKeys.clear();
+		mRemovedRows.clear();
+		mRowsKnown = mRowIds.size() == size();
+	}
+
+	/**
+	 * @param id the id of a row
+	 * @return the uri for the row
+	 * @throws NotBoundException if the map is not bound
+	 */
+	private Uri getRowUri(final long id) throws NotBoundException {
+		return ContentUris.withAppendedId(getInstanceUri(), id);
+	}
+
+	/**
+	 * @return the codec for the values
+	 */
+	private FieldCodec getValueCodec() {
+		if (mValueCodec == null) {
+			mValueCodec = FieldCodec.forSchema(getSchema().getValueType());
+		}
+		return mValueCodec;
+	}
+
+	/**
+	 * Keeps a copy of the entries if this is the first change since a
+	 * snapshot was taken.
+	 */
+	private void preserve() {
+		if (mPreImage == null && mUriBinder.isPreserving()) {
+			mPreImage = new HashMap<String, V>(this);
+		}
+	}
+
+	@Override
+	public final int size() {
+		mUriBinder.ensureLoaded();
+		return super.size();
+	}
+
+	@Override
+	public final boolean isEmpty() {
+		mUriBinder.ensureLoaded();
+		return super.isEmpty();
+	}
+
+	@Override
+	public final V get(final Object key) {
+		mUriBinder.ensureLoaded();
+		return super.get(key);
+	}
+
+	@Override
+	public final boolean containsKey(final Object key) {
+		mUriBinder.ensureLoaded();
+		return super.containsKey(key);
+	}
+
+	@Override
+	public final boolean containsValue(final Object value) {
+		mUriBinder.ensureLoaded();
+		return super.containsValue(value);
+	}
+
+	@Override
+	public final Set<String> keySet() {
+		mUriBinder.ensureLoaded();
+		return super.keySet();
+	}
+
+	@Override
+	public final Collection<V> values() {
+		mUriBinder.ensureLoaded();
+		return super.values();
+	}
+
+	@Override
+	public final Set<Map.Entry<String, V>> entrySet() {
+		mUriBinder.ensureLoaded();
+		return super.entrySet();
+	}
+
+	@Override
+	public final String toString() {
+		String ret;
+		if (mUriBinder.isLoadDeferred()) {
+			ret = "{not loaded}";
+		} else {
+			ret = super.toString();
+		}
+		return ret;
+	}
+
+	@Override
+	public final V put(final String key, final V value) {
+		mUriBinder.ensureLoaded();
+		preserve();
+		mChangedKeys.add(key);
+		return super.put(key, value);
+	}
+
+	@Override
+	public final void putAll(final Map<? extends String, ? extends V> map) {
+		for (Map.Entry<? extends String, ? extends V> entry : map.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public final V remove(final Object key) {
+		mUriBinder.ensureLoaded();
+		preserve();
+		final Long id = mRowIds.remove(key);
+		if (id != null) {
+			mRemovedRows.add(id);
+		}
+		mChangedKeys.remove(key);
+		return super.remove(key);
+	}
+
+	@Override
+	public final void clear() {
+		mUriBinder.ensureLoaded();
+		preserve();
+		mRemovedRows.addAll(mRowIds.values());
+		mRowIds.clear();
+		mChangedKeys.clear();
+		super.clear();
+	}
+
+	@Override
+	public final void snapshot(final ContentResolver resolver) {
+		mUriBinder.snapshot(resolver);
+	}
+
+	@Override
+	public final UriMap<V> getSnapshot() throws NotBoundException {
+		return mUriBinder.getSnapshot();
+	}
+
+	/**
+	 * @return true if loading was deferred and has not happened yet
+	 */
+	final boolean isLoadDeferred() {
+		return mUriBinder.isLoadDeferred();
+	}
+
+	@Override
+	public final boolean isDirty() {
+		return mUriBinder.isDirty();
+	}
+
+	/**
+	 * @return a structural hash of the entries in this map
+	 */
+	final long getContentHash() {
+		return mUriBinder.getContentHash();
+	}
+
+	/**
+	 * @param hash the content hash to check
+	 * @return true if the provider held data with the given hash when
+	 * this map was last loaded or saved
+	 */
+	final boolean isSaved(final long hash) {
+		return mUriBinder.isSaved(hash);
+	}
+
+	@Override
+	public final void markDirty() {
+		mUriBinder.markDirty();
+	}
+
+	@Override
+	public final void markChanged(final Object stored) {
+		mUriBinder.markChanged(stored);
+	}
+
+	@Override
+	public final void markClean() {
+		mUriBinder.markClean();
+	}
+
 	@Override
 	public final Uri getInstanceUri() throws NotBoundException {
 		return mUriBinder.getInstanceUri();
@@ -290,10 +650,36 @@ implements UriBound<UriMap<V>> {
 		mUriBinder.save(resolver, fieldName);
 	}
 
+	/**
+	 * Adds the operations to save this map to the given batch.
+	 * @param batch the batch to save with
+	 * @param resolver the resolver to save with
+	 * @param fieldName the field being saved
+	 * @throws NotBoundException if this is not bound
+	 */
+	final void save(final UriBatch batch, final ContentResolver resolver,
+			final String fieldName) throws NotBoundException {
+		mUriBinder.save(batch, resolver, fieldName);
+	}
+
 	@Override
 	public final UriMap<V> load(final ContentResolver resolver,
 			final String fieldName)
 			throws NotBoundException {
 		return mUriBinder.load(resolver, fieldName);
 	}
+
+	/**
+	 * Binds this map for loading from the resolver on first access.
+	 * @param resolver the resolver to load with
+	 * @param fieldName the field to be loaded
+	 * @return this map
+	 * @throws NotBoundException if this is not bound
+	 */
+	public final UriMap<V> loadLazily(final ContentResolver resolver,
+			final String fieldName)
+			throws NotBoundException {
+		mUriBinder.defer(resolver, fieldName);
+		return this;
+	}
 }
@@ -34,6 +34,9 @@ import interdroid.vdb.avro.model.UriBoundAdapter.UriBoundAdapterImpl;
 import interdroid.vdb.content.EntityUriMatcher;
 import interdroid.vdb.content.EntityUriMatcher.UriMatch;
 
+import java.util.BitSet;
+import java.util.List;
+
 import org.apache.avro.Schema;
 import org.apache.avro.Schema.Field;
 import org.apache.avro.Schema.Type;
@@ -58,6 +61,12 @@ implements UriBound<UriRecord> {
 	private static final Logger LOG = LoggerFactory
 			.getLogger(UriRecord.class);
 
+	/** The positions of the fields changed since the last load or save. */
+	private final BitSet mDirtyFields = new BitSet();
+
+	/** The field values as they were when first changed after a snapshot. */
+	private Object[] mPreImage;
+
 	/** The binder adapter we use to bind to a uri. */
 	private final UriBoundAdapter<UriRecord> mUriBinder;
 
@@ -66,25 +75,38 @@ implements UriBound<UriRecord> {
 			new UriBoundAdapterImpl<UriRecord>() {
 
 		@Override
-		public void saveImpl(final ContentResolver resolver,
+		public void saveImpl(final UriBatch batch,
+				final ContentResolver resolver,
 				final String fieldFullName) throws NotBoundException {
 			ContentValues values = new ContentValues();
 			LOG.debug("Storing record: {}", fieldFullName);
-			for (Field field : getSchema().getFields()) {
-				String fieldName = field.name();
+			final FieldCodec[] codecs = FieldCodec.forRecord(getSchema());
+			final List<Field> fields = getSchema().getFields();
+			for (int i = 0; i < codecs.length; i++) {
+				Object value = get(i);
+				// Skip fields which have not changed since the last save
+				if (!mDirtyFields.get(i) && !UriDataManager.isDirty(value)) {
+					continue;
+				}
+				final Field field = fields.get(i);
 				// Store the data to either the values or the right table
-				Uri dataUri = UriDataManager.storeDataToUri(resolver,
-						getInstanceUri(), values, field.name(), field.schema(),
-						get(fieldName));
+				Uri dataUri = codecs[i].store(batch, resolver,
+						getInstanceUri(), values, field.name(), value);
 				// Update our reference if this is a record
 				if (field.schema().getType() == Type.RECORD
 						&& dataUri != null) {
 					UriMatch match = EntityUriMatcher.getMatch(dataUri);
-					values.put(fieldName, match.entityIdentifier);
+					values.put(field.name(), match.entityIdentifier);
 				}
 			}
 			// Now we can update the data for this record.
-			UriDataManager.updateUriOrThrow(resolver, getInstanceUri(), values);
+			batch.update(getInstanceUri(), values);
+			batch.whenApplied(new Runnable() {
+				@Override
+				public void run() {
+					mDirtyFields.clear();
+				}
+			});
 		}
 
 		@Override
@@ -94,23 +116,16 @@ implements UriBound<UriRecord> {
 					getInstanceUri(), getSchema());
 
 			Cursor cursor = resolver.query(getInstanceUri(),
-					null, null, null, null);
+					LoadPlan.getRecordProjection(resolver, getInstanceUri(),
+							getSchema()), null, null, null);
 
 			try {
 				LOG.debug("Cursor is: {}", cursor);
 				if (cursor != null && cursor.getCount() == 1) {
 					cursor.moveToFirst();
-
-					for (Field field : getSchema().getFields()) {
-						String fieldName = field.name();
-						// Load the data for this field
-						Object value = UriDataManager.loadDataFromUri(resolver,
-								getInstanceUri(), cursor, fieldName,
-								field.schema());
-						LOG.debug("Loaded: {} : {}", fieldName, value);
-						// And store it in the record
-						put(fieldName, value);
-					}
+					loadFields(resolver, cursor,
+							LoadPlan.forRecord(getSchema(), cursor),
+							mUriBinder.isLazy());
 				}
 			} finally {
 				UriDataManager.safeClose(cursor);
@@ -122,26 +137,10 @@ implements UriBound<UriRecord> {
 		public void deleteImpl(final ContentResolver resolver)
 				throws NotBoundException {
 			LOG.debug("Deleting Record: {}", getInstanceUri());
-
-			// TODO: The fields here may not reflect what we
-			// really need to do to delete if this is not
-			// loaded to match the DB. For now we
-			// assume this is a clean record but we really
-			// should have loaded and dirty flags all through
-			// the model. This is dangerous but good enough for
-			// now.
-
-			for (Field field : getSchema().getFields()) {
-				String fieldName = field.name();
-				if (UriBoundAdapter.isBoundType(field.schema().getType())) {
-					UriBound<?> data = (UriBound<?>) get(fieldName);
-					if (data != null) {
-						data.delete(resolver);
-					}
-				}
-			}
-
-			resolver.delete(getInstanceUri(), null, null);
+			// Everything reachable according to the schema is deleted
+			// whether or not it is loaded.
+			CascadeDelete.deleteRecord(resolver, getInstanceUri(),
+					getSchema());
 		}
 
 		@Override
@@ -155,12 +154,14 @@ implements UriBound<UriRecord> {
 			outState.putParcelable(NameHelper.getTypeNameUri(dataFullName),
 					getInstanceUri());
 
-			for (Field field : getSchema().getFields()) {
-				String fieldName = field.name();
-				String fieldFullName =
-						NameHelper.getFieldFullName(dataFullName, fieldName);
-				BundleDataManager.storeDataToBundle(outState,
-						fieldFullName, field.schema(), get(fieldName));
+			final FieldCodec[] codecs = FieldCodec.forRecord(getSchema());
+			final List<Field> fields = getSchema().getFields();
+			for (int i = 0; i < codecs.length; i++) {
+				final Object value = get(i);
+				if (value != null) {
+					codecs[i].store(outState, NameHelper.getFieldFullName(
+							dataFullName, fields.get(i).name()), value);
+				}
 			}
 		}
 
@@ -173,19 +174,102 @@ implements UriBound<UriRecord> {
 			String dataFullName =
 					NameHelper.getPrefixName(prefix, getSchema().getFullName());
 
-			for (Field field : getSchema().getFields()) {
-				String fieldName = field.name();
-				LOG.debug("Loading field: " + fieldName);
-				String fieldFullName =
-						NameHelper.getFieldFullName(dataFullName, fieldName);
-				put(fieldName,
-						BundleDataManager.loadDataFromBundle(
-								saved, fieldFullName, field.schema()));
+			final FieldCodec[] codecs = FieldCodec.forRecord(getSchema());
+			final List<Field> fields = getSchema().getFields();
+			for (int i = 0; i < codecs.length; i++) {
+				put(i, codecs[i].load(saved, NameHelper.getFieldFullName(
+						dataFullName, fields.get(i).name())));
 			}
 
 			return UriRecord.this;
 		}
 
+		@Override
+		public boolean isDirtyImpl() {
+			boolean ret = !mDirtyFields.isEmpty();
+			for (int i = 0; !ret && i < getSchema().getFields().size(); i++) {
+				ret = UriDataManager.isDirty(get(i));
+			}
+			return ret;
+		}
+
+		@Override
+		public void markDirtyImpl() {
+			for (Field field : getSchema().getFields()) {
+				mDirtyFields.set(field.pos());
+				UriDataManager.markDirty(get(field.pos()));
+			}
+		}
+
+		@Override
+		public void markChangedImpl(final Object stored) {
+			UriRecord other = null;
+			if (stored instanceof UriRecord) {
+				other = (UriRecord) stored;
+			}
+			for (Field field : getSchema().getFields()) {
+				final Object value = get(field.pos());
+				Object storedValue = null;
+				if (other != null) {
+					storedValue = other.get(field.pos());
+				}
+				if (other == null || ContentHash.of(value)
+						!= ContentHash.of(storedValue)) {
+					mDirtyFields.set(field.pos());
+					UriDataManager.markChanged(value, storedValue);
+				}
+			}
+		}
+
+		@Override
+		public void markCleanImpl() {
+			mDirtyFields.clear();
+			for (int i = 0; i < getSchema().getFields().size(); i++) {
+				UriDataManager.markClean(get(i));
+			}
+		}
+
+		@Override
+		public void snapshotImpl(final ContentResolver resolver) {
+			mPreImage = null;
+			for (Field field : getSchema().getFields()) {
+				UriDataManager.snapshot(resolver, get(field.pos()));
+			}
+		}
+
+		@Override
+		public UriRecord getSnapshotImpl() throws NotBoundException {
+			UriRecord ret = UriRecord.this;
+			if (!mUriBinder.isLoadDeferred()) {
+				Object[] values = mPreImage;
+				if (values == null) {
+					values = getValues();
+				}
+				boolean changed = mPreImage != null;
+				final Object[] snapshot = new Object[values.length];
+				for (int i = 0; i < values.length; i++) {
+					snapshot[i] = UriDataManager.getSnapshot(values[i]);
+					changed |= snapshot[i] != values[i];
+				}
+				if (changed) {
+					ret = new UriRecord(getInstanceUri(), getSchema());
+					for (int i = 0; i < snapshot.length; i++) {
+						ret.put(i, snapshot[i]);
+					}
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public long contentHashImpl() {
+			long ret = ContentHash.EMPTY;
+			for (int i = 0; i < getSchema().getFields().size(); i++) {
+				ret = ContentHash.mix(ret, ContentHash.of(get(i)));
+			}
+			return ret;
+		}
+
 	};
 
 	/**
@@ -227,6 +311,18 @@ implements UriBound<UriRecord> {
 		mUriBinder.save(resolver, fieldName);
 	}
 
+	/**
+	 * Adds the operations to save this record to the given batch.
+	 * @param batch the batch to save with
+	 * @param resolver the resolver to save with
+	 * @param fieldName the field being saved
+	 * @throws NotBoundException if this is not bound properly
+	 */
+	final void save(final UriBatch batch, final ContentResolver resolver,
+			final String fieldName) throws NotBoundException {
+		mUriBinder.save(batch, resolver, fieldName);
+	}
+
 	@Override
 	public final UriRecord load(final ContentResolver resolver,
 			final String fieldName)
@@ -252,6 +348,172 @@ implements UriBound<UriRecord> {
 		mUriBinder.delete(resolver);
 	}
 
+	@Override
+	public final Object get(final String key) {
+		mUriBinder.ensureLoaded();
+		return super.get(key);
+	}
+
+	@Override
+	public final Object get(final int i) {
+		mUriBinder.ensureLoaded();
+		return super.get(i);
+	}
+
+	@Override
+	public final String toString() {
+		String ret;
+		if (mUriBinder.isLoadDeferred()) {
+			ret = "{not loaded}";
+		} else {
+			ret = super.toString();
+		}
+		return ret;
+	}
+
+	@Override
+	public final void put(final String key, final Object value) {
+		mUriBinder.ensureLoaded();
+		preserve();
+		super.put(key, value);
+		mDirtyFields.set(getSchema().getField(key).pos());
+	}
+
+	@Override
+	public final void put(final int i, final Object value) {
+		mUriBinder.ensureLoaded();
+		preserve();
+		super.put(i, value);
+		mDirtyFields.set(i);
+	}
+
+	/**
+	 * Keeps a copy of the field values if this is the first change since
+	 * a snapshot was taken.
+	 */
+	private void preserve() {
+		if (mPreImage == null && mUriBinder.isPreserving()) {
+			mPreImage = getValues();
+		}
+	}
+
+	/**
+	 * @return a copy of the field values
+	 */
+	private Object[] getValues() {
+		final Object[] values = new Object[getSchema().getFields().size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = super.get(i);
+		}
+		return values;
+	}
+
+	@Override
+	public final void snapshot(final ContentResolver resolver) {
+		mUriBinder.snapshot(resolver);
+	}
+
+	@Override
+	public final UriRecord getSnapshot() throws NotBoundException {
+		return mUriBinder.getSnapshot();
+	}
+
+	/**
+	 * @param position the position of the field
+	 * @return true if the field was set since the last load or save
+	 */
+	final boolean isFieldDirty(final int position) {
+		return mDirtyFields.get(position);
+	}
+
+	/**
+	 * @return true if loading was deferred and has not happened yet
+	 */
+	final boolean isLoadDeferred() {
+		return mUriBinder.isLoadDeferred();
+	}
+
+	@Override
+	public final boolean isDirty() {
+		return mUriBinder.isDirty();
+	}
+
+	/**
+	 * @return a structural hash of the values in this record
+	 */
+	final long getContentHash() {
+		return mUriBinder.getContentHash();
+	}
+
+	/**
+	 * @return true if the values hash the same as when this record was
+	 * last loaded or saved, so saving it would not write anything
+	 */
+	final boolean isUnchanged() {
+		return mUriBinder.isUnchanged();
+	}
+
+	/**
+	 * @param hash the content hash to check
+	 * @return true if the provider held values with the given hash when
+	 * this record was last loaded or saved
+	 */
+	final boolean isSaved(final long hash) {
+		return mUriBinder.isSaved(hash);
+	}
+
+	@Override
+	public final void markDirty() {
+		mUriBinder.markDirty();
+	}
+
+	@Override
+	public final void markChanged(final Object stored) {
+		mUriBinder.markChanged(stored);
+	}
+
+	@Override
+	public final void markClean() {
+		mUriBinder.markClean();
+	}
+
+	/**
+	 * Loads the fields of this record from the current row of a cursor.
+	 * @param resolver the resolver to load nested data with
+	 * @param cursor the cursor positioned on the row for this record
+	 * @param plan the column indexes resolved for the cursor
+	 * @param lazy true if nested data should be loaded on first access
+	 * @throws NotBoundException if the data is not bound properly
+	 */
+	private void loadFields(final ContentResolver resolver,
+			final Cursor cursor, final LoadPlan plan, final boolean lazy)
+					throws NotBoundException {
+		final Uri uri = getInstanceUri();
+		final FieldCodec[] codecs = FieldCodec.forRecord(getSchema());
+		final List<Field> fields = getSchema().getFields();
+		for (int i = 0; i < codecs.length; i++) {
+			// Load the data for this field and store it in the record
+			put(i, codecs[i].load(resolver, uri, cursor,
+					fields.get(i).name(), plan, i, lazy));
+		}
+		mDirtyFields.clear();
+	}
+
+	/**
+	 * Load from a row which was already fetched from the content provider.
+	 * @param resolver the resolver to load nested data with
+	 * @param cursor the cursor positioned on the row for this record
+	 * @param plan the column indexes resolved for the cursor
+	 * @return the record
+	 * @throws NotBoundException if this is not bound properly
+	 */
+	final UriRecord load(final ContentResolver resolver, final Cursor cursor,
+			final LoadPlan plan) throws NotBoundException {
+		loadFields(resolver, cursor, plan, false);
+		mUriBinder.markSaved();
+		return this;
+	}
+
 	/**
 	 * Load from the given bundle.
 	 * @param savedInstanceState the bundle to load from
@@ -284,6 +546,19 @@ implements UriBound<UriRecord> {
 		return mUriBinder.load(resolver, null);
 	}
 
+	/**
+	 * Binds this record for loading from the content provider on first
+	 * access. Nested data is then also loaded on first access.
+	 * @param resolver the resolver to load with
+	 * @return the record
+	 * @throws NotBoundException if this is not bound properly
+	 */
+	public final UriRecord loadLazily(final ContentResolver resolver) throws
+	NotBoundException {
+		mUriBinder.defer(resolver, null);
+		return this;
+	}
+
 	/**
 	 * Save to the given bundle.
 	 * @param outState the bundle to save to
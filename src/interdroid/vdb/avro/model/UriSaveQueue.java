@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+/**
+ * Saves records on a background thread. Saves run one at a time in the
+ * order they were queued so a later save never overtakes an earlier one.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class UriSaveQueue {
+	/** Access to logger. */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(UriSaveQueue.class);
+
+	/** The thread saves run on. */
+	private static final ExecutorService EXECUTOR =
+			Executors.newSingleThreadExecutor();
+
+	/** The last save queued for each uri until it is done. */
+	private static final Map<Uri, Future<?>> PENDING =
+			new HashMap<Uri, Future<?>>();
+
+	/**
+	 * Is told how a queued save went. Called on the thread saves run on.
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	interface SaveListener {
+		/**
+		 * Called just before the record is saved.
+		 * @param uri the uri the save was queued for
+		 */
+		void saving(Uri uri);
+
+		/**
+		 * Called once the record has been saved.
+		 * @param uri the uri the save was queued for
+		 */
+		void saved(Uri uri);
+
+		/**
+		 * Called if the record could not be saved.
+		 * @param uri the uri the save was queued for
+		 * @param e the reason the save failed
+		 */
+		void failed(Uri uri, Exception e);
+	}
+
+	/**
+	 * No construction.
+	 */
+	private UriSaveQueue() {
+		// No construction
+	}
+
+	/**
+	 * Queues a save of the given record. The record must not be changed
+	 * until the save is done.
+	 * @param uri the uri the save is ordered by
+	 * @param resolver the resolver to save with
+	 * @param record the record to save
+	 * @param listener the listener to tell how the save went
+	 */
+	static void save(final Uri uri, final ContentResolver resolver,
+			final UriRecord record, final SaveListener listener) {
+		run(uri, new Runnable() {
+			@Override
+			public void run() {
+				final long start = System.currentTimeMillis();
+				try {
+					listener.saving(uri);
+					record.save(resolver);
+					LOG.debug("Saved {} in the background in {} ms", uri,
+							System.currentTimeMillis() - start);
+					listener.saved(uri);
+				} catch (NotBoundException e) {
+					LOG.error("Unable to save unbound record: " + uri, e);
+					listener.failed(uri, e);
+				} catch (RuntimeException e) {
+					LOG.error("Unable to save: " + uri, e);
+					listener.failed(uri, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queues the given work behind the saves queued so far. The work runs
+	 * on the thread saves run on, so it follows the earlier saves without
+	 * the caller waiting for them, and later saves and waits follow it.
+	 * @param uri the uri the work is ordered by
+	 * @param work the work to run
+	 */
+	static void run(final Uri uri, final Runnable work) {
+		final FutureTask<Void> task = new FutureTask<Void>(work, null) {
+			@Override
+			protected void done() {
+				// Nothing holds on to the work once it is done.
+				synchronized (PENDING) {
+					if (PENDING.get(uri) == this) {
+						PENDING.remove(uri);
+					}
+				}
+			}
+		};
+		synchronized (PENDING) {
+			PENDING.put(uri, task);
+		}
+		EXECUTOR.execute(task);
+	}
+
+	/**
+	 * Waits for all saves queued for the given uri to finish.
+	 * @param uri the uri to wait for
+	 */
+	static void await(final Uri uri) {
+		final Future<?> pending;
+		synchronized (PENDING) {
+			pending = PENDING.get(uri);
+		}
+		if (pending != null) {
+			LOG.debug("Waiting for background save of: {}", uri);
+			// Saves run in order so earlier saves are done as well.
+			waitFor(pending);
+		}
+	}
+
+	/**
+	 * Waits for the given save to finish.
+	 * @param save the save to wait for
+	 */
+	private static void waitFor(final Future<?> save) {
+		try {
+			save.get();
+		} catch (InterruptedException e) {
+			LOG.warn("Interrupted waiting for save.", e);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LOG.warn("Save failed.", e);
+		}
+	}
+}
@@ -30,7 +30,6 @@
  */
 package interdroid.vdb.avro.model;
 
-import interdroid.util.DbUtil;
 import interdroid.vdb.content.EntityUriMatcher;
 import interdroid.vdb.content.EntityUriMatcher.UriMatch;
 
@@ -61,10 +60,16 @@ public class UriUnion {
 	private Object mValue;
 	/** The schema for the union. */
 	private final Schema mSchema;
-	/** The current type being held. */
-	private Type mType;
-	/** The name of the type if the type is a named type. */
-	private String mName;
+	/** The branches of the union schema. */
+	private final UnionBranches mBranches;
+	/** The ordinal of the branch being held. */
+	private int mBranch = UnionBranches.NONE;
+	/** Has the value changed since the last load or save. */
+	private boolean mDirty;
+	/** Is a copy kept of the union when it is first changed. */
+	private boolean mPreserving;
+	/** The union as it was when first changed after a snapshot. */
+	private UriUnion mPreImage;
 
 	/**
 	 * Construct a new union.
@@ -78,6 +83,7 @@ public class UriUnion {
 			throw new IllegalArgumentException("Not a union.");
 		}
 		mSchema = fieldSchema;
+		mBranches = UnionBranches.forSchema(fieldSchema);
 	}
 
 	/**
@@ -95,72 +101,188 @@ public class UriUnion {
 	 */
 	public final void setValue(final Object value, final Schema schema) {
 		LOG.debug("Union Value set to: {} {}", value, schema);
+		if (mPreserving && mPreImage == null) {
+			mPreImage = copy(mValue);
+		}
 		mValue = value;
-		mType = schema.getType();
-		mName = schema.getFullName();
+		mBranch = mBranches.getOrdinal(schema);
+		mDirty = true;
+	}
+
+	/**
+	 * @return true if the value or the data it holds has changed since it
+	 * was last loaded from or saved to the content provider
+	 */
+	public final boolean isDirty() {
+		return mDirty || UriDataManager.isDirty(mValue);
+	}
+
+	/**
+	 * Marks the value and the data it holds as changed.
+	 */
+	public final void markDirty() {
+		mDirty = true;
+		UriDataManager.markDirty(mValue);
+	}
+
+	/**
+	 * Forgets the changes of the value and the data it holds. Only called
+	 * for a union held by data which hashes the same as what is stored.
+	 */
+	final void markClean() {
+		mDirty = false;
+		UriDataManager.markClean(mValue);
+	}
+
+	/**
+	 * Marks the union changed if it differs from the given union.
+	 * @param stored the union the provider holds in the same place or null
+	 * if that is not known
+	 */
+	final void markChanged(final Object stored) {
+		if (!(stored instanceof UriUnion)
+				|| ((UriUnion) stored).getContentHash() != getContentHash()) {
+			mDirty = true;
+			Object storedValue = null;
+			if (stored instanceof UriUnion
+					&& ((UriUnion) stored).mBranch == mBranch) {
+				storedValue = ((UriUnion) stored).mValue;
+			}
+			UriDataManager.markChanged(mValue, storedValue);
+		}
+	}
+
+	/**
+	 * Starts preserving the union as it is now.
+	 * @param resolver the resolver to read blob data with
+	 */
+	public final void snapshot(final ContentResolver resolver) {
+		mPreserving = true;
+		mPreImage = null;
+		UriDataManager.snapshot(resolver, mValue);
+	}
+
+	/**
+	 * @return the union as it was when snapshot was called, which is
+	 * this union if it has not changed since
+	 * @throws NotBoundException if the value is not bound properly
+	 */
+	public final UriUnion getSnapshot() throws NotBoundException {
+		UriUnion source = this;
+		if (mPreImage != null) {
+			source = mPreImage;
+		}
+		final Object original = UriDataManager.getSnapshot(source.mValue);
+		UriUnion ret = this;
+		if (source != this || original != mValue) {
+			ret = source.copy(original);
+		}
+		return ret;
+	}
+
+	/**
+	 * @param value the value for the copy
+	 * @return a copy of this union holding the given value
+	 */
+	private UriUnion copy(final Object value) {
+		final UriUnion ret = new UriUnion(mSchema);
+		ret.mValue = value;
+		ret.mBranch = mBranch;
+		ret.mDirty = true;
+		return ret;
 	}
 
 	/**
 	 * @return the type the union currently holds
 	 */
 	public final Type getType() {
-		return mType;
+		Type ret = null;
+		if (mBranch != UnionBranches.NONE) {
+			ret = getValueSchema().getType();
+		}
+		return ret;
 	}
 
 	/**
 	 * @return the name for the type the union curently holds or null
 	 */
 	public final String getTypeName() {
-		return mName;
+		String ret = null;
+		if (mBranch != UnionBranches.NONE) {
+			ret = getValueSchema().getFullName();
+		}
+		return ret;
 	}
 
 	/**
 	 * @return the schema for the value the union currently holds
 	 */
 	public final Schema getValueSchema() {
-		Schema ret = null; // NOPMD by nick
-		for (Schema type : mSchema.getTypes()) {
-			if (type.getType() == mType) {
-				if (UriBoundAdapter.isNamedType(mType)) {
-					if (type.getName().equals(mName)) {
-						ret = type;
-						break;
-					}
-				} else {
-					ret = type;
-					break;
-				}
-			}
-		}
-		return ret;
+		return mBranches.get(mBranch);
+	}
+
+	/**
+	 * @return the ordinal of the branch the union currently holds
+	 */
+	final int getBranch() {
+		return mBranch;
+	}
+
+	/**
+	 * @return a structural hash of the branch and value of the union
+	 */
+	final long getContentHash() {
+		return ContentHash.mix(ContentHash.mix(ContentHash.EMPTY, mBranch),
+				ContentHash.of(mValue));
 	}
 
 	/**
 	 * Saves this union.
+	 * @param batch the batch to add the operations for the value to
 	 * @param resolver the resolver to use to save
 	 * @param rootUri the root uri for the data being saved
 	 * @param values the values being saved
 	 * @param fieldName the name of the field being saved
 	 * @throws NotBoundException if the data is not properly bound
 	 */
-	public final void save(final ContentResolver resolver, final Uri rootUri,
-			final ContentValues values, final String fieldName)
-					throws NotBoundException {
-		if (mType == null) {
+	final void save(final UriBatch batch, final ContentResolver resolver,
+			final Uri rootUri, final ContentValues values,
+			final String fieldName) throws NotBoundException {
+		final Schema branch = mBranches.get(mBranch);
+		if (branch == null) {
 			values.putNull(NameHelper.getTypeName(fieldName));
+			values.putNull(NameHelper.getTypeNameName(fieldName));
 		} else {
-			values.put(NameHelper.getTypeName(fieldName), mType.toString());
+			values.put(NameHelper.getTypeName(fieldName),
+					branch.getType().toString());
+			values.put(NameHelper.getTypeNameName(fieldName),
+					branch.getFullName());
+		}
+		// The ordinal goes in its own column where the table has one and
+		// the type and name written above are checked against it on load.
+		final String branchName = NameHelper.getBranchName(fieldName);
+		if (LoadPlan.hasColumn(resolver, rootUri, branchName)) {
+			if (branch == null) {
+				values.putNull(branchName);
+			} else {
+				values.put(branchName, mBranch);
+			}
 		}
-		values.put(NameHelper.getTypeNameName(fieldName), mName);
 		if (mValue == null) {
 			values.put(fieldName, -1);
 		} else {
-			UriDataManager.storeDataToUri(resolver, rootUri, values,
-					fieldName, getTypeSchema(), mValue);
-			if (UriBoundAdapter.isBoundType(mType)) {
+			UriDataManager.storeDataToUri(batch, resolver, rootUri, values,
+					fieldName, getValueSchema(), mValue);
+			if (UriBoundAdapter.isBoundType(getType())) {
 				values.put(fieldName, getInstanceId((UriBound<?>) mValue));
 			}
 		}
+		batch.whenApplied(new Runnable() {
+			@Override
+			public void run() {
+				mDirty = false;
+			}
+		});
 		LOG.debug("Values now has: {}", values);
 	}
 
@@ -188,26 +310,38 @@ public class UriUnion {
 	 * @param rootUri the root uri for the data being loaded
 	 * @param cursor the cursor to load from
 	 * @param fieldName the name of the field being loaded
+	 * @param plan the column indexes resolved for the cursor
+	 * @param position the position of the field in the plan
+	 * @param lazy true if a bound value should be loaded on first access
 	 * @return the loaded union
 	 * @throws NotBoundException if the data is not properly bound
 	 */
 	public final UriUnion load(final ContentResolver resolver,
-			final Uri rootUri, final Cursor cursor, final String fieldName)
+			final Uri rootUri, final Cursor cursor, final String fieldName,
+			final LoadPlan plan, final int position, final boolean lazy)
 					throws NotBoundException {
-		final String name = NameHelper.getTypeName(fieldName);
-		LOG.debug("Looking for column: {}", name);
-		final int index =  DbUtil.getFieldIndex(cursor, name);
+		final int index = plan.getTypeIndex(position);
 		LOG.debug("Got column: {}", index);
 		if (index >= 0) {
-			final String typeName = cursor.getString(index);
+			final String type = cursor.getString(index);
 
-			if (typeName != null) {
-				mType = Type.valueOf(typeName);
-				mName = cursor.getString( DbUtil.getFieldIndex(cursor,
-						NameHelper.getTypeNameName(fieldName)));
+			if (type != null) {
+				final int branch = plan.getBranchIndex(position);
+				if (UnionBranches.isOrdinal(type)) {
+					// Written as text by an earlier version.
+					mBranch = mBranches.parseOrdinal(type);
+				} else if (branch >= 0 && !cursor.isNull(branch)) {
+					mBranch = mBranches.getOrdinal(cursor.getInt(branch), type,
+							getString(cursor, plan.getTypeNameIndex(position)));
+				} else {
+					mBranch = mBranches.getOrdinal(Type.valueOf(type),
+							getString(cursor, plan.getTypeNameIndex(position)));
+				}
 				mValue = UriDataManager.loadDataFromUri(resolver, rootUri,
-						cursor, fieldName, getTypeSchema());
+						cursor, fieldName, getValueSchema(), plan, position,
+						lazy);
 			}
+			mDirty = false;
 		} else {
 			LOG.debug("Cursor doesn't have field: {} {}",
 					fieldName, cursor.getColumnNames());
@@ -217,6 +351,19 @@ public class UriUnion {
 		return this;
 	}
 
+	/**
+	 * @param cursor the cursor to read from
+	 * @param index the index of the column or -1 if there is none
+	 * @return the value of the column or null
+	 */
+	private static String getString(final Cursor cursor, final int index) {
+		String ret = null;
+		if (index >= 0) {
+			ret = cursor.getString(index);
+		}
+		return ret;
+	}
+
 	/**
 	 * Save this union to the bundle.
 	 * @param outState the bundle to save to
@@ -225,16 +372,10 @@ public class UriUnion {
 	 */
 	public final void save(final Bundle outState, final String fieldFullName)
 			throws NotBoundException {
-		if (mType == null) {
-			outState.putString(NameHelper.getTypeName(fieldFullName), null);
-		} else {
-			outState.putString(NameHelper.getTypeName(fieldFullName),
-					mType.toString());
-		}
-		outState.putString(NameHelper.getTypeNameName(fieldFullName), mName);
+		outState.putInt(NameHelper.getTypeName(fieldFullName), mBranch);
 		BundleDataManager.storeDataToBundle(outState, fieldFullName,
-				getTypeSchema(), mValue);
-		if (mValue != null && UriBoundAdapter.isBoundType(mType)) {
+				getValueSchema(), mValue);
+		if (mValue != null && UriBoundAdapter.isBoundType(getType())) {
 			outState.putParcelable(fieldFullName,
 					((UriBound<?>) mValue).getInstanceUri());
 		}
@@ -262,39 +403,21 @@ public class UriUnion {
 	 */
 	public final UriUnion load(final Bundle saved, final String fieldName)
 			throws NotBoundException {
-		mType = Type.valueOf(saved.getString(
-				NameHelper.getTypeName(fieldName)));
-		mName = saved.getString(NameHelper.getTypeNameName(fieldName));
-
-		final Schema fieldType = getTypeSchema();
-		setValue(BundleDataManager.loadDataFromBundle(saved,
-				fieldName, fieldType), fieldType);
-		return this;
-	}
+		final Object type = saved.get(NameHelper.getTypeName(fieldName));
+		int branch = UnionBranches.NONE;
+		if (type instanceof Integer) {
+			branch = (Integer) type;
+		} else if (type != null) {
+			branch = mBranches.getOrdinal(Type.valueOf((String) type),
+					saved.getString(NameHelper.getTypeNameName(fieldName)));
+		}
 
-	/**
-	 * @return the schema for the held type
-	 */
-	private Schema getTypeSchema() {
-		Schema fieldType = null; // NOPMD by nick
-		if (mType != null) {
-			for (Schema unionType : mSchema.getTypes()) {
-				if (unionType.getType().equals(mType)
-						&& (!UriBoundAdapter.isNamedType(mType)
-								|| (mName.equals(unionType.getFullName())
-										|| mName.equals(unionType.getName()))
-								)) {
-					fieldType = unionType;
-					break;
-				}
-			}
-			if (fieldType == null) {
-				throw new
-				IllegalStateException("Unable to find union inner type: "
-						+ mType + " : " + mName);
-			}
+		final Schema fieldType = mBranches.get(branch);
+		if (fieldType != null) {
+			setValue(BundleDataManager.loadDataFromBundle(saved,
+					fieldName, fieldType), fieldType);
 		}
-		return fieldType;
+		return this;
 	}
 
 	/**
@@ -73,6 +73,13 @@ public class AvroBaseEditor extends Activity {
 	public static final String SCHEMA = "schema";
 	/** The entity bundle parameter. */
 	public static final String ENTITY = "entity";
+	/** The bundle parameter to load nested data on first access. */
+	public static final String LAZY = "lazy";
+	/**
+	 * The bundle parameter for how long typed text waits for more typing
+	 * before it is pushed to the model in milliseconds.
+	 */
+	public static final String EDIT_DELAY = "edit_delay";
 
 	/** The code for requesting a Type selection. */
 	public static final int REQUEST_RECORD_SELECTION = 1;
@@ -233,12 +240,7 @@ public class AvroBaseEditor extends Activity {
 
 		LOG.debug("onPause");
 
-		try {
-			mController.handleSave();
-		} catch (NotBoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		mController.handleSave();
 	}
 
 
@@ -50,6 +50,7 @@ import interdroid.util.ToastOnUI;
 import interdroid.util.view.AsyncTaskWithProgressDialog;
 import interdroid.vdb.Actions;
 import interdroid.vdb.avro.R;
+import interdroid.vdb.avro.model.OrphanCollector;
 import interdroid.vdb.avro.view.factory.AvroViewFactory;
 import interdroid.vdb.content.EntityUriMatcher;
 import interdroid.vdb.content.EntityUriMatcher.UriMatch;
@@ -213,6 +214,8 @@ public class AvroBaseList extends ListActivity {
 		mBranchUri = match.getCheckoutUri();
 		if (mReadOnly) {
 			Toast.makeText(this, "Read only", Toast.LENGTH_LONG).show();
+		} else {
+			OrphanCollector.register(mBranchUri, mSchema);
 		}
 
 		// Inform the list we provide context menus for items
@@ -229,6 +232,17 @@ public class AvroBaseList extends ListActivity {
 		new InitTask().execute(getIntent());
 	}
 
+	@Override
+	protected final void onResume() {
+		super.onResume();
+
+		// Editors save when they are paused so records they left behind
+		// can be collected once the list is showing again.
+		if (!mReadOnly) {
+			OrphanCollector.scheduleWhenIdle(this);
+		}
+	}
+
 	/**
 	 * Initialization task which loads the list.
 	 * @author nick &lt;palmer@cs.vu.nl&gt;
@@ -30,7 +30,11 @@
  */
 package interdroid.vdb.avro.view;
 
+import interdroid.vdb.avro.model.UriBlob;
+
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -41,6 +45,7 @@ import java.util.TimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import android.content.ContentResolver;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
@@ -213,6 +218,33 @@ public final class DataFormatUtil {
 		return bitmap;
 	}
 
+	/**
+	 * Decodes a bitmap from BYTES data held by a model, streaming it
+	 * from the content provider if the model holds a handle for it.
+	 * @param resolver the resolver to read handles with
+	 * @param data the data or a handle for it
+	 * @return the bitmap or null if there is no data
+	 * @throws IOException if the data can not be read
+	 */
+	public static Bitmap getBitmap(final ContentResolver resolver,
+			final Object data) throws IOException {
+		Bitmap bitmap = null;
+		if (data instanceof UriBlob) {
+			final InputStream in = ((UriBlob) data).openInputStream(resolver);
+			if (in != null) {
+				try {
+					bitmap = BitmapFactory.decodeStream(in);
+				} finally {
+					in.close();
+				}
+			}
+		} else if (data != null && ((byte[]) data).length > 0) {
+			bitmap = BitmapFactory.decodeByteArray(
+					(byte[]) data, 0, ((byte[]) data).length);
+		}
+		return bitmap;
+	}
+
 	public static byte[] fromatBitmapForStorage(byte[] data) {
 		Bitmap bitmap = getBitmap(data, 500);
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -33,13 +33,16 @@ package interdroid.vdb.avro.view;
 import interdroid.util.ToastOnUI;
 import interdroid.util.view.LayoutUtil.LayoutParameters;
 import interdroid.vdb.avro.R;
+import interdroid.vdb.avro.model.UriBlob;
 import interdroid.vdb.avro.view.CameraSurface.PictureTakenCallback;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.app.Activity;
-import android.content.ContentValues;
 import android.net.Uri;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -125,10 +128,15 @@ public class UseCamera extends Activity {
 
 		@Override
 		public void onPictureTaken(final byte[] data) {
-			final ContentValues values = new ContentValues();
-			// TODO: We need to change these to store in a file.
-			values.put(mField, DataFormatUtil.fromatBitmapForStorage(data));
-			getContentResolver().update(mUri, values, null, null);
+			try {
+				new UriBlob(mUri, mField).write(getContentResolver(),
+						new ByteArrayInputStream(
+								DataFormatUtil.fromatBitmapForStorage(data)));
+			} catch (IOException e) {
+				LOG.error("Unable to store photo.", e);
+				ToastOnUI.show(UseCamera.this, R.string.error_storing_photo,
+						Toast.LENGTH_LONG);
+			}
 			finish();
 		}
 
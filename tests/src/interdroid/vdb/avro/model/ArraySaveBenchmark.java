@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+/**
+ * Times saving arrays of strings of several sizes to a scratch table,
+ * once the way arrays were saved before batching, with a provider call
+ * per row, and once through a UriBatch. The transactions and the fastest
+ * time of each are logged side by side.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public class ArraySaveBenchmark extends ProviderTestCase2<ScratchProvider> {
+	/** Access to logger. */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ArraySaveBenchmark.class);
+
+	/** The sizes of the arrays saved. */
+	private static final int[] SIZES = {1, 10, 100, 500, 1000};
+
+	/** The number of times each size is saved each way. */
+	private static final int ROUNDS = 3;
+
+	/** The schema for the arrays saved. */
+	private static final Schema SCHEMA =
+			Schema.createArray(Schema.create(Type.STRING));
+
+	/**
+	 * The result of saving an array one way.
+	 */
+	private static final class Result {
+		/** The number of provider transactions per save. */
+		private final int mTransactions;
+		/** The fastest save in milliseconds. */
+		private final long mMillis;
+
+		/**
+		 * @param transactions the number of transactions per save
+		 * @param millis the fastest save in milliseconds
+		 */
+		Result(final int transactions, final long millis) {
+			mTransactions = transactions;
+			mMillis = millis;
+		}
+
+		@Override
+		public String toString() {
+			return mTransactions + " transactions in " + mMillis + " ms";
+		}
+	}
+
+	/**
+	 * Construct the benchmark against the scratch provider.
+	 */
+	public ArraySaveBenchmark() {
+		super(ScratchProvider.class, ScratchProvider.AUTHORITY);
+	}
+
+	/**
+	 * Saves arrays of each size both ways and logs the results.
+	 * @throws NotBoundException if the array can not be bound
+	 */
+	public final void testArraySaves() throws NotBoundException {
+		final ContentResolver resolver = getMockContentResolver();
+		for (int size : SIZES) {
+			Result baseline = null;
+			Result batched = null;
+			for (int round = 0; round < ROUNDS; round++) {
+				baseline = faster(baseline, saveRows(resolver, size));
+				assertEquals(size, count(resolver));
+				batched = faster(batched, saveBatch(resolver, size));
+				assertEquals(size, count(resolver));
+			}
+			LOG.info("Array save of {} elements: per row {}, batched {}",
+					new Object[] {size, baseline, batched});
+			assertEquals(1, batched.mTransactions);
+		}
+	}
+
+	/**
+	 * @param best the best result so far or null
+	 * @param result the result of the last save
+	 * @return the faster of the two
+	 */
+	private static Result faster(final Result best, final Result result) {
+		Result ret = result;
+		if (best != null && best.mMillis <= result.mMillis) {
+			ret = best;
+		}
+		return ret;
+	}
+
+	/**
+	 * Saves an array the way it was done before batching: the stored rows
+	 * are deleted and each element is inserted as an empty row which is
+	 * then updated with its value.
+	 * @param resolver the resolver to save with
+	 * @param size the number of elements to save
+	 * @return the result of the save
+	 */
+	private static Result saveRows(final ContentResolver resolver,
+			final int size) {
+		final long start = System.currentTimeMillis();
+		resolver.delete(ScratchProvider.TABLE_URI, null, null);
+		int transactions = 1;
+		final ContentValues values = new ContentValues();
+		for (int i = 0; i < size; i++) {
+			values.clear();
+			final Uri idUri = resolver.insert(ScratchProvider.TABLE_URI,
+					values);
+			values.put(ScratchProvider.TABLE, "element " + i);
+			resolver.update(idUri, values, null, null);
+			transactions += 2;
+		}
+		return new Result(transactions, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Saves a new array over the stored one through a batch.
+	 * @param resolver the resolver to save with
+	 * @param size the number of elements to save
+	 * @return the result of the save
+	 * @throws NotBoundException if the array can not be bound
+	 */
+	private static Result saveBatch(final ContentResolver resolver,
+			final int size) throws NotBoundException {
+		final UriArray<String> array = new UriArray<String>(
+				ScratchProvider.TABLE_URI, SCHEMA);
+		for (int i = 0; i < size; i++) {
+			array.add("element " + i);
+		}
+		final long start = System.currentTimeMillis();
+		final UriBatch batch = new UriBatch(ScratchProvider.TABLE_URI);
+		array.save(batch, resolver, ScratchProvider.TABLE);
+		batch.apply(resolver);
+		return new Result(batch.getApplyCount(),
+				System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @param resolver the resolver to query with
+	 * @return the number of rows in the scratch table
+	 */
+	private static int count(final ContentResolver resolver) {
+		final Cursor cursor = resolver.query(ScratchProvider.TABLE_URI,
+				new String[] {"count(*)"}, null, null, null);
+		try {
+			cursor.moveToFirst();
+			return cursor.getInt(0);
+		} finally {
+			cursor.close();
+		}
+	}
+}
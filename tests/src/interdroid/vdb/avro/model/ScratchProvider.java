@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.avro.model;
+
+import java.util.ArrayList;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * A provider serving one table of strings held in an in memory database,
+ * so benchmarks have a scratch table of their own to write to. Batches
+ * are applied in one transaction as the versioned database provider does.
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public class ScratchProvider extends ContentProvider {
+	/** The authority the provider serves. */
+	public static final String AUTHORITY = "interdroid.vdb.avro.scratch";
+
+	/** The name of the table and the column holding the strings. */
+	public static final String TABLE = "element";
+
+	/** The uri for the table. */
+	public static final Uri TABLE_URI =
+			Uri.parse("content://" + AUTHORITY + "/" + TABLE);
+
+	/** Opens the in memory database. */
+	private SQLiteOpenHelper mHelper;
+
+	@Override
+	public final boolean onCreate() {
+		mHelper = new SQLiteOpenHelper(getContext(), null, null, 1) {
+			@Override
+			public void onCreate(final SQLiteDatabase db) {
+				db.execSQL("CREATE TABLE " + TABLE + " ("
+						+ BaseColumns._ID + " INTEGER PRIMARY KEY, "
+						+ TABLE + " TEXT)");
+			}
+
+			@Override
+			public void onUpgrade(final SQLiteDatabase db,
+					final int oldVersion, final int newVersion) {
+				// Nothing to upgrade
+			}
+		};
+		return true;
+	}
+
+	/**
+	 * @param uri the uri of the table or of a row in it
+	 * @param selection the selection given by the caller
+	 * @return the selection limited to the row if the uri names one
+	 */
+	private static String getSelection(final Uri uri,
+			final String selection) {
+		String ret = selection;
+		if (uri.getPathSegments().size() > 1) {
+			ret = BaseColumns._ID + " = " + ContentUris.parseId(uri);
+			if (selection != null) {
+				ret = ret + " AND (" + selection + ")";
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public final Cursor query(final Uri uri, final String[] projection,
+			final String selection, final String[] selectionArgs,
+			final String sortOrder) {
+		return mHelper.getReadableDatabase().query(TABLE, projection,
+				getSelection(uri, selection), selectionArgs, null, null,
+				sortOrder);
+	}
+
+	@Override
+	public final String getType(final Uri uri) {
+		return null;
+	}
+
+	@Override
+	public final Uri insert(final Uri uri, final ContentValues values) {
+		final long id = mHelper.getWritableDatabase().insert(TABLE,
+				BaseColumns._ID, values);
+		Uri ret = null;
+		if (id >= 0) {
+			ret = ContentUris.withAppendedId(TABLE_URI, id);
+		}
+		return ret;
+	}
+
+	@Override
+	public final int delete(final Uri uri, final String selection,
+			final String[] selectionArgs) {
+		return mHelper.getWritableDatabase().delete(TABLE,
+				getSelection(uri, selection), selectionArgs);
+	}
+
+	@Override
+	public final int update(final Uri uri, final ContentValues values,
+			final String selection, final String[] selectionArgs) {
+		return mHelper.getWritableDatabase().update(TABLE, values,
+				getSelection(uri, selection), selectionArgs);
+	}
+
+	@Override
+	public final ContentProviderResult[] applyBatch(
+			final ArrayList<ContentProviderOperation> operations)
+					throws OperationApplicationException {
+		final SQLiteDatabase db = mHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			final ContentProviderResult[] ret = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+			return ret;
+		} finally {
+			db.endTransaction();
+		}
+	}
+}